@@ -20,20 +20,14 @@ import android.Manifest;
 import android.app.Fragment;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.Image;
-import android.media.Image.Plane;
-import android.media.ImageReader;
-import android.media.ImageReader.OnImageAvailableListener;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Trace;
 import androidx.annotation.NonNull;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import androidx.appcompat.app.AppCompatActivity;
@@ -50,21 +44,50 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import org.tensorflow.lite.examples.detection.R;
-import com.crawlfree.tf.app.detection.env.ImageUtils;
+import com.crawlfree.tf.app.detection.env.LatencyStats;
 import com.crawlfree.tf.app.detection.env.Logger;
+import com.crawlfree.tf.app.detection.env.RowBandExecutor;
+import com.crawlfree.tf.app.detection.env.YuvToArgbConverter;
+import com.crawlfree.tf.app.detection.env.YuvToTensorConverter;
+import com.crawlfree.tf.app.detection.pipeline.FrameStage;
+import com.crawlfree.tf.app.detection.source.Camera2FrameSource;
+import com.crawlfree.tf.app.detection.source.CaptureRecorder;
+import com.crawlfree.tf.app.detection.source.FrameSource;
+import com.crawlfree.tf.app.detection.source.LegacyCameraFrameSource;
+import com.crawlfree.tf.app.detection.source.ReplayFrameSource;
+import com.crawlfree.tf.app.detection.source.YuvFrame;
 
 public abstract class CameraActivity extends AppCompatActivity
-    implements OnImageAvailableListener,
-        Camera.PreviewCallback,
+    implements FrameSource.Listener,
         CompoundButton.OnCheckedChangeListener,
         View.OnClickListener {
   private static final Logger LOGGER = new Logger();
 
   private static final int PERMISSIONS_REQUEST = 1;
 
+  /**
+   * Path of a capture file to replay instead of opening the camera, so that the pipeline can be
+   * benchmarked on recorded frames.
+   */
+  public static final String EXTRA_REPLAY_FILE = "REPLAY_FILE";
+  /** Frame rate of the replay, or 0 (the default) to replay as fast as frames are processed. */
+  public static final String EXTRA_REPLAY_FPS = "REPLAY_FPS";
+  /** Whether the replay starts over after the last frame. */
+  public static final String EXTRA_REPLAY_LOOP = "REPLAY_LOOP";
+  /**
+   * Capture file to record the camera frames into, as an absolute path or relative to the app's
+   * external files directory. Only the last {@link #EXTRA_RECORD_FRAMES} frames are kept.
+   */
+  public static final String EXTRA_RECORD_FILE = "RECORD_FILE";
+  /** Number of frames kept by the recording, 300 by default. */
+  public static final String EXTRA_RECORD_FRAMES = "RECORD_FRAMES";
+  private static final int DEFAULT_RECORD_FRAMES = 300;
+
   private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
   protected int previewWidth = 0;
   protected int previewHeight = 0;
@@ -72,18 +95,24 @@ public abstract class CameraActivity extends AppCompatActivity
   private Handler handler;
   private HandlerThread handlerThread;
   private boolean useCamera2API;
-  private boolean isProcessingFrame = false;
-  private byte[][] yuvBytes = new byte[3][];
+  private FrameSource frameSource;
+  // The frame being processed, valid until readyForNextImage().
+  private YuvFrame frame;
   private int[] rgbBytes = null;
-  private int yRowStride;
-  private Runnable postInferenceCallback;
-  private Runnable imageConverter;
+  // Where to record the frames, or null if not recording.
+  private File recordFile;
+  private boolean recorderRequested = false;
+  private volatile CaptureRecorder recorder;
+  // Runs the frame conversions in bands of rows, serially unless a subclass sets up a pool.
+  protected RowBandExecutor imageOps = new RowBandExecutor(0);
+  protected final LatencyStats<FrameStage> frameStats =
+      new LatencyStats<FrameStage>(FrameStage.class);
 
   private LinearLayout bottomSheetLayout;
   private LinearLayout gestureLayout;
   private BottomSheetBehavior sheetBehavior;
 
-  protected TextView frameValueTextView, cropValueTextView, inferenceTimeTextView;
+  protected TextView frameValueTextView, cropValueTextView, inferenceTimeTextView, statsTextView;
   protected ImageView bottomSheetArrowImageView;
   private ImageView plusImageView, minusImageView;
   private SwitchCompat apiSwitchCompat;
@@ -101,7 +130,18 @@ public abstract class CameraActivity extends AppCompatActivity
     setSupportActionBar(toolbar);
     getSupportActionBar().setDisplayShowTitleEnabled(false);
 
-    if (hasPermission()) {
+    final String recordPath = getIntent().getStringExtra(EXTRA_RECORD_FILE);
+    if (recordPath != null) {
+      recordFile = new File(recordPath);
+      if (!recordFile.isAbsolute()) {
+        recordFile = new File(getExternalFilesDir(null), recordPath);
+      }
+    }
+
+    final String replayFile = getIntent().getStringExtra(EXTRA_REPLAY_FILE);
+    if (replayFile != null) {
+      setReplayFragment(new File(replayFile));
+    } else if (hasPermission()) {
       setFragment();
     } else {
       requestPermission();
@@ -167,6 +207,7 @@ public abstract class CameraActivity extends AppCompatActivity
     frameValueTextView = findViewById(R.id.frame_info);
     cropValueTextView = findViewById(R.id.crop_info);
     inferenceTimeTextView = findViewById(R.id.inference_info);
+    statsTextView = findViewById(R.id.stats_info);
 
     apiSwitchCompat.setOnCheckedChangeListener(this);
 
@@ -174,126 +215,125 @@ public abstract class CameraActivity extends AppCompatActivity
     minusImageView.setOnClickListener(this);
   } // on create finish
 
+  /** Converts the whole current frame to ARGB, prefer {@link #convertToArgb} for the model crop. */
   protected int[] getRgbBytes() {
-    imageConverter.run();
+    final long startNanos = System.nanoTime();
+    if (rgbBytes == null) {
+      rgbBytes = new int[previewWidth * previewHeight];
+    }
+    if (frame.getFormat() == YuvFrame.FORMAT_NV21) {
+      YuvToArgbConverter.convertYUV420SP(
+          frame.getPlane(0), frame.getWidth(), frame.getHeight(), rgbBytes, true, imageOps);
+    } else {
+      YuvToArgbConverter.convertYUV420(
+          frame.getPlane(0),
+          frame.getPlane(1),
+          frame.getPlane(2),
+          frame.getWidth(),
+          frame.getHeight(),
+          frame.getYRowStride(),
+          frame.getUvRowStride(),
+          frame.getUvPixelStride(),
+          rgbBytes,
+          true,
+          imageOps);
+    }
+    frameStats.record(FrameStage.RGB_CONVERSION, startNanos);
     return rgbBytes;
   }
 
+  /** Converts the current frame straight into a model input tensor, without going through RGB. */
+  protected void convertToTensor(final YuvToTensorConverter converter, final ByteBuffer tensor) {
+    final long startNanos = System.nanoTime();
+    if (frame.getFormat() == YuvFrame.FORMAT_NV21) {
+      converter.convertYUV420SP(frame.getPlane(0), tensor);
+    } else {
+      converter.convert(
+          frame.getPlane(0),
+          frame.getPlane(1),
+          frame.getPlane(2),
+          frame.getYRowStride(),
+          frame.getUvRowStride(),
+          frame.getUvPixelStride(),
+          tensor);
+    }
+    frameStats.record(FrameStage.TENSOR_CONVERSION, startNanos);
+  }
+
+  /**
+   * Converts only the pixels of the current frame that land in the model crop into ARGB, at the
+   * crop size, instead of converting the whole frame and scaling it down.
+   */
+  protected void convertToArgb(final YuvToTensorConverter converter, final int[] argb) {
+    final long startNanos = System.nanoTime();
+    if (frame.getFormat() == YuvFrame.FORMAT_NV21) {
+      converter.convertYUV420SPToArgb(frame.getPlane(0), argb);
+    } else {
+      converter.convertToArgb(
+          frame.getPlane(0),
+          frame.getPlane(1),
+          frame.getPlane(2),
+          frame.getYRowStride(),
+          frame.getUvRowStride(),
+          frame.getUvPixelStride(),
+          argb);
+    }
+    frameStats.record(FrameStage.RGB_CONVERSION, startNanos);
+  }
+
   protected int getLuminanceStride() {
-    return yRowStride;
+    return frame.getYRowStride();
   }
 
-  protected byte[] getLuminance() {
-    return yuvBytes[0];
+  protected ByteBuffer getLuminance() {
+    return frame.getPlane(0);
   }
 
-  /** Callback for android.hardware.Camera API */
   @Override
-  public void onPreviewFrame(final byte[] bytes, final Camera camera) {
-    if (isProcessingFrame) {
-      LOGGER.w("Dropping frame!");
-      return;
-    }
+  public void onFrameSizeChosen(final int width, final int height, final int rotation) {
+    previewWidth = width;
+    previewHeight = height;
+    rgbBytes = null;
+    onPreviewSizeChosen(new Size(width, height), rotation);
+  }
 
-    try {
-      // Initialize the storage bitmaps once when the resolution is known.
-      if (rgbBytes == null) {
-        Camera.Size previewSize = camera.getParameters().getPreviewSize();
-        previewHeight = previewSize.height;
-        previewWidth = previewSize.width;
-        rgbBytes = new int[previewWidth * previewHeight];
-        onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
-      }
-    } catch (final Exception e) {
-      LOGGER.e(e, "Exception!");
-      return;
+  /** Called on the thread of the frame source. */
+  @Override
+  public void onFrame(final YuvFrame frame) {
+    this.frame = frame;
+    final CaptureRecorder recorder = this.recorder;
+    if (recorder != null) {
+      final long startNanos = System.nanoTime();
+      recorder.record(frame);
+      frameStats.record(FrameStage.RECORDING, startNanos);
+    } else if (recordFile != null && !recorderRequested) {
+      startRecording(frame);
     }
+    processImage();
+  }
 
-    isProcessingFrame = true;
-    yuvBytes[0] = bytes;
-    yRowStride = previewWidth;
-
-    imageConverter =
-        new Runnable() {
-          @Override
-          public void run() {
-            ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
-          }
-        };
-
-    postInferenceCallback =
+  /** Creates the capture file in the background, recording starts with a later frame. */
+  private void startRecording(final YuvFrame frame) {
+    recorderRequested = true;
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    final int format = frame.getFormat();
+    final int rotation = frame.getRotation();
+    final int planeBytes = CaptureRecorder.getPlaneBytes(frame);
+    final int frameCount = getIntent().getIntExtra(EXTRA_RECORD_FRAMES, DEFAULT_RECORD_FRAMES);
+    runInBackground(
         new Runnable() {
           @Override
           public void run() {
-            camera.addCallbackBuffer(bytes);
-            isProcessingFrame = false;
-          }
-        };
-    processImage();
-  }
-
-  /** Callback for Camera2 API */
-  @Override
-  public void onImageAvailable(final ImageReader reader) {
-    // We need wait until we have some size from onPreviewSizeChosen
-    if (previewWidth == 0 || previewHeight == 0) {
-      return;
-    }
-    if (rgbBytes == null) {
-      rgbBytes = new int[previewWidth * previewHeight];
-    }
-    try {
-      final Image image = reader.acquireLatestImage();
-
-      if (image == null) {
-        return;
-      }
-
-      if (isProcessingFrame) {
-        image.close();
-        return;
-      }
-      isProcessingFrame = true;
-      Trace.beginSection("imageAvailable");
-      final Plane[] planes = image.getPlanes();
-      fillBytes(planes, yuvBytes);
-      yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
-
-      imageConverter =
-          new Runnable() {
-            @Override
-            public void run() {
-              ImageUtils.convertYUV420ToARGB8888(
-                  yuvBytes[0],
-                  yuvBytes[1],
-                  yuvBytes[2],
-                  previewWidth,
-                  previewHeight,
-                  yRowStride,
-                  uvRowStride,
-                  uvPixelStride,
-                  rgbBytes);
+            try {
+              recorder =
+                  CaptureRecorder.create(
+                      recordFile, width, height, format, rotation, planeBytes, frameCount);
+            } catch (final IOException e) {
+              LOGGER.e(e, "Cannot record to %s", recordFile);
             }
-          };
-
-      postInferenceCallback =
-          new Runnable() {
-            @Override
-            public void run() {
-              image.close();
-              isProcessingFrame = false;
-            }
-          };
-
-      processImage();
-    } catch (final Exception e) {
-      LOGGER.e(e, "Exception!");
-      Trace.endSection();
-      return;
-    }
-    Trace.endSection();
+          }
+        });
   }
 
   @Override
@@ -440,50 +480,66 @@ public abstract class CameraActivity extends AppCompatActivity
 
     Fragment fragment;
     if (useCamera2API) {
+      final Camera2FrameSource source =
+          new Camera2FrameSource(this);
       CameraConnectionFragment camera2Fragment =
           CameraConnectionFragment.newInstance(
               new CameraConnectionFragment.ConnectionCallback() {
                 @Override
                 public void onPreviewSizeChosen(final Size size, final int rotation) {
-                  previewHeight = size.getHeight();
-                  previewWidth = size.getWidth();
-                  CameraActivity.this.onPreviewSizeChosen(size, rotation);
+                  source.onPreviewSizeChosen(size.getWidth(), size.getHeight(), rotation);
                 }
               },
-              this,
+              source,
               getLayoutId(),
               getDesiredPreviewFrameSize());
 
       camera2Fragment.setCamera(cameraId);
       fragment = camera2Fragment;
+      frameSource = source;
     } else {
+      final LegacyCameraFrameSource source = new LegacyCameraFrameSource(this);
       fragment =
-          new LegacyCameraConnectionFragment(this, getLayoutId(), getDesiredPreviewFrameSize());
+          new LegacyCameraConnectionFragment(source, getLayoutId(), getDesiredPreviewFrameSize());
+      frameSource = source;
     }
+    // The camera fragments start and stop the camera itself.
+    frameSource.start();
 
     getFragmentManager().beginTransaction().replace(R.id.container, fragment).commit();
   }
 
-  protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-    // Because of the variable row stride it's not possible to know in
-    // advance the actual necessary dimensions of the yuv planes.
-    for (int i = 0; i < planes.length; ++i) {
-      final ByteBuffer buffer = planes[i].getBuffer();
-      if (yuvBytes[i] == null) {
-        LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-        yuvBytes[i] = new byte[buffer.capacity()];
-      }
-      buffer.get(yuvBytes[i]);
+  /** Replays a capture file in place of the camera, see {@link #EXTRA_REPLAY_FILE}. */
+  protected void setReplayFragment(final File file) {
+    final ReplayFrameSource source;
+    try {
+      source =
+          new ReplayFrameSource(
+              file,
+              getIntent().getFloatExtra(EXTRA_REPLAY_FPS, 0),
+              getIntent().getBooleanExtra(EXTRA_REPLAY_LOOP, false),
+              this);
+    } catch (final IOException e) {
+      LOGGER.e(e, "Cannot replay %s", file);
+      Toast.makeText(this, "Cannot replay " + file, Toast.LENGTH_LONG).show();
+      finish();
+      return;
     }
+    frameSource = source;
+    getFragmentManager()
+        .beginTransaction()
+        .replace(R.id.container, new ReplayFragment(source, getLayoutId()))
+        .commit();
   }
 
   public boolean isDebug() {
     return debug;
   }
 
+  /** Hands the current frame back to its source, after which it may no longer be read. */
   protected void readyForNextImage() {
-    if (postInferenceCallback != null) {
-      postInferenceCallback.run();
+    if (frame != null) {
+      frame.release();
     }
   }
 
@@ -540,6 +596,15 @@ public abstract class CameraActivity extends AppCompatActivity
     inferenceTimeTextView.setText(inferenceTime);
   }
 
+  protected void showStats(String stats) {
+    statsTextView.setText(stats);
+  }
+
+  /** Returns the number of camera frames dropped because the previous one was still in use. */
+  protected long getDroppedCameraFrames() {
+    return frameSource != null ? frameSource.getDroppedFrames() : 0;
+  }
+
   protected abstract void processImage();
 
   protected abstract void onPreviewSizeChosen(final Size size, final int rotation);
@@ -0,0 +1,46 @@
+package com.crawlfree.tf.app.detection;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+
+import com.crawlfree.tf.app.detection.speech.Phrases;
+import com.crawlfree.tf.app.detection.speech.SpeechService;
+import com.crawlfree.tf.app.detection.tflite.DetectorRegistry;
+
+/** Owns the state that outlives single activities, like the shared detection model and voice. */
+public class CrawlFreeApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Load the model while the user is still talking to VoiceActivity.
+        DetectorRegistry.preload(
+                getAssets(),
+                DetectorActivity.TF_OD_API_MODEL_FILE,
+                DetectorActivity.TF_OD_API_LABELS_FILE,
+                DetectorActivity.SUPPORTED_OBJECTS_FILE,
+                DetectorActivity.TF_OD_API_INPUT_SIZE,
+                DetectorActivity.TF_OD_API_IS_QUANTIZED);
+
+        // Bind the speech engine now, so that the welcome message is not held up by it.
+        SpeechService.initialize(this);
+        for (String phrase : Phrases.FIXED) {
+            SpeechService.getInstance().prepare(phrase);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            DetectorRegistry.trim();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        DetectorRegistry.trim();
+    }
+}
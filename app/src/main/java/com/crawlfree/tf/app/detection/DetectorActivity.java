@@ -16,86 +16,228 @@
 
 package com.crawlfree.tf.app.detection;
 
+import android.Manifest;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Matrix;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.graphics.Typeface;
-import android.media.ImageReader.OnImageAvailableListener;
 import android.os.Build;
-import android.os.Handler;
+import android.os.Bundle;
 import android.os.SystemClock;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
-import android.speech.tts.TextToSpeech;
 import android.util.Size;
 import android.util.TypedValue;
+import android.view.View;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 
 import org.tensorflow.lite.examples.detection.R;
 import com.crawlfree.tf.app.detection.customview.OverlayView;
 import com.crawlfree.tf.app.detection.customview.OverlayView.DrawCallback;
 import com.crawlfree.tf.app.detection.env.BorderedText;
+import com.crawlfree.tf.app.detection.env.CropTransform;
 import com.crawlfree.tf.app.detection.env.ImageUtils;
+import com.crawlfree.tf.app.detection.env.LatencyStats;
 import com.crawlfree.tf.app.detection.env.Logger;
+import com.crawlfree.tf.app.detection.env.RowBandExecutor;
+import com.crawlfree.tf.app.detection.env.YuvToTensorConverter;
+import com.crawlfree.tf.app.detection.guidance.AudioGuidance;
+import com.crawlfree.tf.app.detection.pipeline.FramePipeline;
+import com.crawlfree.tf.app.detection.pipeline.FrameStage;
+import com.crawlfree.tf.app.detection.pipeline.MotionGate;
+import com.crawlfree.tf.app.detection.pipeline.PipelineFrame;
+import com.crawlfree.tf.app.detection.pipeline.SharpnessSelector;
+import com.crawlfree.tf.app.detection.scene.DetectionVoter;
+import com.crawlfree.tf.app.detection.scene.SceneAnalyzer;
+import com.crawlfree.tf.app.detection.session.SearchSession;
+import com.crawlfree.tf.app.detection.speech.Phrases;
+import com.crawlfree.tf.app.detection.speech.SpeechScheduler;
+import com.crawlfree.tf.app.detection.speech.SpeechService;
 import com.crawlfree.tf.app.detection.tflite.Classifier;
+import com.crawlfree.tf.app.detection.tflite.DetectorRegistry;
+import com.crawlfree.tf.app.detection.tflite.LabelTable;
 import com.crawlfree.tf.app.detection.tflite.TFLiteObjectDetectionAPIModel;
 import com.crawlfree.tf.app.detection.tracking.MultiBoxTracker;
+import com.crawlfree.tf.app.detection.tracking.OpticalFlow;
+import com.crawlfree.tf.app.detection.voice.QueryResolver;
+import com.crawlfree.tf.app.detection.voice.VoiceInput;
 
 /**
  * An activity that uses a TensorFlowMultiBoxDetector and ObjectTracker to detect and then track
- * objects.
+ * objects. Searches run one after the other in a {@link SearchSession}: tapping the screen asks
+ * for the next object, and only the target changes while the camera and the detector stay open.
  */
-public class DetectorActivity extends CameraActivity implements OnImageAvailableListener {
+public class DetectorActivity extends CameraActivity {
   private static final Logger LOGGER = new Logger();
 
-  // Configuration values for the prepackaged SSD model.
-  private static final int TF_OD_API_INPUT_SIZE = 300;
-  private static final boolean TF_OD_API_IS_QUANTIZED = true;
-  private static final String TF_OD_API_MODEL_FILE = "detect.tflite";
-  private static final String TF_OD_API_LABELS_FILE = "file:///android_asset/labelmap.txt";
+  // Configuration values for the prepackaged SSD model, also used to preload it.
+  static final int TF_OD_API_INPUT_SIZE = 300;
+  static final boolean TF_OD_API_IS_QUANTIZED = true;
+  static final String TF_OD_API_MODEL_FILE = "detect.tflite";
+  static final String TF_OD_API_LABELS_FILE = "file:///android_asset/labelmap.txt";
+  // Objects the user can search for. Other classes are still detected, as landmarks for the scene.
+  static final String SUPPORTED_OBJECTS_FILE = "file:///android_asset/objectsfile.txt";
   private static final DetectorMode MODE = DetectorMode.TF_OD_API;
   // Minimum detection confidence to track a detection.
   private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.5f;
+  // Minimum confidence for a frame to vote for the target. This can be lower than the tracking
+  // threshold since the target is only announced once TARGET_VOTES of the last TARGET_WINDOW
+  // frames agree on it, with at least TARGET_MIN_IOU overlap.
+  private static final float MINIMUM_CONFIDENCE_TARGET = 0.4f;
+  private static final int TARGET_WINDOW = 5;
+  private static final int TARGET_VOTES = 3;
+  private static final float TARGET_MIN_IOU = 0.3f;
   private static final boolean MAINTAIN_ASPECT = false;
   private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
   private static final boolean SAVE_PREVIEW_BITMAP = false;
   private static final float TEXT_SIZE_DIP = 10;
+  // Frames in flight between conversion, inference and post-processing.
+  private static final int PIPELINE_DEPTH = 3;
+  // The detector runs on every DETECT_EVERY_K_FRAMES-th frame. In between, boxes are carried along
+  // by optical flow on the luminance plane, unless less than MIN_TRACKING_QUALITY of the flow
+  // points could be followed, in which case the detector runs on the next frame.
+  private static final boolean PROPAGATE_WITH_OPTICAL_FLOW = true;
+  private static final int DETECT_EVERY_K_FRAMES = 3;
+  private static final float MIN_TRACKING_QUALITY = 0.5f;
+  private static final int OPTICAL_FLOW_LEVELS = 2;
+  // While the scene does not change the detector is skipped, for at most MOTION_MAX_REUSE_FRAMES
+  // frames. MOTION_SENSITIVITY scales how small a change counts.
+  private static final boolean MOTION_GATING = true;
+  private static final int MOTION_GRID_WIDTH = 32;
+  private static final int MOTION_GRID_HEIGHT = 24;
+  private static final float MOTION_SENSITIVITY = 1.0f;
+  private static final int MOTION_MAX_REUSE_FRAMES = 15;
+  // Blurry frames are skipped for up to SHARPNESS_WINDOW frames, waiting for one at least
+  // SHARPNESS_ACCEPT_RATIO as sharp as the sharpest recent frame.
+  private static final boolean BLUR_FILTERING = true;
+  private static final int SHARPNESS_STEP = 4;
+  private static final int SHARPNESS_WINDOW = 4;
+  private static final float SHARPNESS_ACCEPT_RATIO = 0.7f;
+  // Label of the first object to search for, as passed by the VoiceActivity.
+  static final String EXTRA_TARGET_LABEL = "VOICE_ID";
+  private static final int VOICE_PERMISSION_REQUEST = 2;
+  // Latency percentiles and counters are shown in the bottom sheet every STATS_INTERVAL_MS, and
+  // written to STATS_FILE in the app's external files directory every STATS_DUMP_INTERVAL_MS.
+  private static final long STATS_INTERVAL_MS = 2000;
+  private static final long STATS_DUMP_INTERVAL_MS = 10000;
+  private static final String STATS_FILE = "pipeline_stats.txt";
+  private static final boolean LOG_DETECTOR_STATS = true;
   OverlayView trackingOverlay;
   private Integer sensorOrientation;
 
   private Classifier detector;
 
-  private long lastProcessingTimeMs;
-  private Bitmap rgbFrameBitmap = null;
   private Bitmap croppedBitmap = null;
-  private Bitmap cropCopyBitmap = null;
+  private int[] croppedPixels = null;
+  private int cropSize;
 
-  private boolean computingDetection = false;
+  private YuvToTensorConverter tensorConverter;
+  private FramePipeline pipeline;
 
-  private long timestamp = 0;
+  // Detection only runs while searching, the camera and the detector stay open in between.
+  private final SearchSession session = new SearchSession();
+  // Generation of the search the target voter is collecting votes for.
+  private int voterGeneration = -1;
 
-  private Matrix frameToCropTransform;
-  private Matrix cropToFrameTransform;
+  private long timestamp = 0;
 
   private MultiBoxTracker tracker;
+  private OpticalFlow opticalFlow;
+  private MotionGate motionGate;
+  private SharpnessSelector sharpnessSelector;
+  private int framesSinceDetection = 0;
+  // Set when frames resume after a pause, so that the frame thread starts tracking afresh.
+  private volatile boolean trackingStale = false;
+
+  // Post-processing thread state: the confident results of the current frame mapped into the
+  // preview frame, in pooled recognitions of our own since the frame's results are read-only.
+  private final List<Classifier.Recognition> mappedRecognitions =
+      new ArrayList<Classifier.Recognition>();
+  private Classifier.Recognition[] mappedPool = new Classifier.Recognition[0];
+  private RectF[] mappedLocations = new RectF[0];
+  private final RectF cropLocation = new RectF();
+  private final float[] cropCorner = new float[2];
+
+  // Post-processing thread state for the periodic stats.
+  private final StringBuilder statsBuilder = new StringBuilder();
+  private long lastStatsMs = 0;
+  private long lastStatsDumpMs = 0;
+
+  private final SceneAnalyzer sceneAnalyzer = new SceneAnalyzer();
+  private final DetectionVoter targetVoter =
+      new DetectionVoter(TARGET_WINDOW, TARGET_VOTES, TARGET_MIN_IOU);
 
   private BorderedText borderedText;
 
-  private TextToSpeech textToSpeech;
+  private SpeechService speech;
+  private final AudioGuidance audioGuidance = new AudioGuidance();
+  private final float[] targetPosition = new float[2];
+  private LabelTable labelTable;
+  private SpeechScheduler speechScheduler;
+  private QueryResolver queryResolver;
+  private VoiceInput voiceInput;
+  // Whether the recognizer should be listening, i.e. the activity is in the foreground.
+  private boolean voiceActive = false;
+  // Target set from the partial results of the utterance being spoken, or -1.
+  private int utteranceClassId = -1;
+  // Whether the utterance being spoken started a search rather than changing its target.
+  private boolean utteranceStartedSearch = false;
+  // Whether the utterance being spoken was asked for by touching the screen.
+  private boolean queryRequested = false;
+
+  // Ends the announcement, and with it the search, once everything about it has been said. Also
+  // restarts the recognizer, which would otherwise act on what it heard the app say.
+  private final SpeechService.Listener speechListener =
+      new SpeechService.Listener() {
+        @Override
+        public void onIdle() {
+          finishAnnouncementIfIdle();
+          runOnUiThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  resumeListening();
+                }
+              });
+        }
+      };
+
+  @Override
+  protected void onCreate(final Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    // Conversions get the cores the interpreter leaves idle.
+    imageOps = RowBandExecutor.getShared(TFLiteObjectDetectionAPIModel.NUM_THREADS);
+    if (VoiceInput.isAvailable(this)) {
+      voiceInput = new VoiceInput(this, new QueryListener());
+      voiceInput.setContinuous(true);
+    }
+    // Touching the screen anywhere asks for the next object, as in the VoiceActivity.
+    findViewById(R.id.container)
+        .setOnClickListener(
+            new View.OnClickListener() {
+              @Override
+              public void onClick(final View view) {
+                listenForQuery();
+              }
+            });
+  }
 
-  private ArrayList <String> supportedObjects = new ArrayList<>();
+  @Override
+  public synchronized void onDestroy() {
+    if (voiceInput != null) {
+      voiceInput.destroy();
+    }
+    super.onDestroy();
+  }
 
   @Override
   public void onPreviewSizeChosen(final Size size, final int rotation) {
@@ -107,26 +249,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     tracker = new MultiBoxTracker(this);
 
-    int cropSize = TF_OD_API_INPUT_SIZE;
-
-    try {
-      detector =
-          TFLiteObjectDetectionAPIModel.create(
-              getAssets(),
-              TF_OD_API_MODEL_FILE,
-              TF_OD_API_LABELS_FILE,
-              TF_OD_API_INPUT_SIZE,
-              TF_OD_API_IS_QUANTIZED);
-      cropSize = TF_OD_API_INPUT_SIZE;
-    } catch (final IOException e) {
-      e.printStackTrace();
-      LOGGER.e(e, "Exception initializing classifier!");
-      Toast toast =
-          Toast.makeText(
-              getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
-      toast.show();
-      finish();
-    }
+    cropSize = TF_OD_API_INPUT_SIZE;
 
     previewWidth = size.getWidth();
     previewHeight = size.getHeight();
@@ -135,17 +258,43 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-    rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-    croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
-
-    frameToCropTransform =
-        ImageUtils.getTransformationMatrix(
-            previewWidth, previewHeight,
-            cropSize, cropSize,
-            sensorOrientation, MAINTAIN_ASPECT);
+    if (PROPAGATE_WITH_OPTICAL_FLOW) {
+      opticalFlow = new OpticalFlow(previewWidth, previewHeight, OPTICAL_FLOW_LEVELS);
+    }
+    if (MOTION_GATING) {
+      motionGate =
+          new MotionGate(
+              previewWidth,
+              previewHeight,
+              MOTION_GRID_WIDTH,
+              MOTION_GRID_HEIGHT,
+              MOTION_SENSITIVITY,
+              MOTION_MAX_REUSE_FRAMES);
+    }
+    if (BLUR_FILTERING) {
+      sharpnessSelector =
+          new SharpnessSelector(
+              previewWidth,
+              previewHeight,
+              SHARPNESS_STEP,
+              SHARPNESS_WINDOW,
+              SHARPNESS_ACCEPT_RATIO);
+    }
+    if (SAVE_PREVIEW_BITMAP) {
+      croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+      croppedPixels = new int[cropSize * cropSize];
+    }
 
-    cropToFrameTransform = new Matrix();
-    frameToCropTransform.invert(cropToFrameTransform);
+    tensorConverter =
+        new YuvToTensorConverter(
+            new CropTransform(
+                previewWidth, previewHeight,
+                cropSize, cropSize,
+                sensorOrientation, MAINTAIN_ASPECT),
+            TF_OD_API_IS_QUANTIZED,
+            TFLiteObjectDetectionAPIModel.IMAGE_MEAN,
+            TFLiteObjectDetectionAPIModel.IMAGE_STD,
+            imageOps);
 
     trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
     trackingOverlay.addCallback(
@@ -160,251 +309,671 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         });
 
     tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
+
+    if (pipeline != null) {
+      pipeline.stop();
+    }
+    pipeline = new FramePipeline(PIPELINE_DEPTH, tensorConverter, new DetectionStages());
+    if (detector != null) {
+      pipeline.start();
+    }
+  }
+
+  @Override
+  public synchronized void onResume() {
+    super.onResume();
+
+    speech = SpeechService.getInstance();
+    speechScheduler = SpeechScheduler.getInstance();
+    speech.addListener(speechListener);
+    audioGuidance.start();
+
+    // The registry keeps the model loaded between searches, so this is normally instant.
+    try {
+      detector =
+          DetectorRegistry.acquire(
+              getAssets(),
+              TF_OD_API_MODEL_FILE,
+              TF_OD_API_LABELS_FILE,
+              SUPPORTED_OBJECTS_FILE,
+              TF_OD_API_INPUT_SIZE,
+              TF_OD_API_IS_QUANTIZED);
+      detector.enableStatLogging(LOG_DETECTOR_STATS);
+      labelTable = LabelTable.load(getAssets(), TF_OD_API_LABELS_FILE, SUPPORTED_OBJECTS_FILE);
+      if (queryResolver == null) {
+        queryResolver = new QueryResolver(labelTable);
+      }
+    } catch (final IOException e) {
+      e.printStackTrace();
+      LOGGER.e(e, "Exception initializing classifier!");
+      Toast toast =
+          Toast.makeText(
+              getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
+      toast.show();
+      finish();
+      return;
+    }
+
+    // The first search is requested by the VoiceActivity, later ones from within this activity.
+    final String requestedLabel = getIntent().getStringExtra(EXTRA_TARGET_LABEL);
+    if (requestedLabel != null) {
+      getIntent().removeExtra(EXTRA_TARGET_LABEL);
+      final int classId = labelTable.getClassId(requestedLabel);
+      if (labelTable.isSupported(classId)) {
+        startSearch(classId);
+      }
+    }
+
+    // Boxes, flow pyramid and gate references all describe the scene from before the pause.
+    trackingStale = true;
+    if (pipeline != null) {
+      pipeline.start();
+    }
+
+    // Listen while searching, so that the target can be changed at any time.
+    voiceActive = true;
+    resumeListening();
+  }
+
+  @Override
+  public synchronized void onPause() {
+    voiceActive = false;
+    if (voiceInput != null) {
+      voiceInput.cancel();
+    }
+    speech.removeListener(speechListener);
+    audioGuidance.stop();
+    if (pipeline != null) {
+      pipeline.stop();
+    }
+    DetectorRegistry.release(detector);
+    detector = null;
+    super.onPause();
   }
 
   @Override
   protected void processImage() {
     ++timestamp;
     final long currTimestamp = timestamp;
+    if (trackingStale) {
+      trackingStale = false;
+      resetTracking();
+    }
+
+    // A still scene keeps its results, a moving one is tracked, a changed one is detected again.
+    long stageStart = System.nanoTime();
+    final MotionGate.Decision decision =
+        motionGate != null
+            ? motionGate.evaluate(getLuminance(), getLuminanceStride())
+            : MotionGate.Decision.TRACK;
+    stageStart = frameStats.record(FrameStage.MOTION_GATING, stageStart);
+
+    // Carry the boxes to this frame while the luminance plane is still valid.
+    boolean detect = decision == MotionGate.Decision.INFER;
+    ++framesSinceDetection;
+    if (opticalFlow == null) {
+      detect |= decision == MotionGate.Decision.TRACK;
+    } else if (decision != MotionGate.Decision.REUSE) {
+      opticalFlow.nextFrame(getLuminance(), getLuminanceStride());
+      final float quality = tracker.propagate(opticalFlow, currTimestamp);
+      frameStats.record(FrameStage.OPTICAL_FLOW, stageStart);
+      detect |=
+          (decision == MotionGate.Decision.TRACK && framesSinceDetection >= DETECT_EVERY_K_FRAMES)
+              || quality < MIN_TRACKING_QUALITY;
+    }
     trackingOverlay.postInvalidate();
 
-    // No mutex needed as this method is not reentrant.
-    if (computingDetection) {
-      readyForNextImage();
-      return;
+    // Steer the user with the freshest position of the target, every frame.
+    final boolean searching = session.isSearching();
+    if (searching && tracker.getTargetPosition(session.getTargetClassId(), targetPosition)) {
+      audioGuidance.setTarget(targetPosition[0], targetPosition[1]);
+    } else {
+      audioGuidance.clearTarget();
     }
-    computingDetection = true;
-    LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
 
-    rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+    // A motion-blurred frame is rarely worth an inference, a sharper one is usually close behind.
+    if (detect && searching && sharpnessSelector != null) {
+      stageStart = System.nanoTime();
+      final float sharpness = sharpnessSelector.measure(getLuminance(), getLuminanceStride());
+      frameStats.record(FrameStage.SHARPNESS, stageStart);
+      if (!sharpnessSelector.accept(sharpness)) {
+        LOGGER.v("Skipping blurry frame %d, sharpness %.1f", currTimestamp, sharpness);
+        detect = false;
+      }
+    }
 
+    // Between searches frames are only tracked, the detector waits for the next target.
+    if (searching && detect) {
+      if (pipeline.submit(currTimestamp)) {
+        framesSinceDetection = 0;
+        if (motionGate != null) {
+          motionGate.onInference();
+        }
+        if (sharpnessSelector != null) {
+          sharpnessSelector.onSubmitted();
+        }
+      } else {
+        LOGGER.v("Dropping frame %d, all pipeline slots are busy.", currTimestamp);
+      }
+    }
     readyForNextImage();
+  }
 
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-    // For examining the actual TF input.
-    if (SAVE_PREVIEW_BITMAP) {
-      ImageUtils.saveBitmap(croppedBitmap);
+  /** Forgets everything learnt from earlier frames. Called on the frame thread. */
+  private void resetTracking() {
+    if (opticalFlow != null) {
+      opticalFlow.reset();
+    }
+    if (motionGate != null) {
+      motionGate.reset();
     }
+    tracker.reset();
+    framesSinceDetection = 0;
+  }
 
-    runInBackground(
-        new Runnable() {
-          @Override
-          public void run() {
-            LOGGER.i("Running detection on image " + currTimestamp);
-            final long startTime = SystemClock.uptimeMillis();
-            final List<Classifier.Recognition> results = detector.recognizeImage(croppedBitmap);
-            lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-            cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-            final Canvas canvas = new Canvas(cropCopyBitmap);
-            final Paint paint = new Paint();
-            paint.setColor(Color.RED);
-            paint.setStyle(Style.STROKE);
-            paint.setStrokeWidth(2.0f);
-
-            float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-            switch (MODE) {
-              case TF_OD_API:
-                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                break;
-            }
+  /** The conversion, inference and post-processing work of the {@link FramePipeline}. */
+  private class DetectionStages implements FramePipeline.Stages {
+    @Override
+    public void convert(final PipelineFrame frame) {
+      LOGGER.i("Preparing image " + frame.getTimestamp() + " for detection in bg thread.");
+
+      // Rotate, scale and convert the frame into the model input in a single pass.
+      convertToTensor(tensorConverter, frame.getTensor());
+
+      // For examining the actual TF input.
+      if (SAVE_PREVIEW_BITMAP) {
+        convertToArgb(tensorConverter, croppedPixels);
+        croppedBitmap.setPixels(croppedPixels, 0, cropSize, 0, 0, cropSize, cropSize);
+        ImageUtils.saveBitmap(croppedBitmap);
+      }
+    }
 
-            final List<Classifier.Recognition> mappedRecognitions = new LinkedList<Classifier.Recognition>();
-
-            supportedObjects.add("handbag");
-            supportedObjects.add("umbrella");
-            supportedObjects.add("laptop");
-            supportedObjects.add("mouse");
-            supportedObjects.add("remote");
-            supportedObjects.add("keyboard");
-            supportedObjects.add("book");
-            supportedObjects.add("cup");
-            supportedObjects.add("backpack");
-            supportedObjects.add("suitcase");
-            supportedObjects.add("glass");
-            supportedObjects.add("fork");
-            supportedObjects.add("knife");
-            supportedObjects.add("spoon");
-            supportedObjects.add("toothbrush");
-            supportedObjects.add("bottle");
-            supportedObjects.add("chair");
-
-            final List <Classifier.Recognition> finalFrameScene = results;
-            List <Classifier.Recognition> uniqueScene     = detector.recognizeImage(croppedBitmap);
-            Classifier.Recognition desiredObject = null;
-
-            textToSpeech = new TextToSpeech(DetectorActivity.this, new TextToSpeech.OnInitListener() {
+    @Override
+    public void infer(final PipelineFrame frame) {
+      LOGGER.i("Running detection on image " + frame.getTimestamp());
+      final long startTime = System.nanoTime();
+      frame.setResults(detector.recognizeTensor(frame.getTensor()));
+      final long endTime = frameStats.record(FrameStage.INFERENCE, startTime);
+      frame.setInferenceTimeMs((endTime - startTime) / 1000000);
+    }
+
+    @Override
+    public void postProcess(final PipelineFrame frame) {
+      if (!session.isSearching()) {
+        return;
+      }
+      // The generation is read first, the target written before it always belongs to it.
+      final int searchGeneration = session.getGeneration();
+      final int targetClassId = session.getTargetClassId();
+      if (searchGeneration != voterGeneration) {
+        // Votes for the previous target say nothing about the new one.
+        targetVoter.reset();
+        voterGeneration = searchGeneration;
+      }
+      final long currTimestamp = frame.getTimestamp();
+      final long lastProcessingTimeMs = frame.getInferenceTimeMs();
+      final List<Classifier.Recognition> results = frame.getResults();
+
+      float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+      switch (MODE) {
+        case TF_OD_API:
+          minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+          break;
+      }
+
+      // Everything below is derived from this frame's single inference.
+      final long analysisStart = System.nanoTime();
+      sceneAnalyzer.analyze(results, targetClassId, MINIMUM_CONFIDENCE_TARGET);
+      final Classifier.Recognition desiredObject = sceneAnalyzer.getTarget();
+
+      // Only announce the target once enough recent frames agree on it.
+      targetVoter.nextFrame();
+      boolean targetConfirmed = false;
+      if (desiredObject != null) {
+        targetVoter.record(desiredObject);
+        targetConfirmed = targetVoter.isConfirmed(desiredObject.getClassId());
+        LOGGER.v(
+            "Target %s score over time: %.2f",
+            desiredObject.getTitle(), targetVoter.getScore(desiredObject.getClassId()));
+      }
+      frameStats.record(FrameStage.SCENE_ANALYSIS, analysisStart);
+
+      if (targetConfirmed
+          && labelTable.isSupported(desiredObject.getClassId())
+          && session.found(searchGeneration)) {
+        Vibrator v = (Vibrator) getSystemService(VIBRATOR_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+          v.vibrate(VibrationEffect.createOneShot(100, VibrationEffect.DEFAULT_AMPLITUDE));
+        } else {
+          v.vibrate(100);
+        }
+        // Nothing said during the announcement is meant as a query.
+        runOnUiThread(
+            new Runnable() {
               @Override
-              public void onInit(int i) {
-                if(i == TextToSpeech.SUCCESS){
-                  int lang = textToSpeech.setLanguage(Locale.ENGLISH);
+              public void run() {
+                if (voiceInput != null) {
+                  voiceInput.cancel();
                 }
               }
             });
+        System.out.println("Desired Object: "+desiredObject.getTitle()+", "+desiredObject.getConfidence());
+        if (speechScheduler.submit(
+            SpeechScheduler.Type.TARGET_FOUND,
+            Phrases.found(labelTable.getLabel(targetClassId)))) {
+          System.out.println("Results List o/p:");
+          for (int obj = 0; obj < results.size(); obj++){
+            System.out.println(results.get(obj).getTitle() + ", " + results.get(obj).getConfidence() +
+                    ", " + results.get(obj).getLocation());
+          }
+
+          System.out.println("Unique List:");
+          for (int obj = 0; obj < sceneAnalyzer.getSceneSize(); obj++) {
+            final Classifier.Recognition object = sceneAnalyzer.getSceneObject(obj);
+            System.out.println(object.getTitle() + ", " + object.getConfidence() +
+                    ", " + object.getLocation());
+          }
 
-            String currLabelFromVoice = getIntent().getStringExtra("VOICE_ID");
-            currLabelFromVoice.toLowerCase();
-
-            for (final Classifier.Recognition result : results) {
-              final RectF location = result.getLocation();
-              if (location != null && result.getConfidence() >= minimumConfidence) {
-                canvas.drawRect(location, paint);
-
-                String currLabel = result.getTitle();
-
-                for(int i=0; i<supportedObjects.size(); i++){
-                  if(currLabel.equals(supportedObjects.get(i)) && currLabelFromVoice.equals(currLabel)){
-                    Vibrator v = (Vibrator) getSystemService(VIBRATOR_SERVICE);
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                      v.vibrate(VibrationEffect.createOneShot(100, VibrationEffect.DEFAULT_AMPLITUDE));
-                    } else {
-                      v.vibrate(100);
-                    }
-                    desiredObject = result;
-                    System.out.println("Desired Object: "+desiredObject.getTitle()+", "+desiredObject.getConfidence());
-                    int speech = textToSpeech.speak("stop moving, I found your " +currLabelFromVoice+" here, " +
-                                    "it's in your walking direction", TextToSpeech.QUEUE_ADD,null);
-                    if(speech == textToSpeech.SUCCESS){
-                      System.out.println("Results List o/p:");
-                      for (int obj = 0; obj < results.size(); obj++){
-                        //int speech2 = textToSpeech.speak(results.get(obj).getTitle(), TextToSpeech.QUEUE_FLUSH,null);
-                        System.out.println(results.get(obj).getTitle() + ", " + results.get(obj).getConfidence() +
-                                ", " + results.get(obj).getLocation());
-                      }
-                      //textToSpeech.stop();
-                      //break;
-                      ///*************************
-                      //finalFrameScene = results;
-                      ///*************************
-                      uniqueScene     = results;
-
-                      // getting the targeted object with the highest confidence:
-                      ///*************************
-                      Classifier.Recognition targetObjectFromLastSceneMaxConfidence = finalFrameScene.get(0);
-                      //System.out.println("Final Frame Scene List o/p:");
-                      for (int objj = 0; objj < finalFrameScene.size(); objj++){
-                        if (finalFrameScene.get(objj).getTitle().equals(currLabelFromVoice)){
-                            targetObjectFromLastSceneMaxConfidence = finalFrameScene.get(objj);
-                        }
-
-                        if ((targetObjectFromLastSceneMaxConfidence != null) &&
-                                (targetObjectFromLastSceneMaxConfidence.getTitle().equals(finalFrameScene.get(objj).getTitle())) &&
-                                (targetObjectFromLastSceneMaxConfidence.getConfidence() <= finalFrameScene.get(objj).getConfidence())){
-                            targetObjectFromLastSceneMaxConfidence = finalFrameScene.get(objj);
-                        }
-                      }
-                      System.out.println("highest confidence targeted object: " +
-                              targetObjectFromLastSceneMaxConfidence.getTitle() + ", " +
-                              targetObjectFromLastSceneMaxConfidence.getConfidence());
-                      ///*************************
-
-                      System.out.println("Describing the scene:");
-                      for (int objj = 0; objj < uniqueScene.size(); objj++){
-                          if (uniqueScene.get(objj).getTitle().equals(currLabelFromVoice)){
-                              uniqueScene.remove(uniqueScene.get(objj));
-                          }
-                      }
-                      for (int objj2 = 0; objj2 < uniqueScene.size(); objj2++){
-                          Classifier.Recognition object = uniqueScene.get(objj2);
-                          for (int objj3 = 0; objj3 < uniqueScene.size(); objj3++) {
-                              if ( (object.getTitle().equals(uniqueScene.get(objj3).getTitle())
-                                      || object.equals(uniqueScene.get(objj3))) &&
-                                      object.getConfidence() > uniqueScene.get(objj3).getConfidence()) {
-                                  uniqueScene.remove(uniqueScene.get(objj3));
-                              }
-                          }
-                      }
-
-                      System.out.println("Unique List:");
-                      for (int objj4 = 0; objj4 < uniqueScene.size(); objj4++) {
-                          System.out.println(uniqueScene.get(objj4).getTitle() +
-                                          ", " + uniqueScene.get(objj4).getConfidence() +
-                                  ", " + uniqueScene.get(objj4).getLocation());
-                      }
-                      ///*************************
-
-                      Classifier.Recognition neighbouringObject = null;
-                      for (int objj5 = 0; objj5 < uniqueScene.size(); objj5++) {
-                          if (uniqueScene.get(objj5).getTitle().equals(currLabelFromVoice)) {
-                              continue;
-                          } else {
-                              neighbouringObject = uniqueScene.get(objj5);
-                              if (uniqueScene.get(objj5++).getConfidence() > neighbouringObject.getConfidence()) {
-                                  neighbouringObject = uniqueScene.get(objj5++);
-                              }
-                          }
-                      }
-                      System.out.println("neighbouring object: " + neighbouringObject.getTitle() + ", " +
-                              neighbouringObject.getConfidence());
-
-
-                      ///*************************
-                      // conditions on frames intersection ........
-                      int speech2 = -5, speech5 = -5;
-                      for (int objj6 = 0; objj6 < uniqueScene.size(); objj6++) {
-                          if (uniqueScene.get(objj6).getLocation().contains(desiredObject.getLocation())){
-                              speech5 = textToSpeech.speak(" It's on the " + uniqueScene.get(objj6).getTitle(),
-                                      TextToSpeech.QUEUE_ADD,null);
-                              if (speech5 == TextToSpeech.SUCCESS) {
-                                  break;
-                              }
-                          } else {
-                              speech2 = textToSpeech.speak(" It's besides the " + neighbouringObject.getTitle(),
-                                      TextToSpeech.QUEUE_ADD,null);
-                              if (speech2 == TextToSpeech.SUCCESS){
-                                  break;
-                              }
-                          }
-                      }
-
-                      /*int speech2 = textToSpeech.speak(" It's besides the " + finalFrameScene.get(2).getTitle(),
-                              TextToSpeech.QUEUE_ADD,null);*/
-
-                      if(speech2 == TextToSpeech.SUCCESS || speech5 == TextToSpeech.SUCCESS){
-                          int speech3 = textToSpeech.speak("if you want to find another object, you are ready to do it now.",
-                                  TextToSpeech.QUEUE_ADD,null);
-                          Intent backToVoiceActivity = new Intent(getBaseContext(), VoiceActivity.class);
-                          startActivity(backToVoiceActivity);
-                          new Handler().postDelayed(new Runnable() {
-                              @Override
-                              public void run() {
-                                  finish();
-                              }
-                          }, 5000);
-                          //finish();
-                        return;
-                      }
-                      //return;
-                    }
-                  }
+          // conditions on frames intersection ........
+          final Classifier.Recognition containerObject = sceneAnalyzer.getContainer();
+          final Classifier.Recognition neighbouringObject = sceneAnalyzer.getNeighbour();
+          if (containerObject != null) {
+            speechScheduler.submit(
+                SpeechScheduler.Type.RELATION, Phrases.on(containerObject.getTitle()));
+          } else if (neighbouringObject != null) {
+            System.out.println("neighbouring object: " + neighbouringObject.getTitle() + ", " +
+                    neighbouringObject.getConfidence());
+            speechScheduler.submit(
+                SpeechScheduler.Type.RELATION, Phrases.besides(neighbouringObject.getTitle()));
+          }
+
+          speechScheduler.submit(SpeechScheduler.Type.PROMPT, Phrases.FIND_ANOTHER);
+        }
+        // Nothing to wait for if all of it was said moments ago.
+        finishAnnouncementIfIdle();
+        return;
+      }
+
+      mappedRecognitions.clear();
+      for (final Classifier.Recognition result : results) {
+        if (result.getConfidence() < minimumConfidence) {
+          continue;
+        }
+        final int index = mappedRecognitions.size();
+        final Classifier.Recognition mapped = getMappedRecognition(index);
+        mapped.copyFrom(result);
+        result.getLocation(cropLocation);
+        mapToFrame(cropLocation, mappedLocations[index]);
+        mappedRecognitions.add(mapped);
+      }
+
+      final long trackingStart = System.nanoTime();
+      tracker.trackResults(mappedRecognitions, currTimestamp);
+      frameStats.record(FrameStage.TRACKING, trackingStart);
+      trackingOverlay.postInvalidate();
+      if (motionGate != null) {
+        LOGGER.v(
+            "Motion gate: %d inferred, %d tracked, %d reused",
+            motionGate.getInferFrames(),
+            motionGate.getTrackFrames(),
+            motionGate.getReuseFrames());
+      }
+      LOGGER.v(
+          "Speech: %d waiting, last lag %d ms, max lag %d ms",
+          speechScheduler.getQueueDepth(),
+          speechScheduler.getLastLagMs(),
+          speechScheduler.getMaxLagMs());
+      if (sharpnessSelector != null) {
+        LOGGER.v(
+            "Sharpness: %d frames used, %d skipped as blurry",
+            sharpnessSelector.getAcceptedFrames(),
+            sharpnessSelector.getSkippedFrames());
+      }
+
+      final long now = SystemClock.uptimeMillis();
+      final String stats;
+      if (now - lastStatsMs >= STATS_INTERVAL_MS) {
+        lastStatsMs = now;
+        stats = buildStatString();
+        if (now - lastStatsDumpMs >= STATS_DUMP_INTERVAL_MS) {
+          lastStatsDumpMs = now;
+          runInBackground(
+              new Runnable() {
+                @Override
+                public void run() {
+                  dumpStats(stats);
                 }
-                cropToFrameTransform.mapRect(location);
-                result.setLocation(location);
-                mappedRecognitions.add(result);
+              });
+        }
+      } else {
+        stats = null;
+      }
+
+      runOnUiThread(
+          new Runnable() {
+            @Override
+            public void run() {
+              showFrameInfo(previewWidth + "x" + previewHeight);
+              showCropInfo(cropSize + "x" + cropSize);
+              showInference(lastProcessingTimeMs + "ms");
+              if (stats != null) {
+                showStats(stats);
               }
             }
+          });
+    }
+  }
 
-            tracker.trackResults(mappedRecognitions, currTimestamp);
-            trackingOverlay.postInvalidate();
+  /**
+   * Maps a location in the model input back into the preview frame, with the same transform the
+   * input was cropped with. Called on the post-processing thread.
+   */
+  private void mapToFrame(final RectF crop, final RectF frame) {
+    final CropTransform transform = tensorConverter.getTransform();
+    transform.mapToSource(crop.left, crop.top, cropCorner);
+    final float left = cropCorner[0];
+    final float top = cropCorner[1];
+    transform.mapToSource(crop.right, crop.bottom, cropCorner);
+    // The rotation is a multiple of 90, so opposite corners stay opposite.
+    frame.set(
+        Math.min(left, cropCorner[0]),
+        Math.min(top, cropCorner[1]),
+        Math.max(left, cropCorner[0]),
+        Math.max(top, cropCorner[1]));
+  }
 
-            computingDetection = false;
+  /**
+   * Returns the index-th pooled recognition for {@link #mappedRecognitions}, whose location is
+   * {@code mappedLocations[index]}. Called on the post-processing thread.
+   */
+  private Classifier.Recognition getMappedRecognition(final int index) {
+    if (index >= mappedPool.length) {
+      final int count = Math.max(index + 1, mappedPool.length * 2);
+      final Classifier.Recognition[] grownPool = new Classifier.Recognition[count];
+      final RectF[] grownLocations = new RectF[count];
+      System.arraycopy(mappedPool, 0, grownPool, 0, mappedPool.length);
+      System.arraycopy(mappedLocations, 0, grownLocations, 0, mappedLocations.length);
+      for (int i = mappedPool.length; i < count; ++i) {
+        grownLocations[i] = new RectF();
+        grownPool[i] = new Classifier.Recognition(null, null, 0, grownLocations[i]);
+      }
+      mappedPool = grownPool;
+      mappedLocations = grownLocations;
+    }
+    return mappedPool[index];
+  }
 
-            runOnUiThread(
-                new Runnable() {
-                  @Override
-                  public void run() {
-                    showFrameInfo(previewWidth + "x" + previewHeight);
-                    showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
-                    showInference(lastProcessingTimeMs + "ms");
-                  }
-                });
-          }
-        });
+  /**
+   * Returns the latency percentiles of every stage, p50/p90/p99/max, with the frame and queue
+   * counters. Called on the post-processing thread.
+   */
+  private String buildStatString() {
+    final StringBuilder builder = statsBuilder;
+    builder.setLength(0);
+    builder
+        .append("frames ")
+        .append(pipeline.getSubmittedFrames())
+        .append(", dropped ")
+        .append(getDroppedCameraFrames())
+        .append(" camera ")
+        .append(pipeline.getDroppedFrames())
+        .append(" pipeline\n");
+    builder
+        .append("queues inference ")
+        .append(pipeline.getInferenceQueueDepth())
+        .append(" (max ")
+        .append(pipeline.getMaxInferenceQueueDepth())
+        .append("), post ")
+        .append(pipeline.getPostProcessQueueDepth())
+        .append(", speech ")
+        .append(speechScheduler.getQueueDepth())
+        .append('\n');
+    builder
+        .append("speech submitted ")
+        .append(speechScheduler.getSubmittedCount())
+        .append(" said ")
+        .append(speechScheduler.getSpokenCount())
+        .append(" coalesced ")
+        .append(speechScheduler.getCoalescedCount())
+        .append(" stale ")
+        .append(speechScheduler.getStaleCount())
+        .append(", lag last ")
+        .append(speechScheduler.getLastLagMs())
+        .append(" mean ")
+        .append(speechScheduler.getMeanLagMs())
+        .append(" max ")
+        .append(speechScheduler.getMaxLagMs())
+        .append(" ms\n");
+    if (motionGate != null) {
+      builder
+          .append("gate inferred ")
+          .append(motionGate.getInferFrames())
+          .append(" tracked ")
+          .append(motionGate.getTrackFrames())
+          .append(" reused ")
+          .append(motionGate.getReuseFrames())
+          .append(", motion ");
+      appendScore(builder, motionGate.getLastMotion());
+      builder.append(" change ");
+      appendScore(builder, motionGate.getLastChange());
+      builder.append('\n');
+    }
+    if (sharpnessSelector != null) {
+      builder
+          .append("sharpness used ")
+          .append(sharpnessSelector.getAcceptedFrames())
+          .append(" skipped ")
+          .append(sharpnessSelector.getSkippedFrames())
+          .append(", last ");
+      appendScore(builder, sharpnessSelector.getLastSharpness());
+      builder.append('\n');
+    }
+    frameStats.appendTo(builder);
+    final Classifier classifier = detector;
+    if (classifier != null) {
+      builder.append(classifier.getStatString());
+    }
+    LatencyStats.appendLine(builder, "end_to_end", pipeline.getFrameLatency());
+    LatencyStats.appendLine(builder, "speech_dispatch", speechScheduler.getDispatchLatency());
+    return builder.toString();
+  }
+
+  /** Appends a score with one decimal, or "-" for the Float.MAX_VALUE of a missing reference. */
+  private static void appendScore(final StringBuilder builder, final float score) {
+    if (score == Float.MAX_VALUE) {
+      builder.append('-');
+    } else {
+      builder.append(Math.round(score * 10) / 10.0f);
+    }
+  }
+
+  private void dumpStats(final String stats) {
+    final File directory = getExternalFilesDir(null);
+    if (directory == null) {
+      return;
+    }
+    try {
+      final FileWriter writer = new FileWriter(new File(directory, STATS_FILE));
+      try {
+        writer.write("uptime " + SystemClock.uptimeMillis() + " ms\n");
+        writer.write(stats);
+      } finally {
+        writer.close();
+      }
+    } catch (final IOException e) {
+      LOGGER.w("Could not write %s: %s", STATS_FILE, e);
+    }
+  }
+
+  /**
+   * Receives queries, said while the camera keeps running. A confident partial result changes the
+   * target right away, mid-sweep, and the complete utterance confirms or corrects it.
+   */
+  private class QueryListener implements VoiceInput.Listener {
+    @Override
+    public void onPartialResults(final List<String> hypotheses) {
+      // Anything heard while the app talks is most likely the app itself.
+      if (queryResolver == null || speech.isSpeaking()) {
+        return;
+      }
+      final QueryResolver.Match match = queryResolver.resolvePartial(hypotheses);
+      if (match == null
+          || match.classId == utteranceClassId
+          || !labelTable.isSupported(match.classId)) {
+        return;
+      }
+      LOGGER.i(
+          "Partial query \"%s\" resolved to %s, score %.2f",
+          hypotheses.get(match.hypothesis), labelTable.getLabel(match.classId), match.score);
+      utteranceClassId = match.classId;
+      utteranceStartedSearch |= startSearch(match.classId);
+    }
+
+    @Override
+    public void onResults(final List<String> hypotheses, final float[] confidences) {
+      final int partialClassId = utteranceClassId;
+      final boolean requested = queryRequested;
+      boolean startedSearch = utteranceStartedSearch;
+      endUtterance();
+      if (queryResolver == null || speech.isSpeaking()) {
+        return;
+      }
+      final QueryResolver.Match match = queryResolver.resolve(hypotheses, confidences);
+      if (match == null) {
+        // Listening goes on all the time, only answer what was clearly meant as a query.
+        if (requested) {
+          LOGGER.i("Query \"%s\" does not contain any known object", hypotheses.get(0));
+          speechScheduler.submit(SpeechScheduler.Type.PROMPT, Phrases.NOT_SUPPORTED);
+        }
+        return;
+      }
+      if (!labelTable.isSupported(match.classId)) {
+        LOGGER.i(
+            "Query \"%s\" asks for unsupported %s",
+            hypotheses.get(0), labelTable.getLabel(match.classId));
+        speechScheduler.submit(SpeechScheduler.Type.PROMPT, Phrases.NOT_SUPPORTED);
+        return;
+      }
+      LOGGER.i(
+          "Query \"%s\" resolved to %s, score %.2f",
+          hypotheses.get(match.hypothesis), labelTable.getLabel(match.classId), match.score);
+      if (match.classId != partialClassId) {
+        startedSearch |= startSearch(match.classId);
+      }
+      speechScheduler.submit(
+          SpeechScheduler.Type.PROMPT, Phrases.lookingFor(labelTable.getLabel(match.classId)));
+      if (startedSearch) {
+        speechScheduler.submit(SpeechScheduler.Type.PROMPT, Phrases.START_MOVING);
+      }
+    }
+
+    @Override
+    public void onError(final int error) {
+      endUtterance();
+      speechScheduler.submit(SpeechScheduler.Type.PROMPT, Phrases.NOT_HEARD);
+    }
+  }
+
+  private void endUtterance() {
+    utteranceClassId = -1;
+    utteranceStartedSearch = false;
+    queryRequested = false;
+  }
+
+  private boolean hasAudioPermission() {
+    return Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+        || checkSelfPermission(Manifest.permission.RECORD_AUDIO)
+            == PackageManager.PERMISSION_GRANTED;
+  }
+
+  /**
+   * Starts listening from scratch, unless the app is announcing or talking. Whatever the recognizer
+   * heard so far is dropped. Called on the UI thread.
+   */
+  private void resumeListening() {
+    if (voiceInput == null
+        || !voiceActive
+        || !hasAudioPermission()
+        || session.getState() == SearchSession.State.ANNOUNCING
+        || speech.isSpeaking()) {
+      return;
+    }
+    endUtterance();
+    voiceInput.start();
+  }
+
+  /** Starts listening for the next object to search for. Called on the UI thread. */
+  private void listenForQuery() {
+    if (voiceInput == null) {
+      Toast.makeText(this, "Your Device Don't Support Speech Input", Toast.LENGTH_SHORT).show();
+      return;
+    }
+    if (!hasAudioPermission()) {
+      requestPermissions(new String[] {Manifest.permission.RECORD_AUDIO}, VOICE_PERMISSION_REQUEST);
+      return;
+    }
+    // The recognizer would hear the app talking, and what it says is outdated by the new query.
+    speechScheduler.clear();
+    speech.stop();
+    if (session.getState() == SearchSession.State.ANNOUNCING) {
+      session.onAnnounced();
+    }
+    endUtterance();
+    queryRequested = true;
+    voiceInput.start();
+  }
+
+  @Override
+  public void onRequestPermissionsResult(
+      final int requestCode, final String[] permissions, final int[] grantResults) {
+    if (requestCode != VOICE_PERMISSION_REQUEST) {
+      super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+      return;
+    }
+    if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+      listenForQuery();
+    } else {
+      Toast.makeText(this, "Microphone permission is required to search", Toast.LENGTH_LONG).show();
+    }
+  }
+
+  /**
+   * Makes the class the target of the session, keeping the camera and the detector running.
+   *
+   * @return true if this started a search, false if it changed the target of a running one.
+   */
+  private boolean startSearch(final int classId) {
+    // Synthesize the announcement while the user is still searching.
+    speech.prepare(Phrases.found(labelTable.getLabel(classId)));
+    final boolean wasSearching = session.isSearching();
+    session.search(classId);
+    return !wasSearching;
+  }
+
+  private void finishAnnouncementIfIdle() {
+    if (session.getState() == SearchSession.State.ANNOUNCING
+        && speechScheduler.getQueueDepth() == 0
+        && !speech.isSpeaking()) {
+      session.onAnnounced();
+      runOnUiThread(
+          new Runnable() {
+            @Override
+            public void run() {
+              resumeListening();
+            }
+          });
+    }
   }
 
     @Override
     public void onBackPressed() {
+        // Back first ends the current search, leaving the session only when there is none.
+        if (session.getState() != SearchSession.State.LISTENING) {
+            session.cancel();
+            speechScheduler.clear();
+            speech.stop();
+            return;
+        }
         super.onBackPressed();
         startActivity(new Intent(getBaseContext(), VoiceActivity.class));
         finish();
@@ -426,13 +995,20 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     TF_OD_API;
   }
 
+  // The tasks run on the inference thread, while onPause may clear the detector field.
   @Override
   protected void setUseNNAPI(final boolean isChecked) {
-    runInBackground(() -> detector.setUseNNAPI(isChecked));
+    final Classifier classifier = detector;
+    if (pipeline != null && classifier != null) {
+      pipeline.runOnInferenceThread(() -> classifier.setUseNNAPI(isChecked));
+    }
   }
 
   @Override
   protected void setNumThreads(final int numThreads) {
-    runInBackground(() -> detector.setNumThreads(numThreads));
+    final Classifier classifier = detector;
+    if (pipeline != null && classifier != null) {
+      pipeline.runOnInferenceThread(() -> classifier.setNumThreads(numThreads));
+    }
   }
 }
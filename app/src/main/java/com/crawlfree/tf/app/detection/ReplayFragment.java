@@ -0,0 +1,59 @@
+package com.crawlfree.tf.app.detection;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.app.Fragment;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.crawlfree.tf.app.detection.source.ReplayFrameSource;
+
+/**
+ * Stands in for the camera fragments when frames are replayed from a capture file. The preview
+ * stays empty, only the overlays are drawn. Like the camera, the replay runs while the fragment is
+ * resumed, so it has stopped before the activity tears down its processing in onPause.
+ */
+public class ReplayFragment extends Fragment {
+  private final ReplayFrameSource source;
+  /** The layout identifier to inflate for this Fragment. */
+  private final int layout;
+
+  public ReplayFragment(final ReplayFrameSource source, final int layout) {
+    this.source = source;
+    this.layout = layout;
+  }
+
+  @Override
+  public View onCreateView(
+      final LayoutInflater inflater, final ViewGroup container, final Bundle savedInstanceState) {
+    return inflater.inflate(layout, container, false);
+  }
+
+  @Override
+  public void onResume() {
+    super.onResume();
+    source.start();
+  }
+
+  @Override
+  public void onPause() {
+    source.stop();
+    super.onPause();
+  }
+}
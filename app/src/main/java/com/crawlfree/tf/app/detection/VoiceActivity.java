@@ -2,37 +2,46 @@ package com.crawlfree.tf.app.detection;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import android.Manifest;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.speech.RecognizerIntent;
-import android.speech.tts.TextToSpeech;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.crawlfree.tf.app.detection.env.Logger;
+import com.crawlfree.tf.app.detection.speech.Phrases;
+import com.crawlfree.tf.app.detection.speech.SpeechScheduler;
+import com.crawlfree.tf.app.detection.speech.SpeechService;
+import com.crawlfree.tf.app.detection.tflite.LabelTable;
+import com.crawlfree.tf.app.detection.voice.QueryResolver;
+import com.crawlfree.tf.app.detection.voice.VoiceInput;
+
 import org.tensorflow.lite.examples.detection.R;
 
-import java.util.ArrayList;
-import java.util.Locale;
+import java.io.IOException;
+import java.util.List;
 
 public class VoiceActivity extends AppCompatActivity {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int VOICE_PERMISSION_REQUEST = 10;
 
     private TextView txvResult;
-    private TextToSpeech textToSpeech;
-    private TextToSpeech textToSpeechWelcome;
+    private SpeechService speech;
+    private SpeechScheduler speechScheduler;
     private String inputVoiceWordFromBlind;
     Intent intentPassBlindInput;
 
-    private String welcomeVoiceMessage =
-            /*"Welcome to crawl free, our app will help you finding your attachments around you, " +
-                    "it's quite simple" +*/
-                            " touch the screen anywhere and tell us what you are looking for,  " +
-                    //"and then start moving your phone slowly, " +
-                                    " let's start !";
-
-    private ArrayList <String> supportedObjects = new ArrayList<>();
+    private LabelTable labelTable;
+    private QueryResolver queryResolver;
+    private VoiceInput voiceInput;
+    // Set once the query has been handed over to the DetectorActivity.
+    private boolean handedOver = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -40,124 +49,128 @@ public class VoiceActivity extends AppCompatActivity {
         setContentView(R.layout.activity_voice);
 
         txvResult = findViewById(R.id.txvResult);
+        speech = SpeechService.getInstance();
+        speechScheduler = SpeechScheduler.getInstance();
+        try {
+            labelTable = LabelTable.load(getAssets(),
+                    DetectorActivity.TF_OD_API_LABELS_FILE, DetectorActivity.SUPPORTED_OBJECTS_FILE);
+            queryResolver = new QueryResolver(labelTable);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(this, "Supported objects could not be loaded", Toast.LENGTH_SHORT).show();
+            finish();
+        }
+        if (VoiceInput.isAvailable(this)) {
+            voiceInput = new VoiceInput(this, new QueryListener());
+        }
 
         getWindow().setFlags(WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE, WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE);
     }
 
     public void getSpeechInput(View view) {
 
-        Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
-        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
-        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, Locale.getDefault());
-
-        if (intent.resolveActivity(getPackageManager()) != null) {
-            startActivityForResult(intent, 10);
-
-        } else {
+        if (voiceInput == null) {
             Toast.makeText(this, "Your Device Don't Support Speech Input", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && checkSelfPermission(Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[] {Manifest.permission.RECORD_AUDIO}, VOICE_PERMISSION_REQUEST);
+            return;
         }
+        // Listening happens right here, without switching to the recognizer activity.
+        voiceInput.start();
     }
 
     @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        super.onActivityResult(requestCode, resultCode, data);
-
-        boolean sorry = false;
-
-        switch (requestCode) {
-            case 10:
-                if (resultCode == RESULT_OK && data != null) {
-                    ArrayList<String> result = data.getStringArrayListExtra(RecognizerIntent.EXTRA_RESULTS);
-                    txvResult.setText(result.get(0));
-
-                    supportedObjects.add("handbag");
-                    supportedObjects.add("umbrella");
-                    supportedObjects.add("laptop");
-                    supportedObjects.add("mouse");
-                    supportedObjects.add("remote");
-                    supportedObjects.add("keyboard");
-                    supportedObjects.add("book");
-                    supportedObjects.add("cup");
-                    supportedObjects.add("backpack");
-                    supportedObjects.add("suitcase");
-                    supportedObjects.add("glass");
-                    supportedObjects.add("fork");
-                    supportedObjects.add("knife");
-                    supportedObjects.add("spoon");
-                    supportedObjects.add("toothbrush");
-                    supportedObjects.add("bottle");
-                    supportedObjects.add("chair");
-
-                    String targetedObjWord = "";
-                    inputVoiceWordFromBlind = result.get(0);
-                    System.out.println(inputVoiceWordFromBlind);
-                    String [] splittedSentece = inputVoiceWordFromBlind.split(" ");
-                    for (String split : splittedSentece){
-                        System.out.println(split);
-                    }
-                    for (int word = 0; word < splittedSentece.length; word++){
-                        if (supportedObjects.contains(splittedSentece[word])) {
-                            targetedObjWord = splittedSentece[word];
-                            sorry = false;
-                            break;
-                        } else {
-                            System.out.println("sentence does not contain any supported objects.");
-                            sorry = true;
-                        }
-                    }
-                    targetedObjWord.toLowerCase();
-                    System.out.println("targeted object: " + targetedObjWord);
-                    System.out.println(sorry);
-                    // ****
-                    if (sorry == false){
-                        textToSpeech = new TextToSpeech(VoiceActivity.this, new TextToSpeech.OnInitListener() {
-                            @Override
-                            public void onInit(int i) {
-                                if(i == TextToSpeech.SUCCESS){
-                                    int lang = textToSpeech.setLanguage(Locale.ENGLISH);
-                                    int speech = textToSpeech.speak(" please start moving your phone around slowly ",
-                                            TextToSpeech.QUEUE_ADD,null);
-                                    if (speech == TextToSpeech.SUCCESS){
-                                        System.out.println("said start moving");
-                                    } else {
-                                        System.out.println("not said start moving");
-                                    }
-                                }
-                            }
-                        });
-                        intentPassBlindInput = new Intent(getBaseContext(), DetectorActivity.class);
-                        intentPassBlindInput.putExtra("VOICE_ID", targetedObjWord);
-                        startActivity(intentPassBlindInput);
-                        new Handler().postDelayed(new Runnable() {
-                            @Override
-                            public void run() {
-                                finish();
-                            }
-                        }, 3000);
-                    } else {
-                        System.out.println("sorry is true !!");
-                        textToSpeech = new TextToSpeech(VoiceActivity.this, new TextToSpeech.OnInitListener() {
-                            @Override
-                            public void onInit(int i) {
-                                if(i == TextToSpeech.SUCCESS){
-                                    int lang = textToSpeech.setLanguage(Locale.ENGLISH);
-                                    int speech = textToSpeech.speak(" sorry for that, our app does not support finding this object " +
-                                                    "but you can try finding another one.",
-                                            TextToSpeech.QUEUE_ADD,null);
-                                    if (speech == TextToSpeech.SUCCESS){
-                                        System.out.println("said sorry");
-                                    } else {
-                                        System.out.println("not said sorry");
-                                    }
-                                }
-                            }
-                        });
-                    }
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == VOICE_PERMISSION_REQUEST) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                getSpeechInput(null);
+            } else {
+                Toast.makeText(this, "Microphone permission is required to search", Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    private class QueryListener implements VoiceInput.Listener {
+        @Override
+        public void onPartialResults(List<String> result) {
+            txvResult.setText(result.get(0));
+            // Hand over as soon as the object is heard, instead of waiting for the end of the sentence.
+            QueryResolver.Match match = queryResolver.resolvePartial(result);
+            if (match != null && labelTable.isSupported(match.classId)) {
+                LOGGER.i(
+                        "Partial query \"%s\" resolved to %s, score %.2f",
+                        result.get(match.hypothesis), labelTable.getLabel(match.classId), match.score);
+                voiceInput.cancel();
+                startSearch(labelTable.getLabel(match.classId));
+            }
+        }
+
+        @Override
+        public void onResults(List<String> result, float[] confidences) {
+            txvResult.setText(result.get(0));
+
+            String targetedObjWord = "";
+            inputVoiceWordFromBlind = result.get(0);
+            System.out.println(inputVoiceWordFromBlind);
+            // Every hypothesis counts, the object may only be heard right in the second one.
+            QueryResolver.Match match = queryResolver.resolve(result, confidences);
+            if (match != null && labelTable.isSupported(match.classId)) {
+                targetedObjWord = labelTable.getLabel(match.classId);
+                LOGGER.i(
+                        "Query \"%s\" resolved to %s, score %.2f",
+                        result.get(match.hypothesis), targetedObjWord, match.score);
+                System.out.println("targeted object: " + targetedObjWord);
+                startSearch(targetedObjWord);
+            } else {
+                System.out.println("sentence does not contain any supported objects.");
+                if (speechScheduler.submit(SpeechScheduler.Type.PROMPT, Phrases.NOT_SUPPORTED)) {
+                    System.out.println("said sorry");
+                } else {
+                    System.out.println("not said sorry");
                 }
-                break;
+            }
+        }
+
+        @Override
+        public void onError(int error) {
+            speechScheduler.submit(SpeechScheduler.Type.PROMPT, Phrases.NOT_HEARD);
+        }
+    }
+
+    private void startSearch(String targetedObjWord) {
+        if (handedOver) {
+            return;
+        }
+        handedOver = true;
+        if (speechScheduler.submit(SpeechScheduler.Type.PROMPT, Phrases.START_MOVING)) {
+            System.out.println("said start moving");
+        } else {
+            System.out.println("not said start moving");
         }
+        // Synthesize the announcement while the user is still searching.
+        speech.prepare(Phrases.found(targetedObjWord));
+        intentPassBlindInput = new Intent(getBaseContext(), DetectorActivity.class);
+        intentPassBlindInput.putExtra(DetectorActivity.EXTRA_TARGET_LABEL, targetedObjWord);
+        startActivity(intentPassBlindInput);
+        new Handler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        }, 3000);
     }
 
+    @Override
+    protected void onDestroy() {
+        if (voiceInput != null) {
+            voiceInput.destroy();
+        }
+        super.onDestroy();
+    }
 
     @Override
     public void onBackPressed()
@@ -171,27 +184,19 @@ public class VoiceActivity extends AppCompatActivity {
         new Handler().postDelayed(new Runnable() {
             @Override
             public void run() {
-                textToSpeechWelcome = new TextToSpeech(VoiceActivity.this, new TextToSpeech.OnInitListener() {
-                    @Override
-                    public void onInit(int i) {
-                        if(i == TextToSpeech.SUCCESS){
-                            int lang = textToSpeechWelcome.setLanguage(Locale.ENGLISH);
-                            int speech = textToSpeechWelcome.speak(welcomeVoiceMessage,
-                                    TextToSpeech.QUEUE_FLUSH,null);
-                            if (speech == TextToSpeech.SUCCESS){
-                                System.out.println("said welcome");
-                                new Handler().postDelayed(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        getWindow().clearFlags(WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE);
-                                    }
-                                }, 3500);
-                            } else {
-                                System.out.println("not said welcome");
-                            }
+                // Whatever the previous screen still had to say is outdated by now.
+                speechScheduler.clear();
+                if (speechScheduler.submit(SpeechScheduler.Type.INTRODUCTION, Phrases.WELCOME)) {
+                    System.out.println("said welcome");
+                    new Handler().postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            getWindow().clearFlags(WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE);
                         }
-                    }
-                });
+                    }, 3500);
+                } else {
+                    System.out.println("not said welcome");
+                }
             }
         }, 250);
     }
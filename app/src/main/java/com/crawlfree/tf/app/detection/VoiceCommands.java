@@ -4,24 +4,19 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import android.content.Intent;
 import android.os.Bundle;
-import android.speech.tts.TextToSpeech;
 import android.view.View;
 import android.widget.Button;
 
-import org.tensorflow.lite.examples.detection.R;
+import com.crawlfree.tf.app.detection.speech.Phrases;
+import com.crawlfree.tf.app.detection.speech.SpeechScheduler;
 
-import java.util.Locale;
+import org.tensorflow.lite.examples.detection.R;
 
 public class VoiceCommands extends AppCompatActivity {
 
     private Button mTextView;
 
-    private TextToSpeech mTextToSpeech;
-
-    private String mWelcomeVoiceMessage =
-            "Welcome to crawl free, our app will help you finding your attachments around you, " +
-                    "it's quite simple, just touch the screen anywhere and tell us what are you looking for " +
-                    "and then start moving your phone slowly in a circular movement, let's start !";
+    private SpeechScheduler mSpeech;
 
     private Intent toVoiceActivity;
 
@@ -33,22 +28,13 @@ public class VoiceCommands extends AppCompatActivity {
         setContentView(R.layout.activity_voice_commands);
 
         mTextView = findViewById(R.id.button);
+        mSpeech = SpeechScheduler.getInstance();
 
         mTextView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 System.out.println("clicked");
-                mTextToSpeech = new TextToSpeech(VoiceCommands.this, new TextToSpeech.OnInitListener() {
-                    @Override
-                    public void onInit(int i) {
-                        if(i == TextToSpeech.SUCCESS){
-                            int mLang = mTextToSpeech.setLanguage(Locale.ENGLISH);
-                        }
-                    }
-                });
-                int mSpeech = mTextToSpeech.speak(mWelcomeVoiceMessage, TextToSpeech.QUEUE_FLUSH,null);
-
-                if(mSpeech == TextToSpeech.SUCCESS){
+                if (mSpeech.submit(SpeechScheduler.Type.INTRODUCTION, Phrases.INTRODUCTION)) {
                     System.out.println("voice success");
                     toVoiceActivity = new Intent(getBaseContext(), VoiceActivity.class);
                     startActivity(toVoiceActivity);
@@ -59,18 +45,6 @@ public class VoiceCommands extends AppCompatActivity {
     }
 
     private void mWelcomeVoiceMessageMethod (){
-        mTextToSpeech = new TextToSpeech(VoiceCommands.this, new TextToSpeech.OnInitListener() {
-            @Override
-            public void onInit(int i) {
-                if(i == TextToSpeech.SUCCESS){
-                    int mLang = mTextToSpeech.setLanguage(Locale.ENGLISH);
-                }
-            }
-        });
-        int mSpeech = mTextToSpeech.speak(mWelcomeVoiceMessage, TextToSpeech.QUEUE_FLUSH,null);
-
-        if(mSpeech == TextToSpeech.SUCCESS){
-            return;
-        }
+        mSpeech.submit(SpeechScheduler.Type.INTRODUCTION, Phrases.INTRODUCTION);
     }
 }
@@ -0,0 +1,186 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+/**
+ * Pure-Java equivalent of the matrix built by {@link ImageUtils#getTransformationMatrix}. Only the
+ * inverse mapping is kept, since callers need to know which source pixel every destination pixel
+ * reads from.
+ */
+public class CropTransform {
+  private final int srcWidth;
+  private final int srcHeight;
+  private final int dstWidth;
+  private final int dstHeight;
+
+  // src = [ia ib; ic id] * dst + [itx; ity]
+  private final float ia;
+  private final float ib;
+  private final float ic;
+  private final float id;
+  private final float itx;
+  private final float ity;
+
+  /**
+   * Takes the same parameters as {@link ImageUtils#getTransformationMatrix}.
+   *
+   * @param srcWidth Width of source frame.
+   * @param srcHeight Height of source frame.
+   * @param dstWidth Width of destination frame.
+   * @param dstHeight Height of destination frame.
+   * @param applyRotation Amount of rotation to apply from one frame to another. Must be a multiple
+   *     of 90.
+   * @param maintainAspectRatio If true, will ensure that scaling in x and y remains constant,
+   *     cropping the image if necessary.
+   */
+  public CropTransform(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio) {
+    this.srcWidth = srcWidth;
+    this.srcHeight = srcHeight;
+    this.dstWidth = dstWidth;
+    this.dstHeight = dstHeight;
+
+    final float cos;
+    final float sin;
+    switch (((applyRotation % 360) + 360) % 360) {
+      case 0:
+        cos = 1;
+        sin = 0;
+        break;
+      case 90:
+        cos = 0;
+        sin = 1;
+        break;
+      case 180:
+        cos = -1;
+        sin = 0;
+        break;
+      case 270:
+        cos = 0;
+        sin = -1;
+        break;
+      default:
+        cos = (float) Math.cos(Math.toRadians(applyRotation));
+        sin = (float) Math.sin(Math.toRadians(applyRotation));
+        break;
+    }
+
+    final boolean transpose = (Math.abs(applyRotation) + 90) % 180 == 0;
+    final int inWidth = transpose ? srcHeight : srcWidth;
+    final int inHeight = transpose ? srcWidth : srcHeight;
+
+    float scaleX = 1.0f;
+    float scaleY = 1.0f;
+    if (inWidth != dstWidth || inHeight != dstHeight) {
+      scaleX = dstWidth / (float) inWidth;
+      scaleY = dstHeight / (float) inHeight;
+      if (maintainAspectRatio) {
+        scaleX = scaleY = Math.max(scaleX, scaleY);
+      }
+    }
+
+    // The forward matrix only centers the frames when rotating, so do the same here.
+    final float srcCenterX = applyRotation != 0 ? srcWidth / 2.0f : 0;
+    final float srcCenterY = applyRotation != 0 ? srcHeight / 2.0f : 0;
+    final float dstCenterX = applyRotation != 0 ? dstWidth / 2.0f : 0;
+    final float dstCenterY = applyRotation != 0 ? dstHeight / 2.0f : 0;
+
+    // Forward is dst = S * R * (src - srcCenter) + dstCenter, so
+    // src = R^T * S^-1 * (dst - dstCenter) + srcCenter.
+    ia = cos / scaleX;
+    ib = sin / scaleY;
+    ic = -sin / scaleX;
+    id = cos / scaleY;
+    itx = srcCenterX - ia * dstCenterX - ib * dstCenterY;
+    ity = srcCenterY - ic * dstCenterX - id * dstCenterY;
+  }
+
+  public int getSrcWidth() {
+    return srcWidth;
+  }
+
+  public int getSrcHeight() {
+    return srcHeight;
+  }
+
+  public int getDstWidth() {
+    return dstWidth;
+  }
+
+  public int getDstHeight() {
+    return dstHeight;
+  }
+
+  /** Returns whether the rotation is a multiple of 90, so that rows map to rows or columns. */
+  public boolean isAxisAligned() {
+    return (ib == 0 && ic == 0) || (ia == 0 && id == 0);
+  }
+
+  /** Returns whether destination columns run along source rows, i.e. a 90 or 270 rotation. */
+  public boolean swapsAxes() {
+    return ia == 0 && id == 0;
+  }
+
+  /**
+   * Maps a destination x coordinate back to a source x, or to a source y if {@link #swapsAxes}.
+   * Only meaningful if {@link #isAxisAligned}, when it does not depend on the destination y.
+   */
+  public float mapColumnToSource(final float x) {
+    return swapsAxes() ? ic * x + ity : ia * x + itx;
+  }
+
+  /**
+   * Maps a destination y coordinate back to a source y, or to a source x if {@link #swapsAxes}.
+   * Only meaningful if {@link #isAxisAligned}, when it does not depend on the destination x.
+   */
+  public float mapRowToSource(final float y) {
+    return swapsAxes() ? ib * y + itx : id * y + ity;
+  }
+
+  /** Maps a point in the destination frame back into the source frame. */
+  public void mapToSource(final float dstX, final float dstY, final float[] srcPoint) {
+    srcPoint[0] = ia * dstX + ib * dstY + itx;
+    srcPoint[1] = ic * dstX + id * dstY + ity;
+  }
+
+  /**
+   * Computes, for every destination pixel in row-major order, the source pixel a nearest-neighbour
+   * resize samples. This matches what an unfiltered Canvas.drawBitmap reads.
+   *
+   * @param srcX Receives the source column, must hold dstWidth * dstHeight values.
+   * @param srcY Receives the source row, must hold dstWidth * dstHeight values.
+   */
+  public void computeSourcePixels(final int[] srcX, final int[] srcY) {
+    int i = 0;
+    for (int y = 0; y < dstHeight; ++y) {
+      final float cy = y + 0.5f;
+      for (int x = 0; x < dstWidth; ++x, ++i) {
+        final float cx = x + 0.5f;
+        srcX[i] = clamp((int) Math.floor(ia * cx + ib * cy + itx), srcWidth - 1);
+        srcY[i] = clamp((int) Math.floor(ic * cx + id * cy + ity), srcHeight - 1);
+      }
+    }
+  }
+
+  private static int clamp(final int value, final int max) {
+    return value < 0 ? 0 : (value > max ? max : value);
+  }
+}
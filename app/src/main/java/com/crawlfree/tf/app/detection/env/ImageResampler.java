@@ -0,0 +1,286 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+/**
+ * Resizes, crops and rotates ARGB_8888 frames in plain Java, with the geometry of a {@link
+ * CropTransform} and a choice of interpolation. Unlike Canvas.drawBitmap with a Matrix, the
+ * filtering and the cost are the same on every device, and it runs on a development machine.
+ *
+ * <p>Only rotations by multiples of 90 degrees are supported. Every destination column and row then
+ * reads a fixed set of source rows or columns, whose offsets and weights are computed once, so a
+ * frame is a weighted sum of a few taps per pixel.
+ */
+public class ImageResampler {
+  /** How destination pixels are computed from the source pixels around them. */
+  public enum Interpolation {
+    /** The source pixel under the center, the same pixel {@link CropTransform} picks. */
+    NEAREST,
+    /** The four source pixels around the center, weighted by distance. */
+    BILINEAR,
+    /** The mean of the source pixels covered, bilinear where the frame is enlarged. */
+    AREA
+  }
+
+  // Weights along one axis sum to 1 << WEIGHT_BITS, so that the products of both axes times a
+  // channel value still fit in an int.
+  private static final int WEIGHT_BITS = 11;
+  private static final int PRODUCT_BITS = 2 * WEIGHT_BITS;
+  private static final int PRODUCT_ROUNDING = 1 << (PRODUCT_BITS - 1);
+
+  private final int dstWidth;
+  private final int dstHeight;
+  private final RowBandExecutor executor;
+
+  // Taps of every destination column and row, as source offsets and weights. Unused taps have a
+  // zero weight.
+  private final int columnTaps;
+  private final int[] columnOffsets;
+  private final int[] columnWeights;
+  private final int rowTaps;
+  private final int[] rowOffsets;
+  private final int[] rowWeights;
+
+  // Frame being resampled, read and written by the bands of resampleRows.
+  private int[] srcPixels;
+  private int[] dstPixels;
+  private byte[] dstRgb;
+  private final RowBandExecutor.Kernel rowKernel = this::resampleRows;
+
+  /**
+   * @param transform Maps the source frame into the destination, rotating by a multiple of 90.
+   * @param interpolation How destination pixels are computed.
+   * @param executor Resamples bands of destination rows in parallel, or null to run serially.
+   */
+  public ImageResampler(
+      final CropTransform transform,
+      final Interpolation interpolation,
+      final RowBandExecutor executor) {
+    if (!transform.isAxisAligned()) {
+      throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees");
+    }
+    this.executor = executor;
+    dstWidth = transform.getDstWidth();
+    dstHeight = transform.getDstHeight();
+
+    final int srcWidth = transform.getSrcWidth();
+    final int srcHeight = transform.getSrcHeight();
+    final boolean swapped = transform.swapsAxes();
+    // The source axis each destination axis runs along, and the offset of one step on it.
+    final int columnLength = swapped ? srcHeight : srcWidth;
+    final int columnStride = swapped ? srcWidth : 1;
+    final int rowLength = swapped ? srcWidth : srcHeight;
+    final int rowStride = swapped ? 1 : srcWidth;
+
+    // Source coordinates of the edges and the centers of the destination columns and rows.
+    final float[] columnCoordinates = new float[dstWidth * 2 + 1];
+    for (int x = 0; x < columnCoordinates.length; ++x) {
+      columnCoordinates[x] = transform.mapColumnToSource(x * 0.5f);
+    }
+    final float[] rowCoordinates = new float[dstHeight * 2 + 1];
+    for (int y = 0; y < rowCoordinates.length; ++y) {
+      rowCoordinates[y] = transform.mapRowToSource(y * 0.5f);
+    }
+
+    columnTaps = countTaps(columnCoordinates, interpolation);
+    columnOffsets = new int[dstWidth * columnTaps];
+    columnWeights = new int[dstWidth * columnTaps];
+    computeTaps(
+        columnCoordinates,
+        columnLength,
+        columnStride,
+        interpolation,
+        columnTaps,
+        columnOffsets,
+        columnWeights);
+
+    rowTaps = countTaps(rowCoordinates, interpolation);
+    rowOffsets = new int[dstHeight * rowTaps];
+    rowWeights = new int[dstHeight * rowTaps];
+    computeTaps(
+        rowCoordinates, rowLength, rowStride, interpolation, rowTaps, rowOffsets, rowWeights);
+  }
+
+  /**
+   * Resamples a frame into packed ARGB_8888 pixels.
+   *
+   * @param src Source pixels, row by row without padding, at the source size of the transform.
+   * @param dst Receives the destination pixels, opaque, row by row.
+   */
+  public void resample(final int[] src, final int[] dst) {
+    dstPixels = dst;
+    run(src);
+  }
+
+  /**
+   * Resamples a frame into three bytes per pixel, red, green and blue, as quantized models take
+   * them.
+   */
+  public void resampleToRgb(final int[] src, final byte[] dst) {
+    dstRgb = dst;
+    run(src);
+  }
+
+  private void run(final int[] src) {
+    srcPixels = src;
+    if (executor != null) {
+      executor.execute(dstHeight, dstWidth * columnTaps * rowTaps, 1, rowKernel);
+    } else {
+      resampleRows(0, dstHeight);
+    }
+    srcPixels = null;
+    dstPixels = null;
+    dstRgb = null;
+  }
+
+  /** Resamples destination rows {@code startRow} to {@code endRow}. */
+  private void resampleRows(final int startRow, final int endRow) {
+    final int[] src = srcPixels;
+    for (int y = startRow; y < endRow; ++y) {
+      int i = y * dstWidth;
+      for (int x = 0; x < dstWidth; ++x, ++i) {
+        final int argb;
+        if (columnTaps == 1 && rowTaps == 1) {
+          argb = src[columnOffsets[x] + rowOffsets[y]];
+        } else {
+          argb = filterPixel(src, x, y);
+        }
+        if (dstPixels != null) {
+          dstPixels[i] = 0xff000000 | argb;
+        } else {
+          dstRgb[i * 3] = (byte) (argb >> 16);
+          dstRgb[i * 3 + 1] = (byte) (argb >> 8);
+          dstRgb[i * 3 + 2] = (byte) argb;
+        }
+      }
+    }
+  }
+
+  private int filterPixel(final int[] src, final int x, final int y) {
+    int r = PRODUCT_ROUNDING;
+    int g = PRODUCT_ROUNDING;
+    int b = PRODUCT_ROUNDING;
+    for (int j = y * rowTaps, rowEnd = j + rowTaps; j < rowEnd; ++j) {
+      final int rowWeight = rowWeights[j];
+      if (rowWeight == 0) {
+        continue;
+      }
+      final int rowOffset = rowOffsets[j];
+      for (int k = x * columnTaps, columnEnd = k + columnTaps; k < columnEnd; ++k) {
+        final int weight = rowWeight * columnWeights[k];
+        final int pixel = src[rowOffset + columnOffsets[k]];
+        r += weight * ((pixel >> 16) & 0xff);
+        g += weight * ((pixel >> 8) & 0xff);
+        b += weight * (pixel & 0xff);
+      }
+    }
+    return ((r >> PRODUCT_BITS) << 16) | ((g >> PRODUCT_BITS) << 8) | (b >> PRODUCT_BITS);
+  }
+
+  /**
+   * Returns the largest number of source pixels a destination pixel reads along one axis.
+   *
+   * @param coordinates Source coordinates of the edges and centers of the destination pixels.
+   */
+  private static int countTaps(final float[] coordinates, final Interpolation interpolation) {
+    switch (interpolation) {
+      case NEAREST:
+        return 1;
+      case BILINEAR:
+        return 2;
+      default:
+        final float scale = Math.abs(coordinates[2] - coordinates[0]);
+        return scale <= 1 ? 2 : (int) Math.ceil(scale) + 1;
+    }
+  }
+
+  /**
+   * Computes the source offsets and weights of every destination pixel along one axis.
+   *
+   * @param coordinates Source coordinates of the edges and centers of the destination pixels.
+   * @param length Number of source pixels along the axis, taps are clamped to it.
+   * @param stride Offset between neighbouring source pixels along the axis.
+   */
+  private static void computeTaps(
+      final float[] coordinates,
+      final int length,
+      final int stride,
+      final Interpolation interpolation,
+      final int taps,
+      final int[] offsets,
+      final int[] weights) {
+    final float[] tapWeights = new float[taps];
+    final int[] tapIndices = new int[taps];
+    for (int i = 0; i < coordinates.length / 2; ++i) {
+      final float start = Math.min(coordinates[2 * i], coordinates[2 * i + 2]);
+      final float end = Math.max(coordinates[2 * i], coordinates[2 * i + 2]);
+      final float center = coordinates[2 * i + 1];
+      for (int t = 0; t < taps; ++t) {
+        tapIndices[t] = 0;
+        tapWeights[t] = 0;
+      }
+      if (interpolation == Interpolation.NEAREST) {
+        tapIndices[0] = (int) Math.floor(center);
+        tapWeights[0] = 1;
+      } else if (interpolation == Interpolation.BILINEAR || end - start <= 1) {
+        // Pixel centers are at half coordinates.
+        final float position = center - 0.5f;
+        final int first = (int) Math.floor(position);
+        final float fraction = position - first;
+        tapIndices[0] = first;
+        tapWeights[0] = 1 - fraction;
+        tapIndices[1] = first + 1;
+        tapWeights[1] = fraction;
+      } else {
+        final int first = (int) Math.floor(start);
+        for (int t = 0; t < taps && first + t < end; ++t) {
+          final int pixel = first + t;
+          tapIndices[t] = pixel;
+          tapWeights[t] = Math.min(end, pixel + 1) - Math.max(start, pixel);
+        }
+      }
+      quantize(tapIndices, tapWeights, length, stride, offsets, weights, i * taps);
+    }
+  }
+
+  /** Clamps the taps to the frame and stores them with integer weights summing to one. */
+  private static void quantize(
+      final int[] tapIndices,
+      final float[] tapWeights,
+      final int length,
+      final int stride,
+      final int[] offsets,
+      final int[] weights,
+      final int start) {
+    final int taps = tapIndices.length;
+    float total = 0;
+    for (int t = 0; t < taps; ++t) {
+      total += tapWeights[t];
+    }
+    int sum = 0;
+    int largest = 0;
+    for (int t = 0; t < taps; ++t) {
+      final int index = Math.min(Math.max(tapIndices[t], 0), length - 1);
+      offsets[start + t] = index * stride;
+      weights[start + t] = Math.round(tapWeights[t] / total * (1 << WEIGHT_BITS));
+      sum += weights[start + t];
+      if (weights[start + t] > weights[start + largest]) {
+        largest = t;
+      }
+    }
+    weights[start + largest] += (1 << WEIGHT_BITS) - sum;
+  }
+}
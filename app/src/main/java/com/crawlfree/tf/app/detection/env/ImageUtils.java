@@ -20,6 +20,7 @@ import android.graphics.Matrix;
 import android.os.Environment;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 
 /** Utility class for manipulating images. */
 public class ImageUtils {
@@ -86,25 +87,24 @@ public class ImageUtils {
   }
 
   public static void convertYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
-    final int frameSize = width * height;
-    for (int j = 0, yp = 0; j < height; j++) {
-      int uvp = frameSize + (j >> 1) * width;
-      int u = 0;
-      int v = 0;
-
-      for (int i = 0; i < width; i++, yp++) {
-        int y = 0xff & input[yp];
-        if ((i & 1) == 0) {
-          v = 0xff & input[uvp++];
-          u = 0xff & input[uvp++];
-        }
-
-        output[yp] = YUV2RGB(y, u, v);
-      }
-    }
+    convertYUV420SPToARGB8888(input, width, height, output, true);
+  }
+
+  /**
+   * Converts an NV21 frame to ARGB, see {@link YuvToArgbConverter}.
+   *
+   * @param bitExact Whether to reproduce {@link #YUV2RGB} exactly, rather than round to nearest.
+   */
+  public static void convertYUV420SPToARGB8888(
+      byte[] input, int width, int height, int[] output, boolean bitExact) {
+    YuvToArgbConverter.convertYUV420SP(ByteBuffer.wrap(input), width, height, output, bitExact);
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
+  /**
+   * Reference conversion of a single pixel. The frame conversions reproduce it with lookup tables,
+   * see {@link YuvToArgbConverter}.
+   */
+  static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = (y - 16) < 0 ? 0 : (y - 16);
     u -= 128;
@@ -138,17 +138,37 @@ public class ImageUtils {
       int uvRowStride,
       int uvPixelStride,
       int[] out) {
-    int yp = 0;
-    for (int j = 0; j < height; j++) {
-      int pY = yRowStride * j;
-      int pUV = uvRowStride * (j >> 1);
-
-      for (int i = 0; i < width; i++) {
-        int uv_offset = pUV + (i >> 1) * uvPixelStride;
+    convertYUV420ToARGB8888(
+        yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out, true);
+  }
 
-        out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
-      }
-    }
+  /**
+   * Converts a YUV_420_888 frame to ARGB, see {@link YuvToArgbConverter}.
+   *
+   * @param bitExact Whether to reproduce {@link #YUV2RGB} exactly, rather than round to nearest.
+   */
+  public static void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out,
+      boolean bitExact) {
+    YuvToArgbConverter.convertYUV420(
+        ByteBuffer.wrap(yData),
+        ByteBuffer.wrap(uData),
+        ByteBuffer.wrap(vData),
+        width,
+        height,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        out,
+        bitExact);
   }
 
   /**
@@ -0,0 +1,139 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+/**
+ * A histogram of durations with fixed, log-linear buckets, in the manner of an HDR histogram: every
+ * power of two of microseconds is split into 16 linear sub-buckets, so that any recorded value is
+ * known to within 1/16 of itself, from a microsecond up to about a minute, in 368 counters.
+ *
+ * <p>Recording is a few arithmetic operations and an uncontended lock, and never allocates, so it
+ * can be done on every frame of every stage.
+ */
+public final class LatencyHistogram {
+  // 2^SUB_BUCKET_BITS sub-buckets per power of two.
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Durations are clamped to 2^MAX_EXPONENT microseconds, about 67 s.
+  private static final int MAX_EXPONENT = 26;
+  private static final long MAX_MICROS = (1L << MAX_EXPONENT) - 1;
+  private static final int BUCKETS = bucketIndex(MAX_MICROS) + 1;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long totalMicros;
+  private long maxMicros;
+
+  /** Records the time elapsed since {@code startNanos}, and returns the current time. */
+  public long recordSince(final long startNanos) {
+    final long now = System.nanoTime();
+    recordNanos(now - startNanos);
+    return now;
+  }
+
+  public void recordNanos(final long nanos) {
+    recordMicros(nanos / 1000);
+  }
+
+  public synchronized void recordMicros(final long micros) {
+    final long clamped = Math.min(Math.max(micros, 0), MAX_MICROS);
+    ++counts[bucketIndex(clamped)];
+    ++count;
+    totalMicros += clamped;
+    maxMicros = Math.max(maxMicros, clamped);
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getMeanMicros() {
+    return count > 0 ? totalMicros / count : 0;
+  }
+
+  public synchronized long getMaxMicros() {
+    return maxMicros;
+  }
+
+  /**
+   * Returns the duration that the given fraction of recorded values do not exceed, rounded up to
+   * the top of its bucket, or 0 if nothing was recorded.
+   *
+   * @param quantile Between 0 and 1, e.g. 0.99 for the 99th percentile.
+   */
+  public synchronized long getQuantileMicros(final double quantile) {
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(bucketTop(i), maxMicros);
+      }
+    }
+    return maxMicros;
+  }
+
+  public synchronized void reset() {
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts[i] = 0;
+    }
+    count = 0;
+    totalMicros = 0;
+    maxMicros = 0;
+  }
+
+  /**
+   * Appends "p50/p90/p99/max" in milliseconds with one decimal, followed by the count, without
+   * going through String.format.
+   */
+  public synchronized void appendSummary(final StringBuilder builder) {
+    appendMillis(builder, getQuantileMicros(0.5));
+    builder.append('/');
+    appendMillis(builder, getQuantileMicros(0.9));
+    builder.append('/');
+    appendMillis(builder, getQuantileMicros(0.99));
+    builder.append('/');
+    appendMillis(builder, maxMicros);
+    builder.append(" ms (").append(count).append(')');
+  }
+
+  private static void appendMillis(final StringBuilder builder, final long micros) {
+    final long tenths = (micros + 50) / 100;
+    builder.append(tenths / 10).append('.').append(tenths % 10);
+  }
+
+  private static int bucketIndex(final long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Returns the largest value that falls into a bucket. */
+  private static long bucketTop(final int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
@@ -0,0 +1,74 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import java.util.Locale;
+
+/** One {@link LatencyHistogram} per stage of some processing, the stages being an enum. */
+public final class LatencyStats<S extends Enum<S>> {
+  private static final int NAME_WIDTH = 18;
+
+  private final LatencyHistogram[] histograms;
+  private final String[] names;
+
+  public LatencyStats(final Class<S> stageClass) {
+    final S[] stages = stageClass.getEnumConstants();
+    histograms = new LatencyHistogram[stages.length];
+    names = new String[stages.length];
+    for (int i = 0; i < stages.length; ++i) {
+      histograms[i] = new LatencyHistogram();
+      names[i] = stages[i].name().toLowerCase(Locale.US);
+    }
+  }
+
+  public LatencyHistogram get(final S stage) {
+    return histograms[stage.ordinal()];
+  }
+
+  /**
+   * Records the time a stage took since {@code startNanos}, and returns the current time so that
+   * the next stage can be timed from it.
+   */
+  public long record(final S stage, final long startNanos) {
+    return histograms[stage.ordinal()].recordSince(startNanos);
+  }
+
+  /** Appends one line per stage that recorded anything, with its percentiles. */
+  public void appendTo(final StringBuilder builder) {
+    for (int i = 0; i < histograms.length; ++i) {
+      if (histograms[i].getCount() > 0) {
+        appendLine(builder, names[i], histograms[i]);
+      }
+    }
+  }
+
+  /** Appends a line with the name and percentiles of a histogram, aligned with the others. */
+  public static void appendLine(
+      final StringBuilder builder, final String name, final LatencyHistogram histogram) {
+    builder.append(name);
+    for (int pad = name.length(); pad < NAME_WIDTH; ++pad) {
+      builder.append(' ');
+    }
+    histogram.appendSummary(builder);
+    builder.append('\n');
+  }
+
+  public void reset() {
+    for (final LatencyHistogram histogram : histograms) {
+      histogram.reset();
+    }
+  }
+}
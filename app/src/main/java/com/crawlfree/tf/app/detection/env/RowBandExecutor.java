@@ -0,0 +1,176 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits per-pixel image kernels into bands of rows, run at once on a small pool of dedicated
+ * threads and on the calling thread. The pool is sized to the cores the interpreter leaves idle, so
+ * conversions overlapping with an inference do not compete with it for cores.
+ *
+ * <p>Images too small to repay waking the workers, and calls made while the pool is busy with
+ * another caller, run serially on the calling thread. A call never allocates.
+ */
+public final class RowBandExecutor {
+  // Below this many pixels, waking the workers costs about as much as it saves.
+  private static final int MIN_PARALLEL_PIXELS = 32 * 1024;
+
+  /** Work on a band of rows. Bands of one call are disjoint and may run concurrently. */
+  public interface Kernel {
+    void run(int startRow, int endRow);
+  }
+
+  private static RowBandExecutor shared;
+
+  private final Thread[] workers;
+  // Last job handed to each worker, a worker runs a band whenever its entry changes.
+  private final AtomicIntegerArray assignedJobs;
+  private final AtomicInteger pendingBands = new AtomicInteger();
+  private final AtomicBoolean busy = new AtomicBoolean();
+  private int job = 0;
+
+  // The current job, published to the workers through assignedJobs.
+  private Kernel kernel;
+  private int rows;
+  private int bandRows;
+  private volatile Thread caller;
+  private volatile Throwable failure;
+
+  /**
+   * @param workerThreads Threads besides the calling one, 0 to always run serially.
+   */
+  public RowBandExecutor(final int workerThreads) {
+    workers = new Thread[workerThreads];
+    assignedJobs = new AtomicIntegerArray(workerThreads);
+    for (int i = 0; i < workerThreads; ++i) {
+      final int worker = i;
+      workers[i] = new Thread(() -> work(worker), "image-ops-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Returns the process-wide pool, created on first use with a worker for every core beyond
+   * {@code reservedThreads}.
+   *
+   * @param reservedThreads Cores left to other work, typically the interpreter's threads.
+   */
+  public static synchronized RowBandExecutor getShared(final int reservedThreads) {
+    if (shared == null) {
+      shared =
+          new RowBandExecutor(
+              Math.max(0, Runtime.getRuntime().availableProcessors() - reservedThreads));
+    }
+    return shared;
+  }
+
+  /** Returns the largest number of bands a call is split into. */
+  public int getParallelism() {
+    return workers.length + 1;
+  }
+
+  /**
+   * Runs {@code kernel} over {@code rows} rows and returns once every band is done, even if one of
+   * them failed. An exception or error thrown by any band is rethrown here.
+   *
+   * @param pixelsPerRow Work per row, to decide whether splitting is worth it.
+   * @param rowAlignment Every band but the last starts and ends on a multiple of this, e.g. 2 for
+   *     kernels working on 2x2 blocks.
+   */
+  public void execute(
+      final int rows, final int pixelsPerRow, final int rowAlignment, final Kernel kernel) {
+    if (workers.length == 0
+        || (long) rows * pixelsPerRow < MIN_PARALLEL_PIXELS
+        || !busy.compareAndSet(false, true)) {
+      kernel.run(0, rows);
+      return;
+    }
+    try {
+      final int maxBands = workers.length + 1;
+      final int alignedRows = (rows + maxBands - 1) / maxBands + rowAlignment - 1;
+      bandRows = Math.max(rowAlignment, alignedRows / rowAlignment * rowAlignment);
+      final int bands = (rows + bandRows - 1) / bandRows;
+      this.kernel = kernel;
+      this.rows = rows;
+      caller = Thread.currentThread();
+      failure = null;
+      pendingBands.set(bands - 1);
+      ++job;
+      for (int band = 1; band < bands; ++band) {
+        assignedJobs.set(band - 1, job);
+        LockSupport.unpark(workers[band - 1]);
+      }
+
+      Throwable bandFailure = null;
+      try {
+        kernel.run(0, Math.min(bandRows, rows));
+      } catch (final Throwable t) {
+        bandFailure = t;
+      }
+      // The workers still read the job, so the next call must not replace it before they are done.
+      while (pendingBands.get() > 0) {
+        LockSupport.park(this);
+      }
+      this.kernel = null;
+      if (bandFailure == null) {
+        bandFailure = failure;
+      }
+      if (bandFailure != null) {
+        rethrow(bandFailure);
+      }
+    } finally {
+      busy.set(false);
+    }
+  }
+
+  /** Worker {@code i} runs band {@code i + 1}, band 0 is run by the caller. */
+  private void work(final int worker) {
+    final int band = worker + 1;
+    int lastJob = 0;
+    while (true) {
+      int assignedJob;
+      while ((assignedJob = assignedJobs.get(worker)) == lastJob) {
+        LockSupport.park(this);
+      }
+      lastJob = assignedJob;
+      try {
+        kernel.run(band * bandRows, Math.min((band + 1) * bandRows, rows));
+      } catch (final Throwable t) {
+        // Caught whatever it is, since a dead worker would leave every later call waiting for it.
+        failure = t;
+      } finally {
+        if (pendingBands.decrementAndGet() == 0) {
+          LockSupport.unpark(caller);
+        }
+      }
+    }
+  }
+
+  private static void rethrow(final Throwable t) {
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    throw new RuntimeException(t);
+  }
+}
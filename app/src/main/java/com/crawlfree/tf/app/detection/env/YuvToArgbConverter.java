@@ -0,0 +1,327 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven YUV to ARGB conversion, in plain Java so that it can be checked on a JVM by the unit
+ * tests.
+ *
+ * <p>The integer arithmetic of {@link ImageUtils#YUV2RGB} is linear up to the final clamp, so it is
+ * split into per-channel contribution tables, and the clamp and shift into one table per channel.
+ * Pixels are converted in 2x2 blocks that share their chroma samples, which are loaded and looked
+ * up once per block. Semi-planar chroma, with a pixel stride of 2, gets a loop of its own.
+ *
+ * <p>Planes are read in place with absolute gets, so camera buffers need not be copied first.
+ *
+ * <p>In bit-exact mode the result is identical to {@link ImageUtils#YUV2RGB}, which truncates the
+ * channel values. Otherwise they are rounded to nearest, at the same cost.
+ */
+public final class YuvToArgbConverter {
+  // Channel values are 18-bit fixed point, with 10 fractional bits dropped at the end.
+  private static final int FRACTION_BITS = 10;
+  private static final int HALF = 1 << (FRACTION_BITS - 1);
+
+  // Contributions of every 8-bit sample to the fixed-point channel values.
+  private static final int[] LUMA = new int[256];
+  private static final int[] LUMA_ROUNDED = new int[256];
+  private static final int[] RED_V = new int[256];
+  private static final int[] GREEN_V = new int[256];
+  private static final int[] GREEN_U = new int[256];
+  private static final int[] BLUE_U = new int[256];
+
+  // Clamped channels already in place in an ARGB int, indexed by the sum of the contributions
+  // shifted down, plus CLAMP_OFFSET.
+  private static final int CLAMP_OFFSET;
+  private static final int[] RED;
+  private static final int[] GREEN;
+  private static final int[] BLUE;
+
+  static {
+    for (int i = 0; i < 256; ++i) {
+      LUMA[i] = 1192 * Math.max(i - 16, 0);
+      LUMA_ROUNDED[i] = LUMA[i] + HALF;
+      RED_V[i] = 1634 * (i - 128);
+      GREEN_V[i] = -833 * (i - 128);
+      GREEN_U[i] = -400 * (i - 128);
+      BLUE_U[i] = 2066 * (i - 128);
+    }
+    final int min = Math.min(Math.min(RED_V[0], GREEN_V[255] + GREEN_U[255]), BLUE_U[0]);
+    final int max =
+        LUMA_ROUNDED[255] + Math.max(Math.max(RED_V[255], GREEN_V[0] + GREEN_U[0]), BLUE_U[255]);
+    CLAMP_OFFSET = -(min >> FRACTION_BITS);
+    final int size = CLAMP_OFFSET + (max >> FRACTION_BITS) + 1;
+    RED = new int[size];
+    GREEN = new int[size];
+    BLUE = new int[size];
+    for (int i = 0; i < size; ++i) {
+      final int channel = Math.min(Math.max(i - CLAMP_OFFSET, 0), 255);
+      RED[i] = 0xff000000 | channel << 16;
+      GREEN[i] = channel << 8;
+      BLUE[i] = channel;
+    }
+  }
+
+  private YuvToArgbConverter() {}
+
+  /** Converts a single pixel, like {@link ImageUtils#YUV2RGB} in bit-exact mode. */
+  public static int convertPixel(final int y, final int u, final int v, final boolean bitExact) {
+    final int luma = (bitExact ? LUMA : LUMA_ROUNDED)[y];
+    return argb(luma, RED_V[v], GREEN_V[v] + GREEN_U[u], BLUE_U[u]);
+  }
+
+  /** Converts an NV21 frame, whose chroma plane interleaves V before U after the luminance. */
+  public static void convertYUV420SP(
+      final ByteBuffer input,
+      final int width,
+      final int height,
+      final int[] output,
+      final boolean bitExact) {
+    convertYUV420SPRows(input, width, height, output, bitExact, 0, height);
+  }
+
+  /** Like {@link #convertYUV420SP}, in bands of rows run in parallel by {@code executor}. */
+  public static void convertYUV420SP(
+      final ByteBuffer input,
+      final int width,
+      final int height,
+      final int[] output,
+      final boolean bitExact,
+      final RowBandExecutor executor) {
+    executor.execute(
+        height,
+        width,
+        2,
+        (startRow, endRow) ->
+            convertYUV420SPRows(input, width, height, output, bitExact, startRow, endRow));
+  }
+
+  /** Converts rows {@code startRow} (even) to {@code endRow} of an NV21 frame. */
+  private static void convertYUV420SPRows(
+      final ByteBuffer input,
+      final int width,
+      final int height,
+      final int[] output,
+      final boolean bitExact,
+      final int startRow,
+      final int endRow) {
+    final int[] luma = bitExact ? LUMA : LUMA_ROUNDED;
+    final int frameSize = width * height;
+    for (int j = startRow; j < endRow; j += 2) {
+      final int row = j * width;
+      final int nextRow = j + 1 < endRow ? row + width : -1;
+      final int uvRow = frameSize + (j >> 1) * width;
+      convertRowsSemiPlanar(
+          input, row, nextRow, input, uvRow + 1, input, uvRow, width, output, row, nextRow, luma);
+    }
+  }
+
+  /** Converts a YUV_420_888 frame as delivered by the Camera2 API. */
+  public static void convertYUV420(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] output,
+      final boolean bitExact) {
+    convertYUV420Rows(
+        yData,
+        uData,
+        vData,
+        width,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        output,
+        bitExact,
+        0,
+        height);
+  }
+
+  /** Like {@link #convertYUV420}, in bands of rows run in parallel by {@code executor}. */
+  public static void convertYUV420(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] output,
+      final boolean bitExact,
+      final RowBandExecutor executor) {
+    executor.execute(
+        height,
+        width,
+        2,
+        (startRow, endRow) ->
+            convertYUV420Rows(
+                yData,
+                uData,
+                vData,
+                width,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                output,
+                bitExact,
+                startRow,
+                endRow));
+  }
+
+  /** Converts rows {@code startRow} (even) to {@code endRow} of a YUV_420_888 frame. */
+  private static void convertYUV420Rows(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] output,
+      final boolean bitExact,
+      final int startRow,
+      final int endRow) {
+    final int[] luma = bitExact ? LUMA : LUMA_ROUNDED;
+    for (int j = startRow; j < endRow; j += 2) {
+      final int row = j * yRowStride;
+      final int nextRow = j + 1 < endRow ? row + yRowStride : -1;
+      final int uvRow = (j >> 1) * uvRowStride;
+      final int out = j * width;
+      final int nextOut = nextRow >= 0 ? out + width : -1;
+      if (uvPixelStride == 2) {
+        convertRowsSemiPlanar(
+            yData, row, nextRow, uData, uvRow, vData, uvRow, width, output, out, nextOut, luma);
+      } else {
+        convertRows(
+            yData,
+            row,
+            nextRow,
+            uData,
+            vData,
+            uvRow,
+            uvPixelStride,
+            width,
+            output,
+            out,
+            nextOut,
+            luma);
+      }
+    }
+  }
+
+  /**
+   * Converts one or two rows sharing a row of chroma with a pixel stride of 2.
+   *
+   * @param nextRow Offset of the second luminance row, or -1 if there is only one.
+   * @param nextOut Offset of the second output row, or -1 if there is only one.
+   */
+  private static void convertRowsSemiPlanar(
+      final ByteBuffer yData,
+      final int row,
+      final int nextRow,
+      final ByteBuffer uData,
+      final int uOffset,
+      final ByteBuffer vData,
+      final int vOffset,
+      final int width,
+      final int[] output,
+      final int out,
+      final int nextOut,
+      final int[] luma) {
+    final int evenWidth = width & ~1;
+    int x = 0;
+    for (; x < evenWidth; x += 2) {
+      final int u = 0xff & uData.get(uOffset + x);
+      final int v = 0xff & vData.get(vOffset + x);
+      final int rv = RED_V[v];
+      final int guv = GREEN_V[v] + GREEN_U[u];
+      final int bu = BLUE_U[u];
+      output[out + x] = argb(luma[0xff & yData.get(row + x)], rv, guv, bu);
+      output[out + x + 1] = argb(luma[0xff & yData.get(row + x + 1)], rv, guv, bu);
+      if (nextRow >= 0) {
+        output[nextOut + x] = argb(luma[0xff & yData.get(nextRow + x)], rv, guv, bu);
+        output[nextOut + x + 1] = argb(luma[0xff & yData.get(nextRow + x + 1)], rv, guv, bu);
+      }
+    }
+    if (x < width) {
+      final int u = 0xff & uData.get(uOffset + x);
+      final int v = 0xff & vData.get(vOffset + x);
+      final int rv = RED_V[v];
+      final int guv = GREEN_V[v] + GREEN_U[u];
+      final int bu = BLUE_U[u];
+      output[out + x] = argb(luma[0xff & yData.get(row + x)], rv, guv, bu);
+      if (nextRow >= 0) {
+        output[nextOut + x] = argb(luma[0xff & yData.get(nextRow + x)], rv, guv, bu);
+      }
+    }
+  }
+
+  /** Like {@link #convertRowsSemiPlanar}, for any chroma pixel stride. */
+  private static void convertRows(
+      final ByteBuffer yData,
+      final int row,
+      final int nextRow,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int uvRow,
+      final int uvPixelStride,
+      final int width,
+      final int[] output,
+      final int out,
+      final int nextOut,
+      final int[] luma) {
+    final int evenWidth = width & ~1;
+    int x = 0;
+    int uv = uvRow;
+    for (; x < evenWidth; x += 2, uv += uvPixelStride) {
+      final int u = 0xff & uData.get(uv);
+      final int v = 0xff & vData.get(uv);
+      final int rv = RED_V[v];
+      final int guv = GREEN_V[v] + GREEN_U[u];
+      final int bu = BLUE_U[u];
+      output[out + x] = argb(luma[0xff & yData.get(row + x)], rv, guv, bu);
+      output[out + x + 1] = argb(luma[0xff & yData.get(row + x + 1)], rv, guv, bu);
+      if (nextRow >= 0) {
+        output[nextOut + x] = argb(luma[0xff & yData.get(nextRow + x)], rv, guv, bu);
+        output[nextOut + x + 1] = argb(luma[0xff & yData.get(nextRow + x + 1)], rv, guv, bu);
+      }
+    }
+    if (x < width) {
+      final int u = 0xff & uData.get(uv);
+      final int v = 0xff & vData.get(uv);
+      final int rv = RED_V[v];
+      final int guv = GREEN_V[v] + GREEN_U[u];
+      final int bu = BLUE_U[u];
+      output[out + x] = argb(luma[0xff & yData.get(row + x)], rv, guv, bu);
+      if (nextRow >= 0) {
+        output[nextOut + x] = argb(luma[0xff & yData.get(nextRow + x)], rv, guv, bu);
+      }
+    }
+  }
+
+  private static int argb(final int luma, final int rv, final int guv, final int bu) {
+    return RED[((luma + rv) >> FRACTION_BITS) + CLAMP_OFFSET]
+        | GREEN[((luma + guv) >> FRACTION_BITS) + CLAMP_OFFSET]
+        | BLUE[((luma + bu) >> FRACTION_BITS) + CLAMP_OFFSET];
+  }
+}
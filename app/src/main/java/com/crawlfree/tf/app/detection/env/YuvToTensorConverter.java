@@ -0,0 +1,245 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts a YUV_420_888 (or NV21) camera frame straight into a model input tensor in one pass.
+ * Rotation, scaling and cropping are resolved once into per-pixel source indices, so each frame
+ * only reads the source pixels that end up in the tensor and never goes through a Bitmap.
+ *
+ * <p>The same pixels can also be converted to ARGB_8888 instead, to look at what the model sees
+ * without converting the whole frame and scaling it down.
+ */
+public class YuvToTensorConverter {
+  private final CropTransform transform;
+  private final int numPixels;
+  private final boolean isQuantized;
+  private final RowBandExecutor executor;
+
+  // Source pixel sampled by every tensor pixel, independent of the plane layout.
+  private final int[] srcX;
+  private final int[] srcY;
+
+  // Plane offsets derived from srcX/srcY for the strides seen last.
+  private final int[] yIndex;
+  private final int[] uvIndex;
+  private int cachedYRowStride = -1;
+  private int cachedUvRowStride = -1;
+  private int cachedUvPixelStride = -1;
+
+  // Planes of the frame being converted, read by the bands of convertRows.
+  private ByteBuffer frameY;
+  private ByteBuffer frameU;
+  private ByteBuffer frameV;
+  private int frameUOffset;
+  private int frameVOffset;
+  private final RowBandExecutor.Kernel rowKernel = this::convertRows;
+  // Receives the pixels instead of the staging arrays while converting to ARGB.
+  private int[] argbOutput;
+
+  // Staging arrays so the tensor is written with a single bulk put.
+  private final byte[] quantizedValues;
+  private final float[] floatValues;
+  private final float[] normalizedChannel = new float[256];
+
+  private ByteBuffer floatViewOwner;
+  private FloatBuffer floatView;
+
+  /**
+   * @param transform Maps the preview frame into the tensor, see {@link CropTransform}.
+   * @param isQuantized Whether the model takes one byte per channel instead of floats.
+   * @param imageMean Mean subtracted from every channel for float models.
+   * @param imageStd Standard deviation every channel is divided by for float models.
+   * @param executor Converts bands of tensor rows in parallel, or null to convert serially.
+   */
+  public YuvToTensorConverter(
+      final CropTransform transform,
+      final boolean isQuantized,
+      final float imageMean,
+      final float imageStd,
+      final RowBandExecutor executor) {
+    this.transform = transform;
+    this.isQuantized = isQuantized;
+    this.executor = executor;
+    numPixels = transform.getDstWidth() * transform.getDstHeight();
+
+    srcX = new int[numPixels];
+    srcY = new int[numPixels];
+    transform.computeSourcePixels(srcX, srcY);
+    yIndex = new int[numPixels];
+    uvIndex = new int[numPixels];
+
+    if (isQuantized) {
+      quantizedValues = new byte[numPixels * 3];
+      floatValues = null;
+    } else {
+      quantizedValues = null;
+      floatValues = new float[numPixels * 3];
+      for (int i = 0; i < 256; ++i) {
+        normalizedChannel[i] = (i - imageMean) / imageStd;
+      }
+    }
+  }
+
+  /** Allocates a direct buffer of the size and byte order the interpreter expects. */
+  public ByteBuffer allocateTensor() {
+    final ByteBuffer tensor = ByteBuffer.allocateDirect(numPixels * 3 * (isQuantized ? 1 : 4));
+    tensor.order(ByteOrder.nativeOrder());
+    return tensor;
+  }
+
+  /** Returns the transform frames are cropped with, to map results back into the frame. */
+  public CropTransform getTransform() {
+    return transform;
+  }
+
+  /** Converts a YUV_420_888 frame as delivered by the Camera2 API. */
+  public void convert(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer tensor) {
+    updateIndices(yRowStride, uvRowStride, uvPixelStride);
+    convert(yData, uData, 0, vData, 0, tensor);
+  }
+
+  /** Converts an NV21 frame as delivered by the legacy camera API. */
+  public void convertYUV420SP(final ByteBuffer input, final ByteBuffer tensor) {
+    final int width = transform.getSrcWidth();
+    final int frameSize = width * transform.getSrcHeight();
+    updateIndices(width, width, 2);
+    // NV21 interleaves V before U after the luminance plane.
+    convert(input, input, frameSize + 1, input, frameSize, tensor);
+  }
+
+  /**
+   * Converts the pixels of a YUV_420_888 frame that land in the tensor into ARGB_8888.
+   *
+   * @param argb Receives the tensor width times height pixels, row by row.
+   */
+  public void convertToArgb(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] argb) {
+    updateIndices(yRowStride, uvRowStride, uvPixelStride);
+    argbOutput = argb;
+    convertPlanes(yData, uData, 0, vData, 0);
+    argbOutput = null;
+  }
+
+  /** Converts the pixels of an NV21 frame that land in the tensor into ARGB_8888. */
+  public void convertYUV420SPToArgb(final ByteBuffer input, final int[] argb) {
+    final int width = transform.getSrcWidth();
+    final int frameSize = width * transform.getSrcHeight();
+    updateIndices(width, width, 2);
+    argbOutput = argb;
+    convertPlanes(input, input, frameSize + 1, input, frameSize);
+    argbOutput = null;
+  }
+
+  private void updateIndices(final int yRowStride, final int uvRowStride, final int uvPixelStride) {
+    if (yRowStride == cachedYRowStride
+        && uvRowStride == cachedUvRowStride
+        && uvPixelStride == cachedUvPixelStride) {
+      return;
+    }
+    for (int i = 0; i < numPixels; ++i) {
+      yIndex[i] = srcY[i] * yRowStride + srcX[i];
+      uvIndex[i] = (srcY[i] >> 1) * uvRowStride + (srcX[i] >> 1) * uvPixelStride;
+    }
+    cachedYRowStride = yRowStride;
+    cachedUvRowStride = uvRowStride;
+    cachedUvPixelStride = uvPixelStride;
+  }
+
+  private void convert(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final int uOffset,
+      final ByteBuffer vData,
+      final int vOffset,
+      final ByteBuffer tensor) {
+    convertPlanes(yData, uData, uOffset, vData, vOffset);
+
+    tensor.rewind();
+    if (isQuantized) {
+      tensor.put(quantizedValues);
+    } else {
+      if (tensor != floatViewOwner) {
+        floatView = tensor.asFloatBuffer();
+        floatViewOwner = tensor;
+      }
+      floatView.rewind();
+      floatView.put(floatValues);
+    }
+    tensor.rewind();
+  }
+
+  private void convertPlanes(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final int uOffset,
+      final ByteBuffer vData,
+      final int vOffset) {
+    frameY = yData;
+    frameU = uData;
+    frameUOffset = uOffset;
+    frameV = vData;
+    frameVOffset = vOffset;
+    if (executor != null) {
+      executor.execute(transform.getDstHeight(), transform.getDstWidth(), 1, rowKernel);
+    } else {
+      convertRows(0, transform.getDstHeight());
+    }
+    frameY = frameU = frameV = null;
+  }
+
+  /** Converts tensor rows {@code startRow} to {@code endRow} into the staging values or ARGB. */
+  private void convertRows(final int startRow, final int endRow) {
+    final int end = endRow * transform.getDstWidth();
+    for (int i = startRow * transform.getDstWidth(), c = i * 3; i < end; ++i, c += 3) {
+      final int uv = uvIndex[i];
+      final int argb =
+          YuvToArgbConverter.convertPixel(
+              0xff & frameY.get(yIndex[i]),
+              0xff & frameU.get(frameUOffset + uv),
+              0xff & frameV.get(frameVOffset + uv),
+              true);
+      if (argbOutput != null) {
+        argbOutput[i] = argb;
+      } else if (isQuantized) {
+        quantizedValues[c] = (byte) (argb >> 16);
+        quantizedValues[c + 1] = (byte) (argb >> 8);
+        quantizedValues[c + 2] = (byte) argb;
+      } else {
+        floatValues[c] = normalizedChannel[(argb >> 16) & 0xFF];
+        floatValues[c + 1] = normalizedChannel[(argb >> 8) & 0xFF];
+        floatValues[c + 2] = normalizedChannel[argb & 0xFF];
+      }
+    }
+  }
+}
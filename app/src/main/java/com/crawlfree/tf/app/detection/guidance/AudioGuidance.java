@@ -0,0 +1,219 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.guidance;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+
+import com.crawlfree.tf.app.detection.env.Logger;
+
+/**
+ * Continuous audio feedback for steering the phone towards the target, much faster than speech.
+ * While the target is in view a beeping tone plays:
+ *
+ * <ul>
+ *   <li>panned to the side of the target, so the user knows which way to turn,
+ *   <li>higher pitched the larger the target, i.e. the closer it is,
+ *   <li>beeping faster the closer it is to the center of the view.
+ * </ul>
+ *
+ * <p>The tone is generated in 10 ms chunks into a reused buffer and streamed to an {@link
+ * AudioTrack} with a buffer of a few chunks, so that changes are heard within a few tens of
+ * milliseconds. Parameters may be updated from any thread at frame rate, and are smoothed on the
+ * audio thread so that updates never click.
+ */
+public class AudioGuidance {
+  private static final Logger LOGGER = new Logger();
+
+  private static final int SAMPLE_RATE = 22050;
+  private static final int CHUNK_FRAMES = SAMPLE_RATE / 100;
+  // Chunks the AudioTrack may buffer, if the device allows a buffer that small.
+  private static final int BUFFERED_CHUNKS = 3;
+
+  private static final int TABLE_SIZE = 1024;
+  private static final float MIN_PITCH_HZ = 330.0f;
+  private static final float MAX_PITCH_HZ = 1320.0f;
+  // Box area, as a fraction of the frame, at which the pitch reaches its maximum.
+  private static final float FULL_PITCH_AREA = 0.25f;
+  private static final float MIN_BEEP_HZ = 2.0f;
+  private static final float MAX_BEEP_HZ = 10.0f;
+  // Fraction of every beep period the tone is on, and the fade in and out within it.
+  private static final float BEEP_DUTY = 0.5f;
+  private static final float BEEP_FADE = 0.05f;
+  private static final float VOLUME = 0.4f;
+  // Fraction of the way to a new parameter value covered per chunk.
+  private static final float SMOOTHING = 0.35f;
+  // Per-sample step of the overall gain when the target appears or disappears.
+  private static final float GAIN_STEP = 1.0f / (SAMPLE_RATE * 0.02f);
+
+  private final float[] sine = new float[TABLE_SIZE];
+  private final short[] buffer = new short[2 * CHUNK_FRAMES];
+
+  // Written by any thread, read by the audio thread.
+  private volatile boolean targetVisible;
+  private volatile float targetPan;
+  private volatile float targetPitch = MIN_PITCH_HZ;
+  private volatile float targetBeepRate = MIN_BEEP_HZ;
+
+  // Audio thread state.
+  private float pan;
+  private float pitch = MIN_PITCH_HZ;
+  private float beepRate = MIN_BEEP_HZ;
+  private float gain;
+  private float phase;
+  private float beepPhase;
+
+  private AudioTrack track;
+  private Thread thread;
+  private volatile boolean running;
+
+  public AudioGuidance() {
+    for (int i = 0; i < TABLE_SIZE; ++i) {
+      sine[i] = (float) Math.sin(2 * Math.PI * i / TABLE_SIZE);
+    }
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    final int minBufferBytes =
+        AudioTrack.getMinBufferSize(
+            SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+    final int bufferBytes = Math.max(minBufferBytes, BUFFERED_CHUNKS * buffer.length * 2);
+    track =
+        new AudioTrack(
+            new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_ASSISTANCE_NAVIGATION_GUIDANCE)
+                .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                .build(),
+            new AudioFormat.Builder()
+                .setSampleRate(SAMPLE_RATE)
+                .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .build(),
+            bufferBytes,
+            AudioTrack.MODE_STREAM,
+            AudioManager.AUDIO_SESSION_ID_GENERATE);
+    if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+      LOGGER.e("Audio guidance track could not be initialized");
+      track.release();
+      track = null;
+      return;
+    }
+    LOGGER.i("Audio guidance buffer: %d ms", 1000 * bufferBytes / (4 * SAMPLE_RATE));
+    track.play();
+    running = true;
+    thread = new Thread(this::run, "audio-guidance");
+    thread.start();
+  }
+
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      LOGGER.e(e, "Exception!");
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+    track.stop();
+    track.release();
+    track = null;
+  }
+
+  /**
+   * Points the guidance at the target.
+   *
+   * @param horizontalOffset Target position from -1 at the left edge of the view to 1 at the right.
+   * @param areaFraction Target box area as a fraction of the frame.
+   */
+  public void setTarget(final float horizontalOffset, final float areaFraction) {
+    final float nearness = Math.min(areaFraction / FULL_PITCH_AREA, 1.0f);
+    final float centeredness = 1.0f - Math.min(Math.abs(horizontalOffset), 1.0f);
+    targetPan = horizontalOffset;
+    targetPitch = MIN_PITCH_HZ + (MAX_PITCH_HZ - MIN_PITCH_HZ) * nearness;
+    targetBeepRate = MIN_BEEP_HZ + (MAX_BEEP_HZ - MIN_BEEP_HZ) * centeredness;
+    targetVisible = true;
+  }
+
+  /** Fades the tone out, the target is not in view. */
+  public void clearTarget() {
+    targetVisible = false;
+  }
+
+  private void run() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+    while (running) {
+      fillChunk();
+      // Blocks until the track has room, which paces this loop at the playback rate.
+      track.write(buffer, 0, buffer.length);
+    }
+  }
+
+  private void fillChunk() {
+    pan += (targetPan - pan) * SMOOTHING;
+    pitch += (targetPitch - pitch) * SMOOTHING;
+    beepRate += (targetBeepRate - beepRate) * SMOOTHING;
+    final float targetGain = targetVisible ? 1.0f : 0.0f;
+
+    // Equal-power panning keeps the loudness constant across the stereo field.
+    final double angle = (pan + 1) * Math.PI / 4;
+    final float left = (float) Math.cos(angle) * VOLUME * Short.MAX_VALUE;
+    final float right = (float) Math.sin(angle) * VOLUME * Short.MAX_VALUE;
+    final float phaseStep = pitch * TABLE_SIZE / SAMPLE_RATE;
+    final float beepStep = beepRate / SAMPLE_RATE;
+
+    for (int i = 0; i < CHUNK_FRAMES; ++i) {
+      if (gain < targetGain) {
+        gain = Math.min(gain + GAIN_STEP, targetGain);
+      } else if (gain > targetGain) {
+        gain = Math.max(gain - GAIN_STEP, targetGain);
+      }
+      phase += phaseStep;
+      if (phase >= TABLE_SIZE) {
+        phase -= TABLE_SIZE;
+      }
+      beepPhase += beepStep;
+      if (beepPhase >= 1) {
+        beepPhase -= 1;
+      }
+      final float sample = sine[(int) phase] * envelope(beepPhase) * gain;
+      buffer[2 * i] = (short) (sample * left);
+      buffer[2 * i + 1] = (short) (sample * right);
+    }
+  }
+
+  /** Shape of one beep period: a tone with short fades, then silence. */
+  private static float envelope(final float beepPhase) {
+    if (beepPhase >= BEEP_DUTY) {
+      return 0;
+    }
+    if (beepPhase < BEEP_FADE) {
+      return beepPhase / BEEP_FADE;
+    }
+    if (beepPhase > BEEP_DUTY - BEEP_FADE) {
+      return (BEEP_DUTY - beepPhase) / BEEP_FADE;
+    }
+    return 1;
+  }
+}
@@ -0,0 +1,255 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.pipeline;
+
+import com.crawlfree.tf.app.detection.env.LatencyHistogram;
+import com.crawlfree.tf.app.detection.env.Logger;
+import com.crawlfree.tf.app.detection.env.YuvToTensorConverter;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs frame processing as three overlapping stages, so that while frame N is in the interpreter,
+ * frame N+1 is being converted and frame N-1 post-processed:
+ *
+ * <ol>
+ *   <li>conversion, on the camera thread that calls {@link #submit},
+ *   <li>inference, on a dedicated thread,
+ *   <li>post-processing (scene analysis, tracking, speech), on another dedicated thread.
+ * </ol>
+ *
+ * <p>Stages hand frames to each other through lock-free single-producer single-consumer queues. The
+ * pipeline owns a fixed number of frame slots, its depth. Drop policy: a camera frame that arrives
+ * while every slot is in flight is dropped on the spot, before any conversion work is spent on it.
+ * Frames already admitted are never dropped while the pipeline runs, so results come out in order
+ * and the latency of any frame is bounded by the depth. Frames left in flight by {@link #stop} are
+ * dropped when it is started again.
+ */
+public class FramePipeline {
+  private static final Logger LOGGER = new Logger();
+
+  /** The work done by each stage. Every method is only ever called from its own stage's thread. */
+  public interface Stages {
+    /** Stage 1: fills the frame's tensor from the current camera frame. */
+    void convert(PipelineFrame frame);
+
+    /** Stage 2: runs the model on the frame's tensor and stores its results in the frame. */
+    void infer(PipelineFrame frame);
+
+    /** Stage 3: consumes the frame's results. */
+    void postProcess(PipelineFrame frame);
+  }
+
+  private final Stages stages;
+
+  private final SpscQueue<PipelineFrame> freeFrames;
+  private final SpscQueue<PipelineFrame> convertedFrames;
+  private final SpscQueue<PipelineFrame> inferredFrames;
+
+  // Rare control work, like changing the thread count, that has to run between two inferences.
+  private final ConcurrentLinkedQueue<Runnable> inferenceTasks = new ConcurrentLinkedQueue<>();
+
+  private final AtomicLong submittedFrames = new AtomicLong();
+  private final AtomicLong droppedFrames = new AtomicLong();
+  // Written by the submitting thread only.
+  private volatile int maxInferenceQueueDepth;
+  // From submission to the end of post-processing, including the time spent waiting in queues.
+  private final LatencyHistogram frameLatency = new LatencyHistogram();
+
+  private volatile boolean running;
+  private volatile Thread inferenceThread;
+  private volatile Thread postProcessThread;
+
+  /**
+   * @param depth Number of frames that may be in flight at once. Three keeps every stage busy,
+   *     more only helps to absorb jitter, at the cost of latency.
+   * @param converter Used to allocate one input tensor per slot.
+   * @param stages The work done by each stage.
+   */
+  public FramePipeline(final int depth, final YuvToTensorConverter converter, final Stages stages) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Pipeline depth must be positive: " + depth);
+    }
+    this.stages = stages;
+    freeFrames = new SpscQueue<PipelineFrame>(depth);
+    convertedFrames = new SpscQueue<PipelineFrame>(depth);
+    inferredFrames = new SpscQueue<PipelineFrame>(depth);
+    for (int i = 0; i < depth; ++i) {
+      freeFrames.offer(new PipelineFrame(converter.allocateTensor()));
+    }
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    recycleInFlightFrames();
+    running = true;
+    inferenceThread = new Thread(this::runInference, "inference");
+    postProcessThread = new Thread(this::runPostProcess, "postprocess");
+    inferenceThread.start();
+    postProcessThread.start();
+  }
+
+  /**
+   * Stops the stage threads. Frames still in flight are dropped by the next {@link #start}, so that
+   * results of frames from before a pause never reach a detector or tracker started after it.
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(inferenceThread);
+    LockSupport.unpark(postProcessThread);
+    try {
+      inferenceThread.join();
+      postProcessThread.join();
+    } catch (final InterruptedException e) {
+      LOGGER.e(e, "Exception!");
+      Thread.currentThread().interrupt();
+    }
+    inferenceThread = null;
+    postProcessThread = null;
+    runInferenceTasks();
+  }
+
+  /**
+   * Runs stage 1 for the current camera frame on the calling thread. Must always be called from the
+   * same thread.
+   *
+   * @return false if the frame was dropped because every slot is in flight.
+   */
+  public boolean submit(final long timestamp) {
+    submittedFrames.incrementAndGet();
+    final PipelineFrame frame = freeFrames.poll();
+    if (frame == null) {
+      droppedFrames.incrementAndGet();
+      return false;
+    }
+    frame.setTimestamp(timestamp);
+    frame.setSubmitTimeNanos(System.nanoTime());
+    stages.convert(frame);
+    convertedFrames.offer(frame);
+    final int queueDepth = convertedFrames.size();
+    if (queueDepth > maxInferenceQueueDepth) {
+      maxInferenceQueueDepth = queueDepth;
+    }
+    LockSupport.unpark(inferenceThread);
+    return true;
+  }
+
+  /**
+   * Runs a task on the inference thread between two frames. While the pipeline is stopped nothing
+   * infers, so the task runs right away on the calling thread, and {@link #stop} runs any task still
+   * queued: none is carried over into the next {@link #start}.
+   */
+  public synchronized void runOnInferenceThread(final Runnable task) {
+    if (!running) {
+      task.run();
+      return;
+    }
+    inferenceTasks.add(task);
+    LockSupport.unpark(inferenceThread);
+  }
+
+  private void runInferenceTasks() {
+    Runnable task;
+    while ((task = inferenceTasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  public long getSubmittedFrames() {
+    return submittedFrames.get();
+  }
+
+  public long getDroppedFrames() {
+    return droppedFrames.get();
+  }
+
+  /** Returns the number of frames waiting for inference. */
+  public int getInferenceQueueDepth() {
+    return convertedFrames.size();
+  }
+
+  /** Returns the largest number of frames that were ever waiting for inference at once. */
+  public int getMaxInferenceQueueDepth() {
+    return maxInferenceQueueDepth;
+  }
+
+  public LatencyHistogram getFrameLatency() {
+    return frameLatency;
+  }
+
+  /** Returns the number of frames waiting for post-processing. */
+  public int getPostProcessQueueDepth() {
+    return inferredFrames.size();
+  }
+
+  /**
+   * Returns the frames left in the stage queues to the free ones, unprocessed. Only called while
+   * the stage threads are stopped, so that this thread is the only consumer of the stage queues
+   * and the only producer of free frames.
+   */
+  private void recycleInFlightFrames() {
+    int recycled = 0;
+    PipelineFrame frame;
+    while ((frame = inferredFrames.poll()) != null) {
+      freeFrames.offer(frame);
+      ++recycled;
+    }
+    while ((frame = convertedFrames.poll()) != null) {
+      freeFrames.offer(frame);
+      ++recycled;
+    }
+    if (recycled > 0) {
+      LOGGER.i("Dropped %d frames left in flight by the last stop", recycled);
+    }
+  }
+
+  private void runInference() {
+    while (running) {
+      runInferenceTasks();
+      final PipelineFrame frame = convertedFrames.poll();
+      if (frame == null) {
+        LockSupport.park(this);
+        continue;
+      }
+      stages.infer(frame);
+      inferredFrames.offer(frame);
+      LockSupport.unpark(postProcessThread);
+    }
+  }
+
+  private void runPostProcess() {
+    while (running) {
+      final PipelineFrame frame = inferredFrames.poll();
+      if (frame == null) {
+        LockSupport.park(this);
+        continue;
+      }
+      try {
+        stages.postProcess(frame);
+      } finally {
+        frameLatency.recordSince(frame.getSubmitTimeNanos());
+        freeFrames.offer(frame);
+      }
+    }
+  }
+}
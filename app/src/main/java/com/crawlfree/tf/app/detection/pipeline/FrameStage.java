@@ -0,0 +1,41 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.pipeline;
+
+/**
+ * The timed stages of processing a camera frame. The model's own stages are timed by the
+ * classifier, see {@link com.crawlfree.tf.app.detection.tflite.Classifier#getStatString}.
+ */
+public enum FrameStage {
+  /** Writing the frame into the capture file, only done when recording. */
+  RECORDING,
+  /** Converting the whole frame to ARGB, only done for debugging. */
+  RGB_CONVERSION,
+  /** Deciding from the motion in the frame whether to detect, track or reuse the results. */
+  MOTION_GATING,
+  /** Measuring the sharpness of a frame the detector may run on. */
+  SHARPNESS,
+  /** Carrying the tracked boxes to the new frame. */
+  OPTICAL_FLOW,
+  /** Cropping, resizing, converting and normalizing the frame into the model input, in one pass. */
+  TENSOR_CONVERSION,
+  /** The detector as seen by the pipeline, including waiting for its lock. */
+  INFERENCE,
+  /** Finding the target and its surroundings, and voting on it. */
+  SCENE_ANALYSIS,
+  /** Matching the detections to the tracked boxes. */
+  TRACKING
+}
@@ -0,0 +1,211 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides per frame how much work the frame deserves, from a cheap change score on the luminance
+ * plane. The plane is reduced to a coarse grid of block means, and grids are compared by their mean
+ * absolute block difference, after removing the global brightness shift so that auto exposure
+ * alone does not count as a change.
+ *
+ * <p>Two scores are kept: the motion since the previous frame, and the change since the last frame
+ * the detector ran on. Nothing is allocated after construction.
+ */
+public class MotionGate {
+  /** What to do with a frame. */
+  public enum Decision {
+    /** The scene changed since the last inference, run the detector. */
+    INFER,
+    /** The camera moved, but not enough to change the scene: only update the tracked boxes. */
+    TRACK,
+    /** Nothing moved: keep the previous results as they are. */
+    REUSE
+  }
+
+  // Block difference thresholds at sensitivity 1, in gray levels.
+  private static final float BASE_MOTION_THRESHOLD = 2.0f;
+  private static final float BASE_CHANGE_THRESHOLD = 8.0f;
+  // Pixels sampled per block along each axis.
+  private static final int SAMPLES_PER_BLOCK = 4;
+
+  private final int frameWidth;
+  private final int frameHeight;
+  private final int gridWidth;
+  private final int gridHeight;
+  private final int maxReuseFrames;
+
+  private float[] current;
+  private float[] previous;
+  private final float[] reference;
+  private boolean hasPrevious = false;
+  private boolean hasReference = false;
+  private int framesSinceInference = 0;
+
+  private float motionThreshold;
+  private float changeThreshold;
+
+  private float lastMotion;
+  private float lastChange;
+
+  private volatile long inferFrames;
+  private volatile long trackFrames;
+  private volatile long reuseFrames;
+
+  /**
+   * @param frameWidth Width of the luminance plane.
+   * @param frameHeight Height of the luminance plane.
+   * @param gridWidth Number of blocks across.
+   * @param gridHeight Number of blocks down.
+   * @param sensitivity Higher values react to smaller changes. 1 is a good default.
+   * @param maxReuseFrames Frames after which the detector runs again even in a still scene, so
+   *     that results never get older than that.
+   */
+  public MotionGate(
+      final int frameWidth,
+      final int frameHeight,
+      final int gridWidth,
+      final int gridHeight,
+      final float sensitivity,
+      final int maxReuseFrames) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.gridWidth = gridWidth;
+    this.gridHeight = gridHeight;
+    this.maxReuseFrames = maxReuseFrames;
+    current = new float[gridWidth * gridHeight];
+    previous = new float[gridWidth * gridHeight];
+    reference = new float[gridWidth * gridHeight];
+    setSensitivity(sensitivity);
+  }
+
+  private void setSensitivity(final float sensitivity) {
+    if (sensitivity <= 0) {
+      throw new IllegalArgumentException("Sensitivity must be positive: " + sensitivity);
+    }
+    motionThreshold = BASE_MOTION_THRESHOLD / sensitivity;
+    changeThreshold = BASE_CHANGE_THRESHOLD / sensitivity;
+  }
+
+  /**
+   * Scores the current frame against the previous one and against the last inference frame. Call
+   * once per frame, then {@link #onInference} if the detector was actually run on it.
+   */
+  public synchronized Decision evaluate(final ByteBuffer luminance, final int rowStride) {
+    final float[] swap = previous;
+    previous = current;
+    current = swap;
+    computeGrid(luminance, rowStride, current);
+
+    lastMotion = hasPrevious ? distance(current, previous) : Float.MAX_VALUE;
+    lastChange = hasReference ? distance(current, reference) : Float.MAX_VALUE;
+    hasPrevious = true;
+    ++framesSinceInference;
+
+    final Decision decision;
+    if (lastChange > changeThreshold || framesSinceInference >= maxReuseFrames) {
+      decision = Decision.INFER;
+      ++inferFrames;
+    } else if (lastMotion > motionThreshold) {
+      decision = Decision.TRACK;
+      ++trackFrames;
+    } else {
+      decision = Decision.REUSE;
+      ++reuseFrames;
+    }
+    return decision;
+  }
+
+  /** Makes the last evaluated frame the reference that later frames are compared against. */
+  public synchronized void onInference() {
+    System.arraycopy(current, 0, reference, 0, current.length);
+    hasReference = true;
+    framesSinceInference = 0;
+  }
+
+  /** Forgets the reference frames, so that the next frame is always inferred. */
+  public synchronized void reset() {
+    hasPrevious = false;
+    hasReference = false;
+    framesSinceInference = 0;
+  }
+
+  /**
+   * Returns the motion score of the last frame, in gray levels per block, or Float.MAX_VALUE if
+   * there was no previous frame to compare with.
+   */
+  public synchronized float getLastMotion() {
+    return lastMotion;
+  }
+
+  /**
+   * Returns the change score of the last frame against the last inference frame, or
+   * Float.MAX_VALUE if there was none.
+   */
+  public synchronized float getLastChange() {
+    return lastChange;
+  }
+
+  /** Returns the number of frames the gate sent to the detector. */
+  public long getInferFrames() {
+    return inferFrames;
+  }
+
+  /** Returns the number of frames that only updated tracking. */
+  public long getTrackFrames() {
+    return trackFrames;
+  }
+
+  /** Returns the number of frames that reused the previous results. */
+  public long getReuseFrames() {
+    return reuseFrames;
+  }
+
+  private void computeGrid(final ByteBuffer luminance, final int rowStride, final float[] grid) {
+    final int blockWidth = frameWidth / gridWidth;
+    final int blockHeight = frameHeight / gridHeight;
+    final int stepX = Math.max(blockWidth / SAMPLES_PER_BLOCK, 1);
+    final int stepY = Math.max(blockHeight / SAMPLES_PER_BLOCK, 1);
+    for (int gy = 0; gy < gridHeight; ++gy) {
+      for (int gx = 0; gx < gridWidth; ++gx) {
+        int sum = 0;
+        int count = 0;
+        for (int y = gy * blockHeight + stepY / 2; y < (gy + 1) * blockHeight; y += stepY) {
+          final int row = y * rowStride;
+          for (int x = gx * blockWidth + stepX / 2; x < (gx + 1) * blockWidth; x += stepX) {
+            sum += 0xff & luminance.get(row + x);
+            ++count;
+          }
+        }
+        grid[gy * gridWidth + gx] = count > 0 ? sum / (float) count : 0;
+      }
+    }
+  }
+
+  private static float distance(final float[] a, final float[] b) {
+    float shift = 0;
+    for (int i = 0; i < a.length; ++i) {
+      shift += a[i] - b[i];
+    }
+    shift /= a.length;
+    float sum = 0;
+    for (int i = 0; i < a.length; ++i) {
+      sum += Math.abs(a[i] - b[i] - shift);
+    }
+    return sum / a.length;
+  }
+}
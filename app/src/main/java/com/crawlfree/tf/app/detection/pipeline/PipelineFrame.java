@@ -0,0 +1,96 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.pipeline;
+
+import com.crawlfree.tf.app.detection.tflite.Classifier.Recognition;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One slot of a {@link FramePipeline}. A slot is owned by exactly one stage at a time and is
+ * recycled once the last stage is done with it, so its buffers are reused from frame to frame.
+ */
+public class PipelineFrame {
+  private final ByteBuffer tensor;
+  private final List<Recognition> results = new ArrayList<Recognition>();
+  private Recognition[] resultPool = new Recognition[0];
+
+  private long timestamp;
+  private long submitTimeNanos;
+  private long inferenceTimeMs;
+
+  PipelineFrame(final ByteBuffer tensor) {
+    this.tensor = tensor;
+  }
+
+  /** The model input for this frame, filled by the conversion stage. */
+  public ByteBuffer getTensor() {
+    return tensor;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  void setTimestamp(final long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  /** The {@link System#nanoTime} at which the frame entered the pipeline. */
+  public long getSubmitTimeNanos() {
+    return submitTimeNanos;
+  }
+
+  void setSubmitTimeNanos(final long submitTimeNanos) {
+    this.submitTimeNanos = submitTimeNanos;
+  }
+
+  public long getInferenceTimeMs() {
+    return inferenceTimeMs;
+  }
+
+  public void setInferenceTimeMs(final long inferenceTimeMs) {
+    this.inferenceTimeMs = inferenceTimeMs;
+  }
+
+  /**
+   * Copies the classifier's results into this frame, since the classifier will overwrite its own
+   * while later stages still work on them.
+   */
+  public void setResults(final List<Recognition> recognitions) {
+    final int count = recognitions.size();
+    if (resultPool.length < count) {
+      final Recognition[] grown = new Recognition[count];
+      System.arraycopy(resultPool, 0, grown, 0, resultPool.length);
+      for (int i = resultPool.length; i < count; ++i) {
+        grown[i] = new Recognition(null, null, 0, null);
+      }
+      resultPool = grown;
+    }
+    results.clear();
+    for (int i = 0; i < count; ++i) {
+      resultPool[i].copyFrom(recognitions.get(i));
+      results.add(resultPool[i]);
+    }
+  }
+
+  /** The results stored by {@link #setResults}, valid until the frame is recycled. */
+  public List<Recognition> getResults() {
+    return results;
+  }
+}
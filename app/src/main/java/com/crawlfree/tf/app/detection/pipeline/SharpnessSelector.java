@@ -0,0 +1,130 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Picks sharp frames for the detector while the phone is being swept around. Sharpness is the
+ * variance of the Laplacian on a subsampled luminance plane, which drops sharply with motion blur.
+ *
+ * <p>Since how sharp a frame can be depends on the scene, frames are judged against the sharpest
+ * recent frame rather than a fixed threshold: once a detection is due, frames are skipped until one
+ * comes close to that reference, or until the window runs out so that detection is never delayed
+ * by more than a few frames.
+ */
+public class SharpnessSelector {
+  // How much of the reference sharpness is kept per measured frame, so that it follows the scene.
+  private static final float REFERENCE_DECAY = 0.9f;
+
+  private final int frameWidth;
+  private final int frameHeight;
+  private final int step;
+  private final int windowFrames;
+  private final float acceptRatio;
+
+  private float reference = 0;
+  private int waitedFrames = 0;
+  private float lastSharpness;
+
+  private volatile long acceptedFrames;
+  private volatile long skippedFrames;
+
+  /**
+   * @param frameWidth Width of the luminance plane.
+   * @param frameHeight Height of the luminance plane.
+   * @param step Subsampling step, in pixels, along both axes.
+   * @param windowFrames Most frames a detection may be postponed for.
+   * @param acceptRatio Fraction of the reference sharpness a frame needs to be used right away.
+   */
+  public SharpnessSelector(
+      final int frameWidth,
+      final int frameHeight,
+      final int step,
+      final int windowFrames,
+      final float acceptRatio) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.step = step;
+    this.windowFrames = windowFrames;
+    this.acceptRatio = acceptRatio;
+  }
+
+  /** Returns the variance of the Laplacian of the luminance plane, sampled every step pixels. */
+  public float measure(final ByteBuffer luminance, final int rowStride) {
+    long sum = 0;
+    long sumSquares = 0;
+    int count = 0;
+    for (int y = step; y < frameHeight - step; y += step) {
+      final int row = y * rowStride;
+      final int above = row - step * rowStride;
+      final int below = row + step * rowStride;
+      for (int x = step; x < frameWidth - step; x += step) {
+        final int laplacian =
+            4 * (0xff & luminance.get(row + x))
+                - (0xff & luminance.get(row + x - step))
+                - (0xff & luminance.get(row + x + step))
+                - (0xff & luminance.get(above + x))
+                - (0xff & luminance.get(below + x));
+        sum += laplacian;
+        sumSquares += laplacian * laplacian;
+        ++count;
+      }
+    }
+    if (count == 0) {
+      return 0;
+    }
+    final float mean = sum / (float) count;
+    return sumSquares / (float) count - mean * mean;
+  }
+
+  /**
+   * Decides whether a frame a detection is due on should be used, or skipped in the hope of a
+   * sharper one. Call only for frames a detection is due on, and {@link #onSubmitted} once one was
+   * used.
+   */
+  public synchronized boolean accept(final float sharpness) {
+    lastSharpness = sharpness;
+    reference = Math.max(reference * REFERENCE_DECAY, sharpness);
+    ++waitedFrames;
+    if (sharpness >= acceptRatio * reference || waitedFrames >= windowFrames) {
+      ++acceptedFrames;
+      return true;
+    }
+    ++skippedFrames;
+    return false;
+  }
+
+  /** Starts a new window after a frame was handed to the detector. */
+  public synchronized void onSubmitted() {
+    waitedFrames = 0;
+  }
+
+  /** Returns the sharpness of the last frame passed to {@link #accept}. */
+  public synchronized float getLastSharpness() {
+    return lastSharpness;
+  }
+
+  /** Returns the number of frames handed to the detector. */
+  public long getAcceptedFrames() {
+    return acceptedFrames;
+  }
+
+  /** Returns the number of frames skipped as too blurry. */
+  public long getSkippedFrames() {
+    return skippedFrames;
+  }
+}
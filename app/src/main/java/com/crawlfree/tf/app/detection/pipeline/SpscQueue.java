@@ -0,0 +1,72 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer for handing objects from exactly one producer thread to exactly one
+ * consumer thread. Neither side ever blocks or allocates.
+ */
+public final class SpscQueue<E> {
+  private final AtomicReferenceArray<E> buffer;
+  private final int mask;
+  private final int capacity;
+  // Next slot to read, only advanced by the consumer.
+  private final AtomicLong head = new AtomicLong();
+  // Next slot to write, only advanced by the producer.
+  private final AtomicLong tail = new AtomicLong();
+
+  public SpscQueue(final int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.capacity = capacity;
+    buffer = new AtomicReferenceArray<E>(size);
+    mask = size - 1;
+  }
+
+  /** Producer side. Returns false without enqueuing if the queue is full. */
+  public boolean offer(final E element) {
+    final long t = tail.get();
+    if (t - head.get() >= capacity) {
+      return false;
+    }
+    buffer.lazySet((int) t & mask, element);
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /** Consumer side. Returns null if the queue is empty. */
+  public E poll() {
+    final long h = head.get();
+    if (h == tail.get()) {
+      return null;
+    }
+    final int index = (int) h & mask;
+    final E element = buffer.get(index);
+    buffer.lazySet(index, null);
+    head.lazySet(h + 1);
+    return element;
+  }
+
+  /** Returns the number of queued elements, which may already be stale when read. */
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+}
@@ -0,0 +1,183 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.scene;
+
+import android.graphics.RectF;
+
+import com.crawlfree.tf.app.detection.tflite.Classifier.Recognition;
+
+import java.util.Arrays;
+
+/**
+ * Confirms detections over time instead of trusting a single frame. Every class gets a ring buffer
+ * of its detections over the last N inference frames, and a class counts as confirmed once at least
+ * K of those frames saw it at a consistent position.
+ *
+ * <p>Frames in which a class was not recorded count as misses without any bookkeeping, and the ring
+ * buffers are only allocated the first time a class is seen, so steady-state use does not allocate.
+ */
+public class DetectionVoter {
+  private static final int INITIAL_CLASSES = 16;
+
+  private final int windowSize;
+  private final int requiredVotes;
+  private final float minimumIou;
+
+  private ClassWindow[] windows = new ClassWindow[INITIAL_CLASSES];
+  private long frame = 0;
+
+  private final RectF location = new RectF();
+
+  /**
+   * @param windowSize Number of recent inference frames considered, N.
+   * @param requiredVotes Number of those frames that must contain the class, K.
+   * @param minimumIou Overlap every vote must have with the latest detection to count, so that
+   *     detections jumping around the frame are not mistaken for one object. Zero disables it.
+   */
+  public DetectionVoter(final int windowSize, final int requiredVotes, final float minimumIou) {
+    if (requiredVotes < 1 || requiredVotes > windowSize) {
+      throw new IllegalArgumentException(
+          "Need 1 <= K <= N, got K=" + requiredVotes + ", N=" + windowSize);
+    }
+    this.windowSize = windowSize;
+    this.requiredVotes = requiredVotes;
+    this.minimumIou = minimumIou;
+  }
+
+  /** Starts a new inference frame. Call once per frame, before recording its detections. */
+  public void nextFrame() {
+    ++frame;
+  }
+
+  /**
+   * Records a detection in the current frame. If a class is recorded more than once per frame, the
+   * most confident detection is kept.
+   */
+  public void record(final Recognition detection) {
+    final int classId = detection.getClassId();
+    if (classId < 0) {
+      return;
+    }
+    final ClassWindow window = getWindow(classId);
+    final int slot = (int) (frame % windowSize);
+    if (window.frames[slot] == frame && window.confidences[slot] >= detection.getConfidence()) {
+      return;
+    }
+    detection.getLocation(location);
+    window.frames[slot] = frame;
+    window.confidences[slot] = detection.getConfidence();
+    window.boxes[4 * slot] = location.left;
+    window.boxes[4 * slot + 1] = location.top;
+    window.boxes[4 * slot + 2] = location.right;
+    window.boxes[4 * slot + 3] = location.bottom;
+  }
+
+  /**
+   * Returns whether the class was seen in the current frame and in at least K of the last N frames,
+   * at a position consistent with the current one.
+   */
+  public boolean isConfirmed(final int classId) {
+    if (classId < 0 || classId >= windows.length || windows[classId] == null) {
+      return false;
+    }
+    final ClassWindow window = windows[classId];
+    final int current = (int) (frame % windowSize);
+    if (window.frames[current] != frame) {
+      return false;
+    }
+
+    int votes = 0;
+    for (int slot = 0; slot < windowSize; ++slot) {
+      if (frame - window.frames[slot] >= windowSize || window.frames[slot] == 0) {
+        continue;
+      }
+      if (minimumIou <= 0 || iou(window.boxes, 4 * slot, 4 * current) >= minimumIou) {
+        ++votes;
+      }
+    }
+    return votes >= requiredVotes;
+  }
+
+  /**
+   * Returns the confidence of the class averaged over the last N frames, counting frames without
+   * it as zero. Rises towards the per-frame confidence as the class keeps being detected.
+   */
+  public float getScore(final int classId) {
+    if (classId < 0 || classId >= windows.length || windows[classId] == null) {
+      return 0;
+    }
+    final ClassWindow window = windows[classId];
+    float sum = 0;
+    for (int slot = 0; slot < windowSize; ++slot) {
+      if (window.frames[slot] != 0 && frame - window.frames[slot] < windowSize) {
+        sum += window.confidences[slot];
+      }
+    }
+    return sum / windowSize;
+  }
+
+  /** Forgets everything recorded so far. */
+  public void reset() {
+    for (final ClassWindow window : windows) {
+      if (window != null) {
+        Arrays.fill(window.frames, 0);
+      }
+    }
+  }
+
+  private ClassWindow getWindow(final int classId) {
+    if (classId >= windows.length) {
+      int capacity = windows.length;
+      while (capacity <= classId) {
+        capacity *= 2;
+      }
+      final ClassWindow[] grown = new ClassWindow[capacity];
+      System.arraycopy(windows, 0, grown, 0, windows.length);
+      windows = grown;
+    }
+    if (windows[classId] == null) {
+      windows[classId] = new ClassWindow(windowSize);
+    }
+    return windows[classId];
+  }
+
+  private static float iou(final float[] boxes, final int a, final int b) {
+    final float left = Math.max(boxes[a], boxes[b]);
+    final float top = Math.max(boxes[a + 1], boxes[b + 1]);
+    final float right = Math.min(boxes[a + 2], boxes[b + 2]);
+    final float bottom = Math.min(boxes[a + 3], boxes[b + 3]);
+    if (right <= left || bottom <= top) {
+      return 0;
+    }
+    final float intersection = (right - left) * (bottom - top);
+    final float areaA = (boxes[a + 2] - boxes[a]) * (boxes[a + 3] - boxes[a + 1]);
+    final float areaB = (boxes[b + 2] - boxes[b]) * (boxes[b + 3] - boxes[b + 1]);
+    return intersection / (areaA + areaB - intersection);
+  }
+
+  private static class ClassWindow {
+    // Frame each slot was recorded in, 0 for never. Frame numbers start at 1.
+    final long[] frames;
+    final float[] confidences;
+    final float[] boxes;
+
+    ClassWindow(final int windowSize) {
+      frames = new long[windowSize];
+      confidences = new float[windowSize];
+      boxes = new float[4 * windowSize];
+    }
+  }
+}
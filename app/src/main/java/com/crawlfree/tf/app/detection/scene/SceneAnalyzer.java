@@ -0,0 +1,160 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.scene;
+
+import android.graphics.RectF;
+
+import com.crawlfree.tf.app.detection.tflite.Classifier.Recognition;
+
+import java.util.List;
+
+/**
+ * Derives everything the search loop needs from a single frame's detections: the target, the other
+ * objects in the scene (one per class) and how the target relates to them. Each frame is handled in
+ * one pass over the detections, and nothing is allocated once the class table has grown to fit the
+ * label map.
+ *
+ * <p>The returned recognitions belong to the classifier, so they are only valid until its next run.
+ */
+public class SceneAnalyzer {
+  private static final int INITIAL_CAPACITY = 16;
+
+  // Best detection of every non-target class seen this frame, in first-seen order.
+  private Recognition[] scene = new Recognition[INITIAL_CAPACITY];
+  private int sceneSize;
+
+  // Index into scene for each class id, only meaningful where classFrame matches frame.
+  private int[] classSlot = new int[INITIAL_CAPACITY];
+  private int[] classFrame = new int[INITIAL_CAPACITY];
+  private int frame;
+
+  private Recognition target;
+  private Recognition neighbour;
+  private Recognition container;
+
+  private final RectF targetLocation = new RectF();
+  private final RectF candidateLocation = new RectF();
+
+  /**
+   * Analyzes the detections of one frame.
+   *
+   * @param results Detections as returned by the classifier, in any order.
+   * @param targetClassId Class id of the object the user is looking for.
+   * @param minimumConfidence Confidence the target needs to count as found. Other objects are
+   *     always part of the scene, since they only serve as landmarks.
+   */
+  public void analyze(
+      final List<Recognition> results, final int targetClassId, final float minimumConfidence) {
+    ++frame;
+    sceneSize = 0;
+    target = null;
+    neighbour = null;
+    container = null;
+
+    for (int i = 0; i < results.size(); ++i) {
+      final Recognition result = results.get(i);
+      final float confidence = result.getConfidence();
+      final int classId = result.getClassId();
+
+      if (classId >= 0 && classId == targetClassId) {
+        if (confidence >= minimumConfidence
+            && (target == null || confidence > target.getConfidence())) {
+          target = result;
+        }
+        continue;
+      }
+
+      if (classId < 0) {
+        addToScene(result);
+        continue;
+      }
+      ensureClassCapacity(classId);
+      if (classFrame[classId] != frame) {
+        classFrame[classId] = frame;
+        classSlot[classId] = sceneSize;
+        addToScene(result);
+      } else if (confidence > scene[classSlot[classId]].getConfidence()) {
+        scene[classSlot[classId]] = result;
+      }
+    }
+
+    if (target != null) {
+      target.getLocation(targetLocation);
+    }
+    for (int i = 0; i < sceneSize; ++i) {
+      final Recognition candidate = scene[i];
+      if (neighbour == null || candidate.getConfidence() > neighbour.getConfidence()) {
+        neighbour = candidate;
+      }
+      if (target != null) {
+        candidate.getLocation(candidateLocation);
+        if (candidateLocation.contains(targetLocation)
+            && (container == null || candidate.getConfidence() > container.getConfidence())) {
+          container = candidate;
+        }
+      }
+    }
+  }
+
+  /** Returns the most confident detection of the target, or null if it was not found. */
+  public Recognition getTarget() {
+    return target;
+  }
+
+  /** Returns the most confident object other than the target, or null for an empty scene. */
+  public Recognition getNeighbour() {
+    return neighbour;
+  }
+
+  /** Returns the most confident object whose box encloses the target, e.g. the table it is on. */
+  public Recognition getContainer() {
+    return container;
+  }
+
+  /** Returns the number of distinct non-target classes in the scene. */
+  public int getSceneSize() {
+    return sceneSize;
+  }
+
+  public Recognition getSceneObject(final int index) {
+    return scene[index];
+  }
+
+  private void addToScene(final Recognition result) {
+    if (sceneSize == scene.length) {
+      final Recognition[] grown = new Recognition[scene.length * 2];
+      System.arraycopy(scene, 0, grown, 0, sceneSize);
+      scene = grown;
+    }
+    scene[sceneSize++] = result;
+  }
+
+  private void ensureClassCapacity(final int classId) {
+    if (classId < classSlot.length) {
+      return;
+    }
+    int capacity = classSlot.length;
+    while (capacity <= classId) {
+      capacity *= 2;
+    }
+    final int[] grownSlot = new int[capacity];
+    final int[] grownFrame = new int[capacity];
+    System.arraycopy(classSlot, 0, grownSlot, 0, classSlot.length);
+    System.arraycopy(classFrame, 0, grownFrame, 0, classFrame.length);
+    classSlot = grownSlot;
+    classFrame = grownFrame;
+  }
+}
@@ -0,0 +1,102 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.session;
+
+import com.crawlfree.tf.app.detection.env.Logger;
+
+/**
+ * The states of one search session, which runs inside a single activity while the camera and the
+ * detector stay open:
+ *
+ * <pre>
+ *   LISTENING --search--> SEARCHING --found--> ANNOUNCING --announced--> LISTENING
+ *                           ^   |
+ *                           +---+ search (retarget)
+ * </pre>
+ *
+ * <p>Starting a new search only changes the target class id. Every search gets a new generation, so
+ * that results computed for an earlier target are recognized as stale and can never announce the
+ * new one. The state is read on every frame without locking.
+ */
+public class SearchSession {
+  private static final Logger LOGGER = new Logger();
+
+  public enum State {
+    /** Waiting for the user to say what to look for. */
+    LISTENING,
+    /** Looking for the target. */
+    SEARCHING,
+    /** The target was found and is being announced. */
+    ANNOUNCING
+  }
+
+  private volatile State state = State.LISTENING;
+  private volatile int targetClassId = -1;
+  private volatile int generation = 0;
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isSearching() {
+    return state == State.SEARCHING;
+  }
+
+  /** Returns the class id being searched for, or -1 if there is none yet. */
+  public int getTargetClassId() {
+    return targetClassId;
+  }
+
+  /** Returns the generation of the current search, which changes with every new target. */
+  public int getGeneration() {
+    return generation;
+  }
+
+  /** Starts searching for a class, from any state, replacing the current target. */
+  public synchronized void search(final int classId) {
+    targetClassId = classId;
+    ++generation;
+    state = State.SEARCHING;
+    LOGGER.i("Searching for class %d, generation %d", classId, generation);
+  }
+
+  /**
+   * Reports that the target of a search was confirmed.
+   *
+   * @param searchGeneration Generation of the search the confirmation was computed for.
+   * @return true if this finished the current search and the target should be announced, false if
+   *     the search had already finished or been replaced.
+   */
+  public synchronized boolean found(final int searchGeneration) {
+    if (state != State.SEARCHING || searchGeneration != generation) {
+      return false;
+    }
+    state = State.ANNOUNCING;
+    return true;
+  }
+
+  /** Goes back to waiting for the next query once the announcement is over. */
+  public synchronized void onAnnounced() {
+    if (state == State.ANNOUNCING) {
+      state = State.LISTENING;
+    }
+  }
+
+  /** Goes back to waiting for the next query, cancelling a search or announcement in progress. */
+  public synchronized void cancel() {
+    state = State.LISTENING;
+  }
+}
@@ -0,0 +1,122 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.source;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageReader.OnImageAvailableListener;
+import android.os.Trace;
+import com.crawlfree.tf.app.detection.env.Logger;
+
+/**
+ * Frames from a camera2 ImageReader in YUV_420_888. The planes of the Image are handed out as they
+ * are, without copying them, and the Image is only closed once the frame is released.
+ */
+public class Camera2FrameSource implements FrameSource, OnImageAvailableListener {
+  private static final Logger LOGGER = new Logger();
+
+  private final Listener listener;
+  private final YuvFrame frame = new YuvFrame();
+  private Image image;
+  private int width;
+  private int height;
+  private int rotation;
+  private long sequence;
+  private volatile boolean started = false;
+  private volatile boolean inFlight = false;
+  private volatile long droppedFrames;
+
+  private final Runnable releaseFrame =
+      new Runnable() {
+        @Override
+        public void run() {
+          final Image released = image;
+          image = null;
+          released.close();
+          inFlight = false;
+        }
+      };
+
+  public Camera2FrameSource(final Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Called by the camera fragment once the preview size is known. */
+  public void onPreviewSizeChosen(final int width, final int height, final int rotation) {
+    this.width = width;
+    this.height = height;
+    this.rotation = rotation;
+    listener.onFrameSizeChosen(width, height, rotation);
+  }
+
+  @Override
+  public void start() {
+    started = true;
+  }
+
+  @Override
+  public void stop() {
+    started = false;
+  }
+
+  @Override
+  public long getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  @Override
+  public void onImageAvailable(final ImageReader reader) {
+    final Image image = reader.acquireLatestImage();
+    if (image == null) {
+      return;
+    }
+    // We need wait until we have some size from onPreviewSizeChosen.
+    if (!started || width == 0 || height == 0) {
+      image.close();
+      return;
+    }
+    if (inFlight) {
+      image.close();
+      ++droppedFrames;
+      return;
+    }
+    inFlight = true;
+    this.image = image;
+    frame.setReleaseCallback(releaseFrame);
+    Trace.beginSection("imageAvailable");
+    try {
+      final Image.Plane[] planes = image.getPlanes();
+      for (int i = 0; i < planes.length; ++i) {
+        frame.setPlane(i, planes[i].getBuffer());
+      }
+      frame.setGeometry(
+          YuvFrame.FORMAT_YUV_420_888,
+          width,
+          height,
+          rotation,
+          planes[0].getRowStride(),
+          planes[1].getRowStride(),
+          planes[1].getPixelStride());
+      frame.setTiming(sequence++, image.getTimestamp());
+      listener.onFrame(frame);
+    } catch (final Exception e) {
+      LOGGER.e(e, "Exception!");
+      frame.release();
+    } finally {
+      Trace.endSection();
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A recording of camera frames, read through a memory mapping. The file is a ring of fixed-size
+ * slots preceded by a header, all little-endian:
+ *
+ * <pre>
+ *   header      magic "CFYUV001", version, width, height, format, rotation, slot count,
+ *               slot size, data offset, frames written
+ *   index       per slot: sequence (-1 if empty), timestamp
+ *   slots       from the data offset, page aligned, each holding a frame header
+ *               (sequence, timestamp, rotation, strides, plane lengths) and the planes
+ * </pre>
+ *
+ * <p>Frame {@code n} lives in slot {@code n % slotCount}, so once the ring has wrapped only the
+ * last {@code slotCount} frames are available.
+ *
+ * <p>The mapping is released once the file is no longer referenced. Not thread-safe: a capture
+ * file is read by a single replay thread.
+ */
+public final class CaptureFile {
+  static final byte[] MAGIC = {'C', 'F', 'Y', 'U', 'V', '0', '0', '1'};
+  static final int VERSION = 1;
+
+  // File header.
+  static final int HEADER_VERSION = 8;
+  static final int HEADER_WIDTH = 12;
+  static final int HEADER_HEIGHT = 16;
+  static final int HEADER_FORMAT = 20;
+  static final int HEADER_ROTATION = 24;
+  static final int HEADER_SLOT_COUNT = 28;
+  static final int HEADER_SLOT_SIZE = 32;
+  static final int HEADER_DATA_OFFSET = 36;
+  static final int HEADER_FRAMES_WRITTEN = 40;
+  static final int HEADER_SIZE = 64;
+
+  // Index entries, one per slot, right after the header.
+  static final int INDEX_SEQUENCE = 0;
+  static final int INDEX_TIMESTAMP = 8;
+  static final int INDEX_ENTRY_SIZE = 16;
+
+  // Frame header at the start of every slot, followed by the planes back to back.
+  static final int SLOT_SEQUENCE = 0;
+  static final int SLOT_TIMESTAMP = 8;
+  static final int SLOT_ROTATION = 16;
+  static final int SLOT_Y_ROW_STRIDE = 20;
+  static final int SLOT_UV_ROW_STRIDE = 24;
+  static final int SLOT_UV_PIXEL_STRIDE = 28;
+  static final int SLOT_PLANE_LENGTHS = 32;
+  static final int SLOT_HEADER_SIZE = 48;
+
+  static final int PAGE_SIZE = 4096;
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  // Positioned copy of the mapping used for bulk reads, so the mapping itself is never moved.
+  private final ByteBuffer reader;
+  private final int width;
+  private final int height;
+  private final int format;
+  private final int rotation;
+  private final int slotCount;
+  private final int slotSize;
+  private final int dataOffset;
+
+  private CaptureFile(final File file, final MappedByteBuffer buffer) throws IOException {
+    this.file = file;
+    this.buffer = buffer;
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    reader = buffer.duplicate();
+    for (int i = 0; i < MAGIC.length; ++i) {
+      if (buffer.capacity() < HEADER_SIZE || buffer.get(i) != MAGIC[i]) {
+        throw new IOException("Not a capture file: " + file);
+      }
+    }
+    if (buffer.getInt(HEADER_VERSION) != VERSION) {
+      throw new IOException(
+          "Unsupported capture file version " + buffer.getInt(HEADER_VERSION) + ": " + file);
+    }
+    width = buffer.getInt(HEADER_WIDTH);
+    height = buffer.getInt(HEADER_HEIGHT);
+    format = buffer.getInt(HEADER_FORMAT);
+    rotation = buffer.getInt(HEADER_ROTATION);
+    slotCount = buffer.getInt(HEADER_SLOT_COUNT);
+    slotSize = buffer.getInt(HEADER_SLOT_SIZE);
+    dataOffset = buffer.getInt(HEADER_DATA_OFFSET);
+    if (slotCount <= 0
+        || slotSize <= SLOT_HEADER_SIZE
+        || dataOffset < HEADER_SIZE + slotCount * INDEX_ENTRY_SIZE
+        || (long) dataOffset + (long) slotCount * slotSize > buffer.capacity()) {
+      throw new IOException("Truncated or corrupt capture file: " + file);
+    }
+  }
+
+  /** Maps a capture file for reading. */
+  public static CaptureFile open(final File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Capture file too large to map: " + file);
+      }
+      // The mapping stays valid once the file is closed.
+      return new CaptureFile(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Returns the offset of the first slot, past the header and the index. */
+  static int dataOffset(final int slotCount) {
+    final int end = HEADER_SIZE + slotCount * INDEX_ENTRY_SIZE;
+    return (end + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the {@link YuvFrame} format of the recorded frames. */
+  public int getFormat() {
+    return format;
+  }
+
+  /** Returns the sensor rotation of the first recorded frame. */
+  public int getRotation() {
+    return rotation;
+  }
+
+  public int getSlotCount() {
+    return slotCount;
+  }
+
+  /** Returns the number of frames ever written, which is one past the last sequence number. */
+  public long getFramesWritten() {
+    return buffer.getLong(HEADER_FRAMES_WRITTEN);
+  }
+
+  /** Returns the sequence number of the oldest frame still in the ring. */
+  public long getFirstSequence() {
+    return Math.max(0, getFramesWritten() - slotCount);
+  }
+
+  /** Returns the timestamp of a frame from the index, or -1 if it is not in the ring. */
+  public long getTimestampNs(final long sequence) {
+    if (sequence < 0) {
+      return -1;
+    }
+    final int entry = HEADER_SIZE + slotOf(sequence) * INDEX_ENTRY_SIZE;
+    if (buffer.getLong(entry + INDEX_SEQUENCE) != sequence) {
+      return -1;
+    }
+    return buffer.getLong(entry + INDEX_TIMESTAMP);
+  }
+
+  /**
+   * Copies a frame into {@code frame}, growing its planes as needed.
+   *
+   * @return false if the frame is not in the ring, in which case {@code frame} is unchanged.
+   */
+  public boolean read(final long sequence, final YuvFrame frame) {
+    if (sequence < 0) {
+      return false;
+    }
+    final int slot = dataOffset + slotOf(sequence) * slotSize;
+    if (buffer.getLong(slot + SLOT_SEQUENCE) != sequence) {
+      return false;
+    }
+    int position = slot + SLOT_HEADER_SIZE;
+    for (int i = 0; i < 3; ++i) {
+      final int length = buffer.getInt(slot + SLOT_PLANE_LENGTHS + 4 * i);
+      if (length < 0 || position + length > slot + slotSize) {
+        return false;
+      }
+      reader.position(position);
+      reader.get(frame.ensurePlane(i, length), 0, length);
+      position += length;
+    }
+    frame.setGeometry(
+        format,
+        width,
+        height,
+        buffer.getInt(slot + SLOT_ROTATION),
+        buffer.getInt(slot + SLOT_Y_ROW_STRIDE),
+        buffer.getInt(slot + SLOT_UV_ROW_STRIDE),
+        buffer.getInt(slot + SLOT_UV_PIXEL_STRIDE));
+    frame.setTiming(sequence, buffer.getLong(slot + SLOT_TIMESTAMP));
+    return true;
+  }
+
+  private int slotOf(final long sequence) {
+    return (int) (sequence % slotCount);
+  }
+}
@@ -0,0 +1,212 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.source;
+
+import com.crawlfree.tf.app.detection.env.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records frames into a {@link CaptureFile}. The file is allocated in full and mapped when the
+ * recorder is created, so that recording a frame is a single copy of its planes, straight from the
+ * camera buffers into the page cache: no allocation, no system call and no intermediate buffer.
+ * Once the ring is full the oldest frames are overwritten, so the file always holds the last frames
+ * before a problem showed up.
+ *
+ * <p>The kernel writes the mapped pages back to the file on its own, also when the app is killed.
+ *
+ * <p>Not thread-safe: frames are recorded on the thread that delivers them.
+ */
+public final class CaptureRecorder {
+  private static final Logger LOGGER = new Logger();
+
+  // Size of the chunks of zeros written to allocate the file.
+  private static final int ALLOCATION_CHUNK = 1 << 20;
+
+  private final MappedByteBuffer buffer;
+  // Positioned copy of the mapping used for bulk writes, so the mapping itself is never moved.
+  private final ByteBuffer writer;
+  private final int width;
+  private final int height;
+  private final int slotCount;
+  private final int slotSize;
+  private final int dataOffset;
+  private long framesWritten = 0;
+  private long skippedFrames = 0;
+
+  private CaptureRecorder(
+      final MappedByteBuffer buffer,
+      final int width,
+      final int height,
+      final int slotCount,
+      final int slotSize,
+      final int dataOffset) {
+    this.buffer = buffer;
+    this.writer = buffer.duplicate();
+    this.width = width;
+    this.height = height;
+    this.slotCount = slotCount;
+    this.slotSize = slotSize;
+    this.dataOffset = dataOffset;
+  }
+
+  /**
+   * Creates a capture file, replacing any existing file. This writes the whole file, so it should
+   * not be called on a thread that handles frames.
+   *
+   * @param format One of the {@link YuvFrame} formats.
+   * @param planeBytes Total length of the planes of a frame, see {@link #getPlaneBytes}.
+   * @param frameCount Number of frames kept in the ring, reduced if the file would not fit in a
+   *     single mapping.
+   */
+  public static CaptureRecorder create(
+      final File file,
+      final int width,
+      final int height,
+      final int format,
+      final int rotation,
+      final int planeBytes,
+      final int frameCount)
+      throws IOException {
+    final int frameBytes = CaptureFile.SLOT_HEADER_SIZE + planeBytes;
+    // Page aligned slots are written back independently of each other.
+    final int slotSize =
+        (frameBytes + CaptureFile.PAGE_SIZE - 1) / CaptureFile.PAGE_SIZE * CaptureFile.PAGE_SIZE;
+    final int slotCount =
+        (int)
+            Math.min(
+                frameCount,
+                (Integer.MAX_VALUE - CaptureFile.dataOffset(frameCount)) / (long) slotSize);
+    if (slotCount <= 0) {
+      throw new IOException("Cannot record " + frameCount + " frames of " + frameBytes + " bytes");
+    }
+    final int dataOffset = CaptureFile.dataOffset(slotCount);
+    final int size = dataOffset + slotCount * slotSize;
+
+    final File parent = file.getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Cannot create " + parent);
+    }
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    final MappedByteBuffer buffer;
+    try {
+      raf.setLength(0);
+      // Write the file out rather than leaving it sparse, so that running out of space fails here
+      // instead of faulting in the middle of a recording.
+      final FileChannel channel = raf.getChannel();
+      final ByteBuffer zeros = ByteBuffer.allocateDirect(ALLOCATION_CHUNK);
+      for (long position = 0; position < size; position += ALLOCATION_CHUNK) {
+        zeros.clear();
+        zeros.limit((int) Math.min(ALLOCATION_CHUNK, size - position));
+        while (zeros.hasRemaining()) {
+          channel.write(zeros, position + zeros.position());
+        }
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      raf.close();
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    for (int i = 0; i < CaptureFile.MAGIC.length; ++i) {
+      buffer.put(i, CaptureFile.MAGIC[i]);
+    }
+    buffer.putInt(CaptureFile.HEADER_VERSION, CaptureFile.VERSION);
+    buffer.putInt(CaptureFile.HEADER_WIDTH, width);
+    buffer.putInt(CaptureFile.HEADER_HEIGHT, height);
+    buffer.putInt(CaptureFile.HEADER_FORMAT, format);
+    buffer.putInt(CaptureFile.HEADER_ROTATION, rotation);
+    buffer.putInt(CaptureFile.HEADER_SLOT_COUNT, slotCount);
+    buffer.putInt(CaptureFile.HEADER_SLOT_SIZE, slotSize);
+    buffer.putInt(CaptureFile.HEADER_DATA_OFFSET, dataOffset);
+    buffer.putLong(CaptureFile.HEADER_FRAMES_WRITTEN, 0);
+    for (int slot = 0; slot < slotCount; ++slot) {
+      final int indexEntry = CaptureFile.HEADER_SIZE + slot * CaptureFile.INDEX_ENTRY_SIZE;
+      buffer.putLong(indexEntry + CaptureFile.INDEX_SEQUENCE, -1);
+      buffer.putLong(dataOffset + slot * slotSize + CaptureFile.SLOT_SEQUENCE, -1);
+    }
+    LOGGER.i(
+        "Recording up to %d frames of %dx%d into %s, %d MB",
+        slotCount, width, height, file, size >> 20);
+    return new CaptureRecorder(buffer, width, height, slotCount, slotSize, dataOffset);
+  }
+
+  /** Returns the total length of the planes of a frame. */
+  public static int getPlaneBytes(final YuvFrame frame) {
+    return frame.getPlaneLength(0) + frame.getPlaneLength(1) + frame.getPlaneLength(2);
+  }
+
+  /**
+   * Appends a frame to the ring, overwriting the oldest one once the ring is full.
+   *
+   * @return false if the frame was skipped because it does not match the recording.
+   */
+  public boolean record(final YuvFrame frame) {
+    if (CaptureFile.SLOT_HEADER_SIZE + getPlaneBytes(frame) > slotSize
+        || frame.getWidth() != width
+        || frame.getHeight() != height) {
+      ++skippedFrames;
+      return false;
+    }
+
+    final long sequence = framesWritten;
+    final int slotIndex = (int) (sequence % slotCount);
+    final int slot = dataOffset + slotIndex * slotSize;
+    // The slot is invalid until all of it has been written.
+    buffer.putLong(slot + CaptureFile.SLOT_SEQUENCE, -1);
+    buffer.putLong(slot + CaptureFile.SLOT_TIMESTAMP, frame.getTimestampNs());
+    buffer.putInt(slot + CaptureFile.SLOT_ROTATION, frame.getRotation());
+    buffer.putInt(slot + CaptureFile.SLOT_Y_ROW_STRIDE, frame.getYRowStride());
+    buffer.putInt(slot + CaptureFile.SLOT_UV_ROW_STRIDE, frame.getUvRowStride());
+    buffer.putInt(slot + CaptureFile.SLOT_UV_PIXEL_STRIDE, frame.getUvPixelStride());
+    int position = slot + CaptureFile.SLOT_HEADER_SIZE;
+    for (int i = 0; i < 3; ++i) {
+      final int length = frame.getPlaneLength(i);
+      buffer.putInt(slot + CaptureFile.SLOT_PLANE_LENGTHS + 4 * i, length);
+      if (length > 0) {
+        // A bulk copy moves the position of the plane, which readers of the frame do not use.
+        final ByteBuffer plane = frame.getPlane(i);
+        plane.rewind();
+        writer.position(position);
+        writer.put(plane);
+        plane.rewind();
+        position += length;
+      }
+    }
+    buffer.putLong(slot + CaptureFile.SLOT_SEQUENCE, sequence);
+
+    final int entry = CaptureFile.HEADER_SIZE + slotIndex * CaptureFile.INDEX_ENTRY_SIZE;
+    buffer.putLong(entry + CaptureFile.INDEX_TIMESTAMP, frame.getTimestampNs());
+    buffer.putLong(entry + CaptureFile.INDEX_SEQUENCE, sequence);
+    framesWritten = sequence + 1;
+    buffer.putLong(CaptureFile.HEADER_FRAMES_WRITTEN, framesWritten);
+    return true;
+  }
+
+  public long getFramesWritten() {
+    return framesWritten;
+  }
+
+  /** Returns the number of frames that did not match the size of the recording. */
+  public long getSkippedFrames() {
+    return skippedFrames;
+  }
+}
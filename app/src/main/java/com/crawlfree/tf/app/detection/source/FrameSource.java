@@ -0,0 +1,44 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.source;
+
+/**
+ * Where camera frames come from: a live camera, or a recording replayed from a capture file.
+ * Processing code only ever sees {@link YuvFrame}s, so the same pipeline can be benchmarked against
+ * a fixed corpus of frames.
+ *
+ * <p>Only one frame is in flight at a time. A live source drops frames that arrive while the
+ * previous one has not been released yet, as the camera cannot wait.
+ */
+public interface FrameSource {
+  /** Receives the frames of a source. */
+  interface Listener {
+    /** Called once the frame size is known, before the first frame. */
+    void onFrameSizeChosen(int width, int height, int rotation);
+
+    /** Called for every frame, on the source's thread. The frame must be released once done. */
+    void onFrame(YuvFrame frame);
+  }
+
+  /** Starts delivering frames to the listener. */
+  void start();
+
+  /** Stops delivering frames. Returns once no more frames will be delivered. */
+  void stop();
+
+  /** Returns the number of frames dropped because the previous one was still in flight. */
+  long getDroppedFrames();
+}
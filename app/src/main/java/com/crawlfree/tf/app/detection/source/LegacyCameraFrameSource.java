@@ -0,0 +1,108 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.source;
+
+import android.hardware.Camera;
+import android.os.SystemClock;
+import com.crawlfree.tf.app.detection.env.Logger;
+
+/**
+ * Frames from the legacy camera API in NV21. The callback buffer itself is handed out, and given
+ * back to the camera once the frame is released.
+ */
+public class LegacyCameraFrameSource implements FrameSource, Camera.PreviewCallback {
+  private static final Logger LOGGER = new Logger();
+
+  // The legacy fragment always shows the preview in portrait.
+  private static final int ROTATION = 90;
+
+  private final Listener listener;
+  private final YuvFrame frame = new YuvFrame();
+  private int width;
+  private int height;
+  private long sequence;
+  private Camera pendingCamera;
+  private byte[] pendingBuffer;
+  private volatile boolean started = false;
+  private volatile boolean inFlight = false;
+  private volatile long droppedFrames;
+
+  private final Runnable releaseFrame =
+      new Runnable() {
+        @Override
+        public void run() {
+          pendingCamera.addCallbackBuffer(pendingBuffer);
+          pendingCamera = null;
+          pendingBuffer = null;
+          inFlight = false;
+        }
+      };
+
+  public LegacyCameraFrameSource(final Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void start() {
+    started = true;
+  }
+
+  @Override
+  public void stop() {
+    started = false;
+  }
+
+  @Override
+  public long getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  @Override
+  public void onPreviewFrame(final byte[] bytes, final Camera camera) {
+    if (inFlight) {
+      LOGGER.w("Dropping frame!");
+      ++droppedFrames;
+      return;
+    }
+
+    try {
+      // Report the size once, when the first frame arrives.
+      if (width == 0) {
+        final Camera.Size previewSize = camera.getParameters().getPreviewSize();
+        width = previewSize.width;
+        height = previewSize.height;
+        listener.onFrameSizeChosen(width, height, ROTATION);
+      }
+    } catch (final Exception e) {
+      LOGGER.e(e, "Exception!");
+      return;
+    }
+
+    if (!started) {
+      camera.addCallbackBuffer(bytes);
+      return;
+    }
+
+    inFlight = true;
+    pendingCamera = camera;
+    pendingBuffer = bytes;
+    frame.wrapPlane(0, bytes, bytes.length);
+    frame.setGeometry(YuvFrame.FORMAT_NV21, width, height, ROTATION, width, width, 2);
+    frame.setTiming(sequence++, SystemClock.elapsedRealtimeNanos());
+    frame.setReleaseCallback(releaseFrame);
+    listener.onFrame(frame);
+  }
+}
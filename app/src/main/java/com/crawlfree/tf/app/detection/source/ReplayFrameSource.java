@@ -0,0 +1,172 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.source;
+
+import com.crawlfree.tf.app.detection.env.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Frames replayed from a {@link CaptureFile} on a thread of their own, so that the processing
+ * pipeline can be measured on the same frames every time.
+ *
+ * <p>At a fixed frame rate the replay behaves like a camera: frames that come due while the
+ * previous one is still being processed are dropped. As fast as possible, every frame is delivered
+ * as soon as the previous one has been released, which measures throughput.
+ */
+public class ReplayFrameSource implements FrameSource, Runnable {
+  private static final Logger LOGGER = new Logger();
+
+  private final CaptureFile capture;
+  private final Listener listener;
+  // Interval between frames, or 0 to replay as fast as possible.
+  private final long frameIntervalNs;
+  private final boolean loop;
+  private final YuvFrame frame = new YuvFrame();
+  private volatile Thread thread;
+  private volatile boolean running = false;
+  private volatile boolean inFlight = false;
+  private volatile boolean finished = false;
+  private volatile long droppedFrames;
+  private volatile long replayedFrames;
+
+  private final Runnable releaseFrame =
+      new Runnable() {
+        @Override
+        public void run() {
+          inFlight = false;
+          LockSupport.unpark(thread);
+        }
+      };
+
+  /**
+   * @param framesPerSecond Replay rate, or 0 to replay as fast as the frames are consumed.
+   * @param loop Whether to start over after the last frame, rather than stop.
+   */
+  public ReplayFrameSource(
+      final File file, final float framesPerSecond, final boolean loop, final Listener listener)
+      throws IOException {
+    this.capture = CaptureFile.open(file);
+    this.listener = listener;
+    this.frameIntervalNs = framesPerSecond > 0 ? (long) (1e9f / framesPerSecond) : 0;
+    this.loop = loop;
+    LOGGER.i(
+        "Replaying %d frames of %dx%d from %s",
+        capture.getFramesWritten() - capture.getFirstSequence(),
+        capture.getWidth(),
+        capture.getHeight(),
+        file);
+  }
+
+  /** Reports the frame size to the listener on the calling thread, then starts the replay. */
+  @Override
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    listener.onFrameSizeChosen(capture.getWidth(), capture.getHeight(), capture.getRotation());
+    running = true;
+    finished = false;
+    inFlight = false;
+    thread = new Thread(this, "replay");
+    thread.start();
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (thread == null) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      LOGGER.e(e, "Interrupted while stopping the replay");
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+  }
+
+  @Override
+  public long getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  public long getReplayedFrames() {
+    return replayedFrames;
+  }
+
+  /** Returns whether the last frame has been replayed, which never happens when looping. */
+  public boolean isFinished() {
+    return finished;
+  }
+
+  @Override
+  public void run() {
+    final long first = capture.getFirstSequence();
+    final long end = capture.getFramesWritten();
+    long sequence = first;
+    long dueNs = System.nanoTime();
+    while (running && end > first) {
+      if (sequence >= end) {
+        if (!loop) {
+          break;
+        }
+        sequence = first + (sequence - first) % (end - first);
+      }
+
+      if (frameIntervalNs > 0) {
+        // Wait for the frame to come due, or skip those that came due while busy.
+        long now;
+        while (running && (now = System.nanoTime()) < dueNs) {
+          LockSupport.parkNanos(this, dueNs - now);
+        }
+        final long missed = (System.nanoTime() - dueNs) / frameIntervalNs;
+        if (missed > 0) {
+          sequence += missed;
+          droppedFrames += missed;
+          dueNs += missed * frameIntervalNs;
+          continue;
+        }
+        dueNs += frameIntervalNs;
+        if (inFlight) {
+          ++droppedFrames;
+          ++sequence;
+          continue;
+        }
+      } else {
+        while (running && inFlight) {
+          LockSupport.park(this);
+        }
+      }
+      if (!running) {
+        break;
+      }
+
+      if (capture.read(sequence, frame)) {
+        inFlight = true;
+        frame.setReleaseCallback(releaseFrame);
+        listener.onFrame(frame);
+        ++replayedFrames;
+      }
+      ++sequence;
+    }
+    finished = true;
+    LOGGER.i("Replay stopped after %d frames, %d dropped", replayedFrames, droppedFrames);
+  }
+}
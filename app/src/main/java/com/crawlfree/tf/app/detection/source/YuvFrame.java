@@ -0,0 +1,155 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.source;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One camera frame in YUV 4:2:0, whichever {@link FrameSource} it came from. The planes are views
+ * of memory owned by the source, such as the buffers of a camera Image, so a frame is only valid
+ * until it is {@link #release released}.
+ */
+public final class YuvFrame {
+  /** Three planes, laid out like the planes of an android.media.Image in YUV_420_888. */
+  public static final int FORMAT_YUV_420_888 = 0;
+  /** A single NV21 array in plane 0, as delivered by the legacy camera API. */
+  public static final int FORMAT_NV21 = 1;
+
+  private final ByteBuffer[] planes = new ByteBuffer[3];
+  // Arrays behind the planes of sources that fill or hand out arrays, wrapped once each.
+  private final byte[][] arrays = new byte[3][];
+  private int format;
+  private int width;
+  private int height;
+  private int rotation;
+  private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
+  private long sequence;
+  private long timestampNs;
+  private Runnable releaseCallback;
+
+  public int getFormat() {
+    return format;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the clockwise rotation of the sensor relative to the device's natural orientation. */
+  public int getRotation() {
+    return rotation;
+  }
+
+  /**
+   * Returns a plane, from index 0 up to its limit, or null if the format has no such plane. Planes
+   * are shared by all readers of the frame, so they must only be read with absolute gets.
+   */
+  public ByteBuffer getPlane(final int plane) {
+    return planes[plane];
+  }
+
+  public int getPlaneLength(final int plane) {
+    return planes[plane] != null ? planes[plane].limit() : 0;
+  }
+
+  public int getYRowStride() {
+    return yRowStride;
+  }
+
+  public int getUvRowStride() {
+    return uvRowStride;
+  }
+
+  public int getUvPixelStride() {
+    return uvPixelStride;
+  }
+
+  /** Returns the number of the frame within its source, counting from 0. */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /** Returns the sensor timestamp of the frame, in nanoseconds. */
+  public long getTimestampNs() {
+    return timestampNs;
+  }
+
+  /** Hands the frame back to its source, after which its planes may be overwritten. */
+  public void release() {
+    final Runnable callback = releaseCallback;
+    releaseCallback = null;
+    if (callback != null) {
+      callback.run();
+    }
+  }
+
+  void setGeometry(
+      final int format,
+      final int width,
+      final int height,
+      final int rotation,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride) {
+    this.format = format;
+    this.width = width;
+    this.height = height;
+    this.rotation = rotation;
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+  }
+
+  void setTiming(final long sequence, final long timestampNs) {
+    this.sequence = sequence;
+    this.timestampNs = timestampNs;
+  }
+
+  /** Uses a buffer as a plane, e.g. one of the planes of a camera Image. */
+  void setPlane(final int plane, final ByteBuffer buffer) {
+    planes[plane] = buffer;
+    arrays[plane] = null;
+  }
+
+  /** Returns the array of a plane, grown if it cannot hold {@code length} bytes. */
+  byte[] ensurePlane(final int plane, final int length) {
+    if (arrays[plane] == null || arrays[plane].length < length) {
+      wrapPlane(plane, new byte[length], length);
+    } else {
+      planes[plane].limit(length);
+    }
+    return arrays[plane];
+  }
+
+  /** Uses an array owned by someone else as a plane, e.g. a legacy camera callback buffer. */
+  void wrapPlane(final int plane, final byte[] data, final int length) {
+    if (arrays[plane] != data) {
+      arrays[plane] = data;
+      planes[plane] = ByteBuffer.wrap(data);
+    }
+    planes[plane].limit(length);
+  }
+
+  void setReleaseCallback(final Runnable releaseCallback) {
+    this.releaseCallback = releaseCallback;
+  }
+}
@@ -0,0 +1,65 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.speech;
+
+/**
+ * Everything the app says, in one place, so that the same text is used when a phrase is cached and
+ * when it is spoken.
+ */
+public final class Phrases {
+  public static final String WELCOME =
+      " touch the screen anywhere and tell us what you are looking for,  " + " let's start !";
+
+  public static final String INTRODUCTION =
+      "Welcome to crawl free, our app will help you finding your attachments around you, "
+          + "it's quite simple, just touch the screen anywhere and tell us what are you looking for "
+          + "and then start moving your phone slowly in a circular movement, let's start !";
+
+  public static final String START_MOVING = " please start moving your phone around slowly ";
+
+  public static final String NOT_SUPPORTED =
+      " sorry for that, our app does not support finding this object "
+          + "but you can try finding another one.";
+
+  public static final String FIND_ANOTHER =
+      "if you want to find another object, you are ready to do it now.";
+
+  public static final String NOT_HEARD =
+      " sorry, I did not catch that, touch the screen and tell us again ";
+
+  /** The phrases needed in every session, worth caching as soon as the app starts. */
+  public static final String[] FIXED = {
+    WELCOME, INTRODUCTION, START_MOVING, NOT_SUPPORTED, FIND_ANOTHER, NOT_HEARD
+  };
+
+  public static String found(final String label) {
+    return "stop moving, I found your " + label + " here, " + "it's in your walking direction";
+  }
+
+  public static String lookingFor(final String label) {
+    return "looking for your " + label;
+  }
+
+  public static String on(final String label) {
+    return "It's on the " + label;
+  }
+
+  public static String besides(final String label) {
+    return "It's besides the " + label;
+  }
+
+  private Phrases() {}
+}
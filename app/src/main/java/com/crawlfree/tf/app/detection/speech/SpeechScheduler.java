@@ -0,0 +1,272 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.speech;
+
+import android.os.SystemClock;
+
+import com.crawlfree.tf.app.detection.env.LatencyHistogram;
+import com.crawlfree.tf.app.detection.env.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides what gets said, and when, on top of the {@link SpeechService}. Only one phrase is handed
+ * to the engine at a time, so that everything still waiting can be reordered or dropped:
+ *
+ * <ul>
+ *   <li>waiting phrases are said in priority order, first come first served within a priority,
+ *   <li>a phrase identical to one submitted within the coalescing window is dropped,
+ *   <li>a phrase that waited longer than its type allows is dropped instead of said late,
+ *   <li>introducing a screen or finding the target interrupts anything less important.
+ * </ul>
+ *
+ * <p>Steering while searching is left to the tones of the {@link
+ * com.crawlfree.tf.app.detection.guidance.AudioGuidance}, which speech could not keep up with.
+ */
+public class SpeechScheduler {
+  private static final Logger LOGGER = new Logger();
+
+  // Identical phrases submitted within this window are said once.
+  private static final long COALESCE_WINDOW_MS = 3000;
+  // Number of recent submissions remembered for coalescing.
+  private static final int RECENT_CAPACITY = 16;
+
+  /** What a phrase is about, which determines how it is scheduled. */
+  public enum Type {
+    /** Introduces a screen. Interrupts everything else. */
+    INTRODUCTION(4, 10000, true),
+    /** The target was found. Interrupts everything less important. */
+    TARGET_FOUND(3, 5000, true),
+    /** Where the target is relative to other objects. */
+    RELATION(2, 5000, false),
+    /** Instructions for the next step. */
+    PROMPT(1, 10000, false);
+
+    final int priority;
+    final long maxLatencyMs;
+    final boolean interrupts;
+
+    Type(final int priority, final long maxLatencyMs, final boolean interrupts) {
+      this.priority = priority;
+      this.maxLatencyMs = maxLatencyMs;
+      this.interrupts = interrupts;
+    }
+  }
+
+  private static SpeechScheduler instance;
+
+  public static synchronized SpeechScheduler getInstance() {
+    if (instance == null) {
+      instance = new SpeechScheduler(SpeechService.getInstance());
+    }
+    return instance;
+  }
+
+  private final SpeechService service;
+
+  // Waiting phrases, sorted by descending priority, in submission order within a priority.
+  private final List<Entry> queue = new ArrayList<Entry>();
+  private Entry speaking;
+
+  private final String[] recentTexts = new String[RECENT_CAPACITY];
+  private final long[] recentTimesMs = new long[RECENT_CAPACITY];
+  private int recentNext = 0;
+
+  private long submittedCount;
+  private long spokenCount;
+  private long coalescedCount;
+  private long staleCount;
+  private long lastLagMs;
+  private long maxLagMs;
+  private long totalLagMs;
+  private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+  SpeechScheduler(final SpeechService service) {
+    this.service = service;
+    service.addListener(
+        new SpeechService.Listener() {
+          @Override
+          public void onIdle() {
+            onSpeechFinished();
+          }
+        });
+  }
+
+  /**
+   * Schedules a phrase.
+   *
+   * @return false if the phrase was dropped as a duplicate of a recent one.
+   */
+  public boolean submit(final Type type, final String text) {
+    final long now = SystemClock.uptimeMillis();
+    synchronized (this) {
+      ++submittedCount;
+      if (isRecent(text, now)) {
+        ++coalescedCount;
+        LOGGER.v("Coalescing \"%s\"", text);
+        return false;
+      }
+      remember(text, now);
+
+      final Entry entry = new Entry(type, text, now);
+      if (type.interrupts && speaking != null && speaking.type.priority < type.priority) {
+        // Flushed while holding the lock, so that the end of the interrupted phrase cannot be
+        // taken for the end of this one in between.
+        startSpeaking(entry);
+        if (service.speak(entry.text, true)) {
+          return true;
+        }
+        speaking = null;
+      } else {
+        int index = 0;
+        while (index < queue.size() && queue.get(index).type.priority >= type.priority) {
+          ++index;
+        }
+        queue.add(index, entry);
+      }
+    }
+    dispatch();
+    return true;
+  }
+
+  /** Drops everything still waiting, without interrupting what is being said. */
+  public synchronized void clear() {
+    queue.clear();
+  }
+
+  /** Returns the number of phrases waiting to be said. */
+  public synchronized int getQueueDepth() {
+    return queue.size();
+  }
+
+  /** Returns how long the last phrase waited before it was handed to the engine. */
+  public synchronized long getLastLagMs() {
+    return lastLagMs;
+  }
+
+  /** Returns the longest any phrase waited before it was handed to the engine. */
+  public synchronized long getMaxLagMs() {
+    return maxLagMs;
+  }
+
+  /** Returns how long phrases waited on average before they were handed to the engine. */
+  public synchronized long getMeanLagMs() {
+    return spokenCount > 0 ? totalLagMs / spokenCount : 0;
+  }
+
+  /** Returns how long phrases waited before they were handed to the engine. */
+  public LatencyHistogram getDispatchLatency() {
+    return dispatchLatency;
+  }
+
+  /** Returns the number of phrases submitted, including the ones dropped. */
+  public synchronized long getSubmittedCount() {
+    return submittedCount;
+  }
+
+  /** Returns the number of phrases handed to the engine. */
+  public synchronized long getSpokenCount() {
+    return spokenCount;
+  }
+
+  /** Returns the number of phrases dropped as duplicates. */
+  public synchronized long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /** Returns the number of phrases dropped because they waited too long. */
+  public synchronized long getStaleCount() {
+    return staleCount;
+  }
+
+  private void onSpeechFinished() {
+    synchronized (this) {
+      // An interrupting phrase is only over once the engine has nothing outstanding, whatever
+      // the interrupted one reports.
+      if (service.isSpeaking()) {
+        return;
+      }
+      speaking = null;
+    }
+    dispatch();
+  }
+
+  /** Hands the next phrase to the engine if nothing is being said. */
+  private void dispatch() {
+    final Entry next;
+    synchronized (this) {
+      if (speaking != null || service.isSpeaking()) {
+        return;
+      }
+      final long now = SystemClock.uptimeMillis();
+      Entry candidate = null;
+      while (!queue.isEmpty()) {
+        candidate = queue.remove(0);
+        if (now - candidate.submittedMs <= candidate.type.maxLatencyMs) {
+          break;
+        }
+        LOGGER.v("Dropping stale \"%s\" after %d ms", candidate.text, now - candidate.submittedMs);
+        ++staleCount;
+        candidate = null;
+      }
+      if (candidate == null) {
+        return;
+      }
+      next = candidate;
+      startSpeaking(next);
+    }
+    if (!service.speak(next.text, false)) {
+      onSpeechFinished();
+    }
+  }
+
+  private void startSpeaking(final Entry entry) {
+    speaking = entry;
+    lastLagMs = SystemClock.uptimeMillis() - entry.submittedMs;
+    maxLagMs = Math.max(maxLagMs, lastLagMs);
+    totalLagMs += lastLagMs;
+    dispatchLatency.recordMicros(lastLagMs * 1000);
+    ++spokenCount;
+  }
+
+  private boolean isRecent(final String text, final long now) {
+    for (int i = 0; i < RECENT_CAPACITY; ++i) {
+      if (text.equals(recentTexts[i]) && now - recentTimesMs[i] < COALESCE_WINDOW_MS) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void remember(final String text, final long now) {
+    recentTexts[recentNext] = text;
+    recentTimesMs[recentNext] = now;
+    recentNext = (recentNext + 1) % RECENT_CAPACITY;
+  }
+
+  private static class Entry {
+    final Type type;
+    final String text;
+    final long submittedMs;
+
+    Entry(final Type type, final String text, final long submittedMs) {
+      this.type = type;
+      this.text = text;
+      this.submittedMs = submittedMs;
+    }
+  }
+}
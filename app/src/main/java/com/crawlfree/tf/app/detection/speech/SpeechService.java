@@ -0,0 +1,386 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.speech;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
+
+import com.crawlfree.tf.app.detection.env.Logger;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The one text-to-speech engine of the app. It is created once when the application starts, so
+ * that it is bound and initialized long before the first phrase is needed.
+ *
+ * <p>Phrases that are spoken often can be {@link #prepare}d: they are synthesized once into a WAV
+ * file in the cache directory, which the engine then plays back directly instead of synthesizing
+ * them again. Files survive restarts, and synthesis only runs while nothing is being said, so it
+ * never delays speech by more than one short phrase. Files are named after the engine, voice and
+ * speech settings too, so changing the voice synthesizes the phrases again.
+ */
+public class SpeechService {
+  private static final Logger LOGGER = new Logger();
+
+  private static final String CACHE_DIRECTORY = "speech";
+  private static final String CACHE_UTTERANCE_PREFIX = "cache:";
+  private static final String SPEECH_UTTERANCE_PREFIX = "speech:";
+  // A synthesis that reported neither success nor failure by then is considered lost.
+  private static final long SYNTHESIS_TIMEOUT_MS = 10000;
+
+  private static SpeechService instance;
+
+  /** Notified whenever everything that was queued has been said. */
+  public interface Listener {
+    /** Called on a binder thread, or on the thread that stopped the speech. */
+    void onIdle();
+  }
+
+  /** Creates the shared engine. Called once from the application, further calls do nothing. */
+  public static synchronized void initialize(final Context context) {
+    if (instance == null) {
+      instance = new SpeechService(context.getApplicationContext());
+    }
+  }
+
+  public static synchronized SpeechService getInstance() {
+    if (instance == null) {
+      throw new IllegalStateException("SpeechService.initialize() has not been called");
+    }
+    return instance;
+  }
+
+  private final TextToSpeech textToSpeech;
+  private final ContentResolver contentResolver;
+  private final File cacheDirectory;
+  // Identifies the engine, voice and settings phrases are synthesized with, set once ready.
+  private String voiceKey;
+
+  private boolean ready = false;
+  private boolean failed = false;
+  // Phrases requested before the engine finished initializing, spoken in order once it has.
+  private final List<String> pendingSpeech = new ArrayList<String>();
+  // Phrases handed to the engine and not finished yet. A flush drops the ids it cancels, so their
+  // late callbacks are ignored instead of ending the phrase that replaced them.
+  private final Set<String> outstandingSpeech = new HashSet<String>();
+  private long nextUtteranceId = 0;
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  private final Set<String> cachedTexts = new HashSet<String>();
+  private final ArrayDeque<String> textsToCache = new ArrayDeque<String>();
+  private String synthesizingText;
+  private String synthesizingId;
+  private File synthesizingFile;
+  private long synthesisStartMs;
+
+  private SpeechService(final Context context) {
+    contentResolver = context.getContentResolver();
+    cacheDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+      LOGGER.w("Cannot create speech cache in %s", cacheDirectory);
+    }
+    textToSpeech =
+        new TextToSpeech(
+            context,
+            new TextToSpeech.OnInitListener() {
+              @Override
+              public void onInit(final int status) {
+                onEngineInitialized(status);
+              }
+            });
+    textToSpeech.setOnUtteranceProgressListener(
+        new UtteranceProgressListener() {
+          @Override
+          public void onStart(final String utteranceId) {}
+
+          @Override
+          public void onDone(final String utteranceId) {
+            onUtteranceFinished(utteranceId, true);
+          }
+
+          @Override
+          public void onError(final String utteranceId) {
+            onUtteranceFinished(utteranceId, false);
+          }
+
+          @Override
+          public void onStop(final String utteranceId, final boolean interrupted) {
+            onUtteranceFinished(utteranceId, false);
+          }
+        });
+  }
+
+  /**
+   * Says a phrase. Phrases are queued behind what is already being said, unless {@code flush} is
+   * set, in which case they interrupt it.
+   *
+   * @return false if the engine is not available.
+   */
+  public synchronized boolean speak(final String text, final boolean flush) {
+    if (failed) {
+      return false;
+    }
+    if (!ready) {
+      if (flush) {
+        pendingSpeech.clear();
+      }
+      pendingSpeech.add(text);
+      return true;
+    }
+    if (flush) {
+      // Flushing also discards a synthesis in progress, so put its phrase back in line.
+      abandonSynthesis();
+      outstandingSpeech.clear();
+    }
+    final String utteranceId = SPEECH_UTTERANCE_PREFIX + nextUtteranceId++;
+    final int result =
+        textToSpeech.speak(
+            text, flush ? TextToSpeech.QUEUE_FLUSH : TextToSpeech.QUEUE_ADD, null, utteranceId);
+    if (result != TextToSpeech.SUCCESS) {
+      LOGGER.w("Could not say \"%s\"", text);
+      return false;
+    }
+    outstandingSpeech.add(utteranceId);
+    return true;
+  }
+
+  /** Stops speaking and drops everything that was queued. */
+  public void stop() {
+    synchronized (this) {
+      pendingSpeech.clear();
+      if (ready) {
+        abandonSynthesis();
+        textToSpeech.stop();
+      }
+      outstandingSpeech.clear();
+      synthesizeNext();
+    }
+    notifyIdle();
+  }
+
+  public void addListener(final Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(final Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Returns true while a phrase is being said or waiting to be said. */
+  public synchronized boolean isSpeaking() {
+    return !pendingSpeech.isEmpty() || !outstandingSpeech.isEmpty();
+  }
+
+  /**
+   * Makes sure the phrase will be played back from the cache. Phrases already synthesized, in this
+   * or an earlier run with the same voice, are registered with the engine as soon as it is ready,
+   * the others as soon as it is idle.
+   */
+  public synchronized void prepare(final String text) {
+    if (cachedTexts.contains(text)
+        || text.equals(synthesizingText)
+        || textsToCache.contains(text)) {
+      return;
+    }
+    if (!ready) {
+      // The voice, and so the file name, is only known once the engine is initialized.
+      textsToCache.add(text);
+      return;
+    }
+    final File file = cacheFile(text);
+    if (file.length() > 0) {
+      registerCached(text, file);
+      return;
+    }
+    textsToCache.add(text);
+    synthesizeNext();
+  }
+
+  private void onEngineInitialized(final int status) {
+    if (status != TextToSpeech.SUCCESS) {
+      LOGGER.e("Text to speech could not be initialized: %d", status);
+      synchronized (this) {
+        failed = true;
+        pendingSpeech.clear();
+      }
+      notifyIdle();
+      return;
+    }
+    startSpeaking();
+  }
+
+  private synchronized void startSpeaking() {
+    textToSpeech.setLanguage(Locale.ENGLISH);
+    voiceKey = describeVoice();
+    deleteOtherVoices();
+    ready = true;
+    LOGGER.i("Text to speech ready, %d phrases waiting", pendingSpeech.size());
+    final Iterator<String> texts = textsToCache.iterator();
+    while (texts.hasNext()) {
+      final String text = texts.next();
+      final File file = cacheFile(text);
+      if (file.length() > 0) {
+        registerCached(text, file);
+        texts.remove();
+      }
+    }
+    for (final String text : pendingSpeech) {
+      speak(text, false);
+    }
+    pendingSpeech.clear();
+    synthesizeNext();
+  }
+
+  private void onUtteranceFinished(final String utteranceId, final boolean success) {
+    final boolean idle;
+    synchronized (this) {
+      idle = finishUtterance(utteranceId, success);
+    }
+    // Outside the lock, since listeners typically call back into speak().
+    if (idle) {
+      notifyIdle();
+    }
+  }
+
+  /** Returns true if the utterance was the last speech in the queue. */
+  private boolean finishUtterance(final String utteranceId, final boolean success) {
+    boolean idle = false;
+    if (utteranceId != null && utteranceId.startsWith(CACHE_UTTERANCE_PREFIX)) {
+      // Callbacks of an abandoned synthesis arrive late, and must not end the current one.
+      if (utteranceId.equals(synthesizingId)) {
+        final File file = cacheFile(synthesizingText);
+        if (success && synthesizingFile.renameTo(file)) {
+          registerCached(synthesizingText, file);
+        } else {
+          LOGGER.w("Could not cache \"%s\"", synthesizingText);
+          synthesizingFile.delete();
+        }
+        synthesizingText = null;
+        synthesizingId = null;
+        synthesizingFile = null;
+      }
+    } else if (utteranceId != null && outstandingSpeech.remove(utteranceId)) {
+      // Only phrases still outstanding count, a phrase cancelled by a flush does not end the one
+      // that replaced it.
+      idle = outstandingSpeech.isEmpty();
+    }
+    synthesizeNext();
+    return idle;
+  }
+
+  private void notifyIdle() {
+    for (final Listener listener : listeners) {
+      listener.onIdle();
+    }
+  }
+
+  private void synthesizeNext() {
+    if (synthesizingText != null
+        && SystemClock.uptimeMillis() - synthesisStartMs > SYNTHESIS_TIMEOUT_MS) {
+      LOGGER.w("Synthesis of \"%s\" timed out", synthesizingText);
+      abandonSynthesis();
+    }
+    if (!ready
+        || synthesizingText != null
+        || !outstandingSpeech.isEmpty()
+        || textsToCache.isEmpty()) {
+      return;
+    }
+    final String text = textsToCache.poll();
+    final File target = new File(cacheDirectory, cacheFile(text).getName() + ".tmp");
+    final String utteranceId = CACHE_UTTERANCE_PREFIX + nextUtteranceId++;
+    final int result = textToSpeech.synthesizeToFile(text, null, target, utteranceId);
+    if (result != TextToSpeech.SUCCESS) {
+      LOGGER.w("Could not synthesize \"%s\"", text);
+      return;
+    }
+    synthesizingText = text;
+    synthesizingId = utteranceId;
+    synthesizingFile = target;
+    synthesisStartMs = SystemClock.uptimeMillis();
+  }
+
+  private void abandonSynthesis() {
+    if (synthesizingText == null) {
+      return;
+    }
+    textsToCache.addFirst(synthesizingText);
+    synthesizingFile.delete();
+    synthesizingText = null;
+    synthesizingId = null;
+    synthesizingFile = null;
+  }
+
+  private void registerCached(final String text, final File file) {
+    textToSpeech.addSpeech(text, file);
+    cachedTexts.add(text);
+  }
+
+  private File cacheFile(final String text) {
+    // Hash and length together make collisions between the few phrases of the app unlikely.
+    return new File(
+        cacheDirectory,
+        voicePrefix()
+            + Integer.toHexString(text.hashCode())
+            + "_"
+            + text.length()
+            + ".wav");
+  }
+
+  /** Deletes phrases synthesized with another voice, which will never be played again. */
+  private void deleteOtherVoices() {
+    final File[] files = cacheDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    final String prefix = voicePrefix();
+    for (final File file : files) {
+      if (!file.getName().startsWith(prefix) && !file.delete()) {
+        LOGGER.w("Cannot delete %s", file);
+      }
+    }
+  }
+
+  private String voicePrefix() {
+    return Integer.toHexString(voiceKey.hashCode()) + "_";
+  }
+
+  /** Returns what the synthesized audio depends on besides the text. */
+  private String describeVoice() {
+    final Voice voice = textToSpeech.getVoice();
+    return textToSpeech.getDefaultEngine()
+        + "/"
+        + (voice != null ? voice.getName() + "/" + voice.getLocale() : Locale.ENGLISH)
+        + "/"
+        + Settings.Secure.getInt(contentResolver, Settings.Secure.TTS_DEFAULT_RATE, 100)
+        + "/"
+        + Settings.Secure.getInt(contentResolver, Settings.Secure.TTS_DEFAULT_PITCH, 100);
+  }
+}
@@ -17,14 +17,29 @@ package com.crawlfree.tf.app.detection.tflite;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.nio.ByteBuffer;
 import java.util.List;
 
-/** Generic interface for interacting with different recognition engines. */
+/**
+ * Generic interface for interacting with different recognition engines.
+ *
+ * <p>Implementations may reuse their results between calls: the returned list is read-only and,
+ * together with the recognitions in it, is only valid until the next call to recognizeImage or
+ * recognizeTensor. Callers that need to keep results around must copy them.
+ */
 public interface Classifier {
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /**
+   * Runs the model on an input tensor the caller has already filled, e.g. by a {@link
+   * com.crawlfree.tf.app.detection.env.YuvToTensorConverter}.
+   */
+  List<Recognition> recognizeTensor(ByteBuffer inputTensor);
+
+  /** While enabled, the classifier periodically logs its stat string. */
   void enableStatLogging(final boolean debug);
 
+  /** Returns the latency percentiles of the classifier's stages, one stage per line. */
   String getStatString();
 
   void close();
@@ -33,33 +48,74 @@ public interface Classifier {
 
   void setUseNNAPI(boolean isChecked);
 
-  /** An immutable result returned by a Classifier describing what was recognized. */
+  /**
+   * A result returned by a Classifier describing what was recognized. Only the classifier that
+   * returned it may update it in place, see {@link Classifier}.
+   */
   public class Recognition {
     /**
      * A unique identifier for what has been recognized. Specific to the class, not the instance of
      * the object.
      */
-    private final String id;
+    private String id;
 
     /** Display name for the recognition. */
-    private final String title;
+    private String title;
+
+    /** Index of the recognized class in the label map, or -1 if unknown. */
+    private int classId = -1;
 
     /**
      * A sortable score for how good the recognition is relative to others. Higher should be better.
      */
-    private final Float confidence;
+    private float confidence;
 
     /** Optional location within the source image for the location of the recognized object. */
     private RectF location;
 
     public Recognition(
-        final String id, final String title, final Float confidence, final RectF location) {
+        final String id, final String title, final float confidence, final RectF location) {
       this.id = id;
       this.title = title;
       this.confidence = confidence;
       this.location = location;
     }
 
+    /** Overwrites this recognition in place so that pooled instances can be reused. */
+    void set(
+        final String id,
+        final int classId,
+        final String title,
+        final float confidence,
+        final float left,
+        final float top,
+        final float right,
+        final float bottom) {
+      this.id = id;
+      this.classId = classId;
+      this.title = title;
+      this.confidence = confidence;
+      if (location == null) {
+        location = new RectF();
+      }
+      location.set(left, top, right, bottom);
+    }
+
+    /** Copies another recognition into this one, e.g. to keep it past the classifier's next run. */
+    public void copyFrom(final Recognition other) {
+      id = other.id;
+      classId = other.classId;
+      title = other.title;
+      confidence = other.confidence;
+      if (other.location == null) {
+        location = null;
+      } else if (location == null) {
+        location = new RectF(other.location);
+      } else {
+        location.set(other.location);
+      }
+    }
+
     public String getId() {
       return id;
     }
@@ -68,7 +124,11 @@ public interface Classifier {
       return title;
     }
 
-    public Float getConfidence() {
+    public int getClassId() {
+      return classId;
+    }
+
+    public float getConfidence() {
       return confidence;
     }
 
@@ -76,6 +136,11 @@ public interface Classifier {
       return new RectF(location);
     }
 
+    /** Copies the location into {@code out} instead of allocating a new rectangle. */
+    public void getLocation(final RectF out) {
+      out.set(location);
+    }
+
     public void setLocation(RectF location) {
       this.location = location;
     }
@@ -91,9 +156,7 @@ public interface Classifier {
         resultString += title + " ";
       }
 
-      if (confidence != null) {
-        resultString += String.format("(%.1f%%) ", confidence * 100.0f);
-      }
+      resultString += String.format("(%.1f%%) ", confidence * 100.0f);
 
       if (location != null) {
         resultString += location + " ";
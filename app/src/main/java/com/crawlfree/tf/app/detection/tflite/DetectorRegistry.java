@@ -0,0 +1,147 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.tflite;
+
+import android.content.res.AssetManager;
+import android.os.SystemClock;
+
+import com.crawlfree.tf.app.detection.env.Logger;
+
+import java.io.IOException;
+
+/**
+ * Process-wide cache of the detection model. The labels, the memory-mapped model and the
+ * interpreter are loaded and warmed up once, then handed to every detection session, instead of
+ * being rebuilt each time a search starts.
+ *
+ * <p>Sessions {@link #acquire} the detector when they become active and {@link #release} it when
+ * they stop. The native interpreter is only closed by {@link #trim}, and only while no session is
+ * using it.
+ */
+public final class DetectorRegistry {
+  private static final Logger LOGGER = new Logger();
+
+  private static TFLiteObjectDetectionAPIModel detector;
+  private static String loadedModelFilename;
+  private static int users;
+
+  private DetectorRegistry() {}
+
+  /**
+   * Returns the shared detector, loading and warming it up first if needed. Every call must be
+   * balanced by a call to {@link #release}. The arguments are the same as for {@link
+   * TFLiteObjectDetectionAPIModel#create}.
+   */
+  public static synchronized Classifier acquire(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final String supportedFilename,
+      final int inputSize,
+      final boolean isQuantized)
+      throws IOException {
+    if (detector != null && !modelFilename.equals(loadedModelFilename)) {
+      if (users > 0) {
+        throw new IllegalStateException(
+            "Cannot load " + modelFilename + " while " + loadedModelFilename + " is in use");
+      }
+      close();
+    }
+    if (detector == null) {
+      final long startTime = SystemClock.uptimeMillis();
+      detector =
+          (TFLiteObjectDetectionAPIModel)
+              TFLiteObjectDetectionAPIModel.create(
+                  assetManager,
+                  modelFilename,
+                  labelFilename,
+                  supportedFilename,
+                  inputSize,
+                  isQuantized);
+      detector.warmUp();
+      loadedModelFilename = modelFilename;
+      LOGGER.i(
+          "Loaded and warmed up %s in %dms",
+          modelFilename, SystemClock.uptimeMillis() - startTime);
+    }
+    ++users;
+    return detector;
+  }
+
+  /**
+   * Hands back a detector obtained from {@link #acquire}. Once no session uses it, the interpreter
+   * options a session changed are restored, since the next session starts with default controls.
+   */
+  public static synchronized void release(final Classifier classifier) {
+    if (classifier == null || classifier != detector) {
+      return;
+    }
+    if (users > 0) {
+      --users;
+    }
+    if (users == 0) {
+      detector.restoreDefaultOptions();
+    }
+  }
+
+  /**
+   * Loads and warms up the detector on a background thread, so that the first session finds it
+   * ready. Sessions that ask for it in the meantime simply wait for the load to finish.
+   */
+  public static void preload(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final String supportedFilename,
+      final int inputSize,
+      final boolean isQuantized) {
+    new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  release(
+                      acquire(
+                          assetManager,
+                          modelFilename,
+                          labelFilename,
+                          supportedFilename,
+                          inputSize,
+                          isQuantized));
+                } catch (final IOException e) {
+                  LOGGER.e(e, "Exception preloading detector!");
+                }
+              }
+            },
+            "detector-preload")
+        .start();
+  }
+
+  /** Frees the native interpreter if no session is using it. The next acquire reloads it. */
+  public static synchronized void trim() {
+    if (detector == null || users > 0) {
+      return;
+    }
+    LOGGER.i("Releasing %s", loadedModelFilename);
+    close();
+  }
+
+  private static void close() {
+    detector.close();
+    detector = null;
+    loadedModelFilename = null;
+  }
+}
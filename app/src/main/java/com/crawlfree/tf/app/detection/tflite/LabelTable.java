@@ -0,0 +1,147 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.tflite;
+
+import android.content.res.AssetManager;
+
+import com.crawlfree.tf.app.detection.env.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The classes of the detection model, indexed by class id, and which of them the app supports. It
+ * is read once from the label map and the list of supported objects, and shared by everything that
+ * needs to turn class ids into labels or back, so that per-frame code only compares integers.
+ */
+public final class LabelTable {
+  private static final Logger LOGGER = new Logger();
+  private static final String ASSET_PREFIX = "file:///android_asset/";
+
+  private static LabelTable cached;
+  private static String cachedLabelFilename;
+  private static String cachedSupportedFilename;
+
+  private final String[] labels;
+  private final Map<String, Integer> classIds;
+  private final BitSet supported;
+
+  private LabelTable(final String[] labels, final BitSet supported) {
+    this.labels = labels;
+    this.supported = supported;
+    classIds = new HashMap<String, Integer>(labels.length * 2);
+    for (int classId = 0; classId < labels.length; ++classId) {
+      // The first occurrence wins, e.g. for the repeated "???" placeholders.
+      if (!classIds.containsKey(labels[classId])) {
+        classIds.put(labels[classId], classId);
+      }
+    }
+  }
+
+  /**
+   * Returns the table for the given files, reading them the first time only.
+   *
+   * @param labelFilename Label map, one label per line, the line number being the class id.
+   * @param supportedFilename Labels of the objects the app supports, one per line.
+   */
+  public static synchronized LabelTable load(
+      final AssetManager assetManager, final String labelFilename, final String supportedFilename)
+      throws IOException {
+    if (cached != null
+        && labelFilename.equals(cachedLabelFilename)
+        && supportedFilename.equals(cachedSupportedFilename)) {
+      return cached;
+    }
+    final List<String> labelLines = readLines(assetManager, labelFilename);
+    final String[] labels = labelLines.toArray(new String[0]);
+    final LabelTable table = new LabelTable(labels, new BitSet(labels.length));
+    for (final String line : readLines(assetManager, supportedFilename)) {
+      final int classId = table.getClassId(line);
+      if (classId < 0) {
+        LOGGER.w("Supported object \"%s\" is not in %s", line, labelFilename);
+        continue;
+      }
+      table.supported.set(classId);
+    }
+    LOGGER.i(
+        "Loaded %d labels from %s, %d supported",
+        labels.length, labelFilename, table.supported.cardinality());
+    cached = table;
+    cachedLabelFilename = labelFilename;
+    cachedSupportedFilename = supportedFilename;
+    return table;
+  }
+
+  /** Returns the number of class ids, including the background class. */
+  public int size() {
+    return labels.length;
+  }
+
+  /** Returns the label of a class id, or null if it is out of range. */
+  public String getLabel(final int classId) {
+    return classId >= 0 && classId < labels.length ? labels[classId] : null;
+  }
+
+  /** Returns the class id of a label, ignoring case and surrounding spaces, or -1. */
+  public int getClassId(final String label) {
+    if (label == null) {
+      return -1;
+    }
+    Integer classId = classIds.get(label);
+    if (classId == null) {
+      classId = classIds.get(label.trim().toLowerCase(Locale.US));
+    }
+    return classId != null ? classId : -1;
+  }
+
+  public boolean isSupported(final int classId) {
+    return classId >= 0 && supported.get(classId);
+  }
+
+  /** Returns a copy of the set of supported class ids. */
+  public BitSet getSupported() {
+    return (BitSet) supported.clone();
+  }
+
+  private static List<String> readLines(final AssetManager assetManager, final String filename)
+      throws IOException {
+    final String assetName =
+        filename.startsWith(ASSET_PREFIX) ? filename.substring(ASSET_PREFIX.length()) : filename;
+    final List<String> lines = new ArrayList<String>();
+    final BufferedReader reader =
+        new BufferedReader(new InputStreamReader(assetManager.open(assetName)));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line.trim());
+      }
+    } finally {
+      reader.close();
+    }
+    // Supported objects may end with a blank line, the label map may not have any.
+    while (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) {
+      lines.remove(lines.size() - 1);
+    }
+    return lines;
+  }
+}
@@ -21,22 +21,21 @@ import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.os.Trace;
 
+import com.crawlfree.tf.app.detection.env.LatencyStats;
 import com.crawlfree.tf.app.detection.env.Logger;
+import com.crawlfree.tf.app.detection.env.RowBandExecutor;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 
 import org.tensorflow.lite.Interpreter;
 
@@ -52,15 +51,25 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
   // Only return this many results.
   private static final int NUM_DETECTIONS = 10;
   // Float model
-  private static final float IMAGE_MEAN = 128.0f;
-  private static final float IMAGE_STD = 128.0f;
+  public static final float IMAGE_MEAN = 128.0f;
+  public static final float IMAGE_STD = 128.0f;
   // Number of threads in the java app
-  private static final int NUM_THREADS = 4;
+  public static final int NUM_THREADS = 4;
+  // With stat logging enabled, the stats are logged every this many inferences.
+  private static final int STAT_LOG_INTERVAL = 100;
+
+  private enum Stage {
+    PREPROCESS,
+    FEED,
+    RUN,
+    POSTPROCESS
+  }
   private boolean isModelQuantized;
   // Config values.
   private int inputSize;
+  // Detections of every class are returned, landmarks as well as searchable objects.
+  private LabelTable labels;
   // Pre-allocated buffers.
-  private Vector<String> labels = new Vector<String>();
   private int[] intValues;
   // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
   // contains the location of detected boxes
@@ -76,9 +85,30 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
   private float[] numDetections;
 
   private ByteBuffer imgData;
+  // Interpreter options set by the session using the detector, see restoreDefaultOptions().
+  private int numThreads = NUM_THREADS;
+  private boolean useNNAPI = false;
+  // Splits the preprocessing into bands of rows over the cores the interpreter leaves idle.
+  private final RowBandExecutor imageOps = RowBandExecutor.getShared(NUM_THREADS);
+  private final RowBandExecutor.Kernel preprocessKernel = this::preprocessRows;
+
+  // Feed and fetch containers handed to the interpreter on every run.
+  private final Object[] inputArray = new Object[1];
+  private final Map<Integer, Object> outputMap = new HashMap<>();
+
+  // Pooled results, overwritten in place on every run and exposed through a read-only view.
+  private final Recognition[] recognitionPool = new Recognition[NUM_DETECTIONS];
+  private final String[] detectionIds = new String[NUM_DETECTIONS];
+  private final List<Recognition> recognitions = new ArrayList<>(NUM_DETECTIONS);
+  private final List<Recognition> recognitionsView = Collections.unmodifiableList(recognitions);
 
   private Interpreter tfLite;
 
+  private final LatencyStats<Stage> stats = new LatencyStats<Stage>(Stage.class);
+  private final StringBuilder statBuilder = new StringBuilder();
+  private volatile boolean logStats = false;
+  private long inferenceCount = 0;
+
   private TFLiteObjectDetectionAPIModel() {}
 
   /** Memory-map the model file in Assets. */
@@ -98,6 +128,7 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
    * @param assetManager The asset manager to be used to load assets.
    * @param modelFilename The filepath of the model GraphDef protocol buffer.
    * @param labelFilename The filepath of label file for classes.
+   * @param supportedFilename The filepath of the list of classes the user can search for.
    * @param inputSize The size of image input
    * @param isQuantized Boolean representing model is quantized or not
    */
@@ -105,22 +136,13 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       final AssetManager assetManager,
       final String modelFilename,
       final String labelFilename,
+      final String supportedFilename,
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
     final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
 
-    InputStream labelsInput = null;
-    String actualFilename = labelFilename.split("file:///android_asset/")[1];
-    labelsInput = assetManager.open(actualFilename);
-    BufferedReader br = null;
-    br = new BufferedReader(new InputStreamReader(labelsInput));
-    String line;
-    while ((line = br.readLine()) != null) {
-      LOGGER.w(line);
-      d.labels.add(line);
-    }
-    br.close();
+    d.labels = LabelTable.load(assetManager, labelFilename, supportedFilename);
 
     d.inputSize = inputSize;
 
@@ -147,99 +169,168 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
     d.outputClasses = new float[1][NUM_DETECTIONS];
     d.outputScores = new float[1][NUM_DETECTIONS];
     d.numDetections = new float[1];
+    d.outputMap.put(0, d.outputLocations);
+    d.outputMap.put(1, d.outputClasses);
+    d.outputMap.put(2, d.outputScores);
+    d.outputMap.put(3, d.numDetections);
+    for (int i = 0; i < NUM_DETECTIONS; ++i) {
+      d.detectionIds[i] = "" + i;
+      d.recognitionPool[i] = new Recognition(d.detectionIds[i], null, 0, new RectF());
+    }
     return d;
   }
 
   @Override
-  public List<Recognition> recognizeImage(final Bitmap bitmap) {
+  public synchronized List<Recognition> recognizeImage(final Bitmap bitmap) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
     Trace.beginSection("preprocessBitmap");
+    final long preprocessStart = System.nanoTime();
     // Preprocess the image data from 0-255 int to normalized float based
     // on the provided parameters.
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
+    imageOps.execute(inputSize, inputSize, 1, preprocessKernel);
     imgData.rewind();
-    for (int i = 0; i < inputSize; ++i) {
+    stats.record(Stage.PREPROCESS, preprocessStart);
+    Trace.endSection(); // preprocessBitmap
+
+    final List<Recognition> recognitions = recognizeTensor(imgData);
+    Trace.endSection(); // "recognizeImage"
+    return recognitions;
+  }
+
+  /** Normalizes rows {@code startRow} to {@code endRow} of intValues into imgData. */
+  private void preprocessRows(final int startRow, final int endRow) {
+    for (int i = startRow; i < endRow; ++i) {
       for (int j = 0; j < inputSize; ++j) {
-        int pixelValue = intValues[i * inputSize + j];
+        final int pixel = i * inputSize + j;
+        int pixelValue = intValues[pixel];
+        // Absolute puts, so that bands can fill the buffer concurrently.
         if (isModelQuantized) {
           // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
+          imgData.put(pixel * 3, (byte) ((pixelValue >> 16) & 0xFF));
+          imgData.put(pixel * 3 + 1, (byte) ((pixelValue >> 8) & 0xFF));
+          imgData.put(pixel * 3 + 2, (byte) (pixelValue & 0xFF));
         } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          imgData.putFloat(pixel * 12, (((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          imgData.putFloat(pixel * 12 + 4, (((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          imgData.putFloat(pixel * 12 + 8, ((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
         }
       }
     }
-    Trace.endSection(); // preprocessBitmap
+  }
 
-    // Copy the input data into TensorFlow.
+  /**
+   * Runs one inference on a blank input, so that the interpreter allocates its tensors and the
+   * first real frame does not pay for it.
+   */
+  void warmUp() {
+    Trace.beginSection("warmUp");
+    imgData.rewind();
+    while (imgData.hasRemaining()) {
+      imgData.put((byte) 0);
+    }
+    imgData.rewind();
+    recognizeTensor(imgData);
+    // The first run allocates tensors, which would distort the stats for a long time.
+    stats.reset();
+    inferenceCount = 0;
+    Trace.endSection();
+  }
+
+  @Override
+  public synchronized List<Recognition> recognizeTensor(final ByteBuffer inputTensor) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeTensor");
+
+    // Copy the input data into TensorFlow. The output arrays are filled in place.
     Trace.beginSection("feed");
-    outputLocations = new float[1][NUM_DETECTIONS][4];
-    outputClasses = new float[1][NUM_DETECTIONS];
-    outputScores = new float[1][NUM_DETECTIONS];
-    numDetections = new float[1];
-
-    Object[] inputArray = {imgData};
-    Map<Integer, Object> outputMap = new HashMap<>();
-    outputMap.put(0, outputLocations);
-    outputMap.put(1, outputClasses);
-    outputMap.put(2, outputScores);
-    outputMap.put(3, numDetections);
+    long stageStart = System.nanoTime();
+    inputArray[0] = inputTensor;
+    stageStart = stats.record(Stage.FEED, stageStart);
     Trace.endSection();
 
     // Run the inference call.
     Trace.beginSection("run");
     tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    stageStart = stats.record(Stage.RUN, stageStart);
     Trace.endSection();
 
     // Show the best detections.
     // after scaling them back to the input size.
-    final ArrayList<Recognition> recognitions = new ArrayList<>(NUM_DETECTIONS);
+    recognitions.clear();
     for (int i = 0; i < NUM_DETECTIONS; ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[0][i][1] * inputSize,
-              outputLocations[0][i][0] * inputSize,
-              outputLocations[0][i][3] * inputSize,
-              outputLocations[0][i][2] * inputSize);
       // SSD Mobilenet V1 Model assumes class 0 is background class
       // in label file and class labels start from 1 to number_of_classes+1,
       // while outputClasses correspond to class index from 0 to number_of_classes
       int labelOffset = 1;
-      recognitions.add(
-          new Recognition(
-              "" + i,
-              labels.get((int) outputClasses[0][i] + labelOffset),
-              outputScores[0][i],
-              detection));
+      final int classId = (int) outputClasses[0][i] + labelOffset;
+      final Recognition recognition = recognitionPool[recognitions.size()];
+      recognition.set(
+          detectionIds[i],
+          classId,
+          labels.getLabel(classId),
+          outputScores[0][i],
+          outputLocations[0][i][1] * inputSize,
+          outputLocations[0][i][0] * inputSize,
+          outputLocations[0][i][3] * inputSize,
+          outputLocations[0][i][2] * inputSize);
+      recognitions.add(recognition);
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
+    stats.record(Stage.POSTPROCESS, stageStart);
+    if (logStats && ++inferenceCount % STAT_LOG_INTERVAL == 0) {
+      LOGGER.i("Detector stats after %d inferences:\n%s", inferenceCount, getStatString());
+    }
+    Trace.endSection(); // "recognizeTensor"
+    return recognitionsView;
   }
 
   @Override
-  public void enableStatLogging(final boolean logStats) {}
+  public void enableStatLogging(final boolean logStats) {
+    this.logStats = logStats;
+  }
 
+  /** Returns p50/p90/p99/max of every stage of the model since it was warmed up. */
   @Override
   public String getStatString() {
-    return "";
+    synchronized (statBuilder) {
+      statBuilder.setLength(0);
+      stats.appendTo(statBuilder);
+      return statBuilder.toString();
+    }
   }
 
   @Override
-  public void close() {}
+  public synchronized void close() {
+    if (tfLite != null) {
+      tfLite.close();
+      tfLite = null;
+    }
+  }
 
-  public void setNumThreads(int num_threads) {
+  public synchronized void setNumThreads(int num_threads) {
+    numThreads = num_threads;
     if (tfLite != null) tfLite.setNumThreads(num_threads);
   }
 
   @Override
-  public void setUseNNAPI(boolean isChecked) {
+  public synchronized void setUseNNAPI(boolean isChecked) {
+    useNNAPI = isChecked;
     if (tfLite != null) tfLite.setUseNNAPI(isChecked);
   }
+
+  /**
+   * Undoes {@link #setNumThreads} and {@link #setUseNNAPI}, so that the next session finds the
+   * detector as its controls show it.
+   */
+  synchronized void restoreDefaultOptions() {
+    if (numThreads != NUM_THREADS) {
+      setNumThreads(NUM_THREADS);
+    }
+    if (useNNAPI) {
+      setUseNNAPI(false);
+    }
+  }
 }
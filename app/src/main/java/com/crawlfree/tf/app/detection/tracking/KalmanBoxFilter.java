@@ -0,0 +1,120 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.tracking;
+
+import android.graphics.RectF;
+
+/**
+ * Constant-velocity Kalman filter for a bounding box. The box center and size are filtered as four
+ * independent position/velocity pairs, which keeps every step a handful of multiplications.
+ */
+class KalmanBoxFilter {
+  // Process noise of the velocity, in pixels per frame, squared.
+  private static final float PROCESS_NOISE = 4.0f;
+  // Measurement noise of the detector, in pixels, squared.
+  private static final float MEASUREMENT_NOISE = 16.0f;
+  // Initial velocity uncertainty, since a new track has not moved yet.
+  private static final float INITIAL_VELOCITY_VARIANCE = 100.0f;
+
+  private static final int CENTER_X = 0;
+  private static final int CENTER_Y = 1;
+  private static final int WIDTH = 2;
+  private static final int HEIGHT = 3;
+
+  // Per dimension: position, velocity, and the covariance [p00 p01; p01 p11].
+  private final float[] position = new float[4];
+  private final float[] velocity = new float[4];
+  private final float[] p00 = new float[4];
+  private final float[] p01 = new float[4];
+  private final float[] p11 = new float[4];
+
+  private final float[] measurement = new float[4];
+
+  void reset(final RectF box) {
+    toMeasurement(box);
+    for (int i = 0; i < 4; ++i) {
+      position[i] = measurement[i];
+      velocity[i] = 0;
+      p00[i] = MEASUREMENT_NOISE;
+      p01[i] = 0;
+      p11[i] = INITIAL_VELOCITY_VARIANCE;
+    }
+  }
+
+  /** Advances the state by {@code frames} frames without a measurement. */
+  void predict(final float frames) {
+    if (frames <= 0) {
+      return;
+    }
+    final float q = PROCESS_NOISE * frames;
+    for (int i = 0; i < 4; ++i) {
+      position[i] += velocity[i] * frames;
+      // P = F P F^T + Q, with F = [1 dt; 0 1] and the noise on the velocity.
+      p00[i] += frames * (2 * p01[i] + frames * p11[i]);
+      p01[i] += frames * p11[i];
+      p11[i] += q;
+    }
+    // A box cannot shrink below nothing, however fast it was shrinking.
+    position[WIDTH] = Math.max(position[WIDTH], 1.0f);
+    position[HEIGHT] = Math.max(position[HEIGHT], 1.0f);
+  }
+
+  /** Corrects the state with a measured box. */
+  void update(final RectF box) {
+    toMeasurement(box);
+    for (int i = 0; i < 4; ++i) {
+      final float innovation = measurement[i] - position[i];
+      final float s = p00[i] + MEASUREMENT_NOISE;
+      final float k0 = p00[i] / s;
+      final float k1 = p01[i] / s;
+      position[i] += k0 * innovation;
+      velocity[i] += k1 * innovation;
+      // P = (I - K H) P
+      final float oldP00 = p00[i];
+      final float oldP01 = p01[i];
+      p00[i] -= k0 * oldP00;
+      p01[i] -= k0 * oldP01;
+      p11[i] -= k1 * oldP01;
+    }
+  }
+
+  /** Writes the current box estimate into {@code out}. */
+  void getBox(final RectF out) {
+    final float halfWidth = position[WIDTH] / 2;
+    final float halfHeight = position[HEIGHT] / 2;
+    out.set(
+        position[CENTER_X] - halfWidth,
+        position[CENTER_Y] - halfHeight,
+        position[CENTER_X] + halfWidth,
+        position[CENTER_Y] + halfHeight);
+  }
+
+  /** Returns the estimated motion of the box center, in pixels per frame. */
+  float getVelocityX() {
+    return velocity[CENTER_X];
+  }
+
+  float getVelocityY() {
+    return velocity[CENTER_Y];
+  }
+
+  private void toMeasurement(final RectF box) {
+    measurement[CENTER_X] = box.centerX();
+    measurement[CENTER_Y] = box.centerY();
+    measurement[WIDTH] = box.width();
+    measurement[HEIGHT] = box.height();
+  }
+}
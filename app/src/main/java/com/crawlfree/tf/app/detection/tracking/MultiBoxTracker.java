@@ -32,16 +32,33 @@ import com.crawlfree.tf.app.detection.env.BorderedText;
 import com.crawlfree.tf.app.detection.env.ImageUtils;
 import com.crawlfree.tf.app.detection.env.Logger;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 
 import com.crawlfree.tf.app.detection.tflite.Classifier.Recognition;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * A tracker that matches existing objects to new detections. Tracks keep a stable id and color for
+ * as long as they are alive, and move between detections with a constant-velocity Kalman filter.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // Minimum overlap for a detection to continue an existing track of the same class.
+  private static final float MIN_MATCH_IOU = 0.3f;
+  // Consecutive detections a new track needs before it is shown.
+  private static final int MIN_HITS_TO_CONFIRM = 2;
+  // Consecutive missed detections after which a track is dropped.
+  private static final int MAX_MISSES = 5;
+  // Optical flow follows a FLOW_GRID x FLOW_GRID grid of points inside every box.
+  private static final int FLOW_GRID = 4;
+  private static final int FLOW_POINTS = FLOW_GRID * FLOW_GRID;
+  // Frames of motion every track remembers, to bring results of older frames up to date.
+  private static final int MOTION_HISTORY = 16;
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -62,7 +79,7 @@ public class MultiBoxTracker {
   final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
   private final Logger logger = new Logger();
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  private final List<TrackedRecognition> trackedObjects = new ArrayList<TrackedRecognition>();
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
@@ -70,6 +87,24 @@ public class MultiBoxTracker {
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
+  private int nextTrackId = 1;
+  private long lastTimestamp = -1;
+
+  // Reused by propagate(), sized for one track at a time.
+  private final float[] flowPoints = new float[2 * FLOW_POINTS];
+  private final float[] flowTracked = new float[2 * FLOW_POINTS];
+  private final boolean[] flowStatus = new boolean[FLOW_POINTS];
+  private final float[] flowDx = new float[FLOW_POINTS];
+  private final float[] flowDy = new float[FLOW_POINTS];
+  private final RectF flowBox = new RectF();
+  // Reused by processResults().
+  private final float[] motion = new float[2];
+  private final RectF shiftedDetection = new RectF();
+
+  private Matrix frameToUprightMatrix;
+  private int uprightWidth;
+  private int uprightHeight;
+  private final float[] targetPoint = new float[2];
 
   //
   private String labelString;
@@ -98,6 +133,40 @@ public class MultiBoxTracker {
     frameWidth = width;
     frameHeight = height;
     this.sensorOrientation = sensorOrientation;
+    final boolean rotated = sensorOrientation % 180 != 0;
+    uprightWidth = rotated ? height : width;
+    uprightHeight = rotated ? width : height;
+    frameToUprightMatrix =
+        ImageUtils.getTransformationMatrix(
+            width, height, uprightWidth, uprightHeight, sensorOrientation, false);
+  }
+
+  /**
+   * Finds the most confident shown track of the given class, and reports where it is in the
+   * upright image the user sees.
+   *
+   * @param out Receives the horizontal position of the box center, from -1 at the left edge to 1
+   *     at the right edge, and the box area as a fraction of the frame.
+   * @return false if no such object is being tracked.
+   */
+  public synchronized boolean getTargetPosition(final int classId, final float[] out) {
+    TrackedRecognition best = null;
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.isConfirmed()
+          && track.classId == classId
+          && (best == null || track.detectionConfidence > best.detectionConfidence)) {
+        best = track;
+      }
+    }
+    if (best == null || frameToUprightMatrix == null) {
+      return false;
+    }
+    targetPoint[0] = best.location.centerX();
+    targetPoint[1] = best.location.centerY();
+    frameToUprightMatrix.mapPoints(targetPoint);
+    out[0] = Math.max(-1, Math.min(1, 2 * targetPoint[0] / uprightWidth - 1));
+    out[1] = best.location.width() * best.location.height() / (frameWidth * (float) frameHeight);
+    return true;
   }
 
   public synchronized void drawDebug(final Canvas canvas) {
@@ -120,7 +189,76 @@ public class MultiBoxTracker {
 
   public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
     logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+    processResults(results, timestamp);
+  }
+
+  /** Drops every track, e.g. when frames resume after a pause and the boxes no longer apply. */
+  public synchronized void reset() {
+    for (final TrackedRecognition track : trackedObjects) {
+      availableColors.add(track.color);
+    }
+    trackedObjects.clear();
+    screenRects.clear();
+    lastTimestamp = -1;
+  }
+
+  /**
+   * Moves every track along the optical flow between the last two frames, for frames the detector
+   * did not run on. Each box follows the median motion of a grid of points inside it, which is fed
+   * to the track's filter as a measurement. Tracks whose points were lost only coast on their
+   * motion model.
+   *
+   * @return The fraction of points that could be followed, i.e. how far the boxes can be trusted
+   *     without a new detection. 1 if nothing is being tracked.
+   */
+  public synchronized float propagate(final OpticalFlow flow, final long timestamp) {
+    if (trackedObjects.isEmpty()) {
+      lastTimestamp = Math.max(lastTimestamp, timestamp);
+      return 1.0f;
+    }
+    final float frames = lastTimestamp < 0 ? 0 : timestamp - lastTimestamp;
+    lastTimestamp = Math.max(lastTimestamp, timestamp);
+
+    int totalFound = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      final RectF box = track.location;
+      for (int gy = 0; gy < FLOW_GRID; ++gy) {
+        for (int gx = 0; gx < FLOW_GRID; ++gx) {
+          final int p = gy * FLOW_GRID + gx;
+          flowPoints[2 * p] = box.left + box.width() * (gx + 1) / (FLOW_GRID + 1);
+          flowPoints[2 * p + 1] = box.top + box.height() * (gy + 1) / (FLOW_GRID + 1);
+        }
+      }
+      flow.track(flowPoints, FLOW_POINTS, flowTracked, flowStatus);
+
+      int found = 0;
+      for (int p = 0; p < FLOW_POINTS; ++p) {
+        if (flowStatus[p]) {
+          flowDx[found] = flowTracked[2 * p] - flowPoints[2 * p];
+          flowDy[found] = flowTracked[2 * p + 1] - flowPoints[2 * p + 1];
+          ++found;
+        }
+      }
+      totalFound += found;
+
+      // The median ignores points that landed on the background or on an occluder.
+      flowBox.set(box);
+      track.filter.predict(frames);
+      if (found >= FLOW_POINTS / 2) {
+        flowBox.offset(median(flowDx, found), median(flowDy, found));
+        track.filter.update(flowBox);
+      }
+      track.filter.getBox(track.location);
+      track.remember(timestamp);
+    }
+    return totalFound / (float) (FLOW_POINTS * trackedObjects.size());
+  }
+
+  private static float median(final float[] values, final int count) {
+    Arrays.sort(values, 0, count);
+    return (count & 1) == 1
+        ? values[count / 2]
+        : (values[count / 2 - 1] + values[count / 2]) / 2;
   }
 
   private Matrix getFrameToCanvasMatrix() {
@@ -142,6 +280,9 @@ public class MultiBoxTracker {
             sensorOrientation,
             false);
     for (final TrackedRecognition recognition : trackedObjects) {
+      if (!recognition.isConfirmed()) {
+        continue;
+      }
       final RectF trackedPos = new RectF(recognition.location);
 
       getFrameToCanvasMatrix().mapRect(trackedPos);
@@ -161,7 +302,7 @@ public class MultiBoxTracker {
     }
   }
 
-  private void processResults(final List<Recognition> results) {
+  private void processResults(final List<Recognition> results, final long timestamp) {
     final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
 
     screenRects.clear();
@@ -189,31 +330,217 @@ public class MultiBoxTracker {
       rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
     }
 
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
-      logger.v("Nothing to track, aborting.");
-      return;
+    // Results of a frame older than the tracks, which optical flow already carried further, are
+    // moved along with each track before they are matched to it. Tracks whose motion since that
+    // frame is unknown are matched as-is but not corrected, so that they are not pulled back.
+    final boolean stale = timestamp < lastTimestamp;
+    float sceneMotionX = 0;
+    float sceneMotionY = 0;
+    int tracksWithMotion = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      track.motionKnown = !stale || track.getMotionSince(timestamp, motion);
+      track.motionX = stale && track.motionKnown ? motion[0] : 0;
+      track.motionY = stale && track.motionKnown ? motion[1] : 0;
+      if (stale && track.motionKnown) {
+        sceneMotionX += track.motionX;
+        sceneMotionY += track.motionY;
+        ++tracksWithMotion;
+      }
     }
+    if (tracksWithMotion > 0) {
+      sceneMotionX /= tracksWithMotion;
+      sceneMotionY /= tracksWithMotion;
+    }
+
+    // Move every track to where it should be now, then match detections against that.
+    predictTracks(timestamp);
 
+    final int numDetections = rectsToTrack.size();
+    final Recognition[] detections = new Recognition[numDetections];
+    final RectF[] detectionRects = new RectF[numDetections];
+    int d = 0;
     for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size()];
-      trackedObjects.add(trackedRecognition);
-
-      if (trackedObjects.size() >= COLORS.length) {
+      detections[d] = potential.second;
+      detectionRects[d] = potential.second.getLocation();
+      ++d;
+    }
+
+    // Greedy association: repeatedly take the best-overlapping pair of the same class.
+    final boolean[] detectionMatched = new boolean[numDetections];
+    for (final TrackedRecognition track : trackedObjects) {
+      track.matched = false;
+    }
+    while (true) {
+      TrackedRecognition bestTrack = null;
+      int bestDetection = -1;
+      float bestIou = MIN_MATCH_IOU;
+      for (final TrackedRecognition track : trackedObjects) {
+        if (track.matched) {
+          continue;
+        }
+        for (int i = 0; i < numDetections; ++i) {
+          if (detectionMatched[i] || track.classId != detections[i].getClassId()) {
+            continue;
+          }
+          shiftedDetection.set(detectionRects[i]);
+          shiftedDetection.offset(track.motionX, track.motionY);
+          final float iou = iou(track.location, shiftedDetection);
+          if (iou >= bestIou) {
+            bestIou = iou;
+            bestTrack = track;
+            bestDetection = i;
+          }
+        }
+      }
+      if (bestTrack == null) {
+        break;
+      }
+      bestTrack.matched = true;
+      detectionMatched[bestDetection] = true;
+      if (bestTrack.motionKnown) {
+        shiftedDetection.set(detectionRects[bestDetection]);
+        shiftedDetection.offset(bestTrack.motionX, bestTrack.motionY);
+        bestTrack.filter.update(shiftedDetection);
+        bestTrack.filter.getBox(bestTrack.location);
+        bestTrack.remember(lastTimestamp);
+      }
+      bestTrack.detectionConfidence = detections[bestDetection].getConfidence();
+      ++bestTrack.hits;
+      bestTrack.misses = 0;
+    }
+
+    // Tracks without a detection survive a few frames on their motion model alone.
+    for (final Iterator<TrackedRecognition> it = trackedObjects.iterator(); it.hasNext(); ) {
+      final TrackedRecognition track = it.next();
+      if (track.matched) {
+        continue;
+      }
+      ++track.misses;
+      if (!track.isConfirmed() || track.misses > MAX_MISSES) {
+        logger.v("Dropping track %d (%s)", track.id, track.title);
+        availableColors.add(track.color);
+        it.remove();
+      }
+    }
+
+    // Detections nobody claimed start new tracks, as long as there are colors left to tell them
+    // apart.
+    for (int i = 0; i < numDetections; ++i) {
+      if (detectionMatched[i]) {
+        continue;
+      }
+      if (availableColors.isEmpty()) {
+        logger.v("No colors left, not tracking %s", detections[i].getTitle());
         break;
       }
+      final TrackedRecognition track = new TrackedRecognition();
+      track.id = nextTrackId++;
+      track.title = detections[i].getTitle();
+      track.classId = detections[i].getClassId();
+      track.detectionConfidence = detections[i].getConfidence();
+      track.color = availableColors.poll();
+      // Without a track of its own to follow, an old detection moves with the others.
+      shiftedDetection.set(detectionRects[i]);
+      shiftedDetection.offset(sceneMotionX, sceneMotionY);
+      track.filter.reset(shiftedDetection);
+      track.filter.getBox(track.location);
+      track.remember(lastTimestamp);
+      track.hits = 1;
+      trackedObjects.add(track);
+    }
+
+    if (trackedObjects.isEmpty()) {
+      logger.v("Nothing to track.");
+    }
+  }
+
+  /**
+   * Moves every track along its motion model up to the given frame timestamp. Tracks already past
+   * it, e.g. carried further by optical flow, stay where they are.
+   */
+  private void predictTracks(final long timestamp) {
+    final float frames = lastTimestamp < 0 ? 0 : timestamp - lastTimestamp;
+    lastTimestamp = Math.max(lastTimestamp, timestamp);
+    for (final TrackedRecognition track : trackedObjects) {
+      track.filter.predict(frames);
+      track.filter.getBox(track.location);
+      track.remember(lastTimestamp);
+    }
+  }
+
+  private static float iou(final RectF a, final RectF b) {
+    final float left = Math.max(a.left, b.left);
+    final float top = Math.max(a.top, b.top);
+    final float right = Math.min(a.right, b.right);
+    final float bottom = Math.min(a.bottom, b.bottom);
+    if (right <= left || bottom <= top) {
+      return 0;
     }
+    final float intersection = (right - left) * (bottom - top);
+    return intersection / (a.width() * a.height() + b.width() * b.height() - intersection);
   }
 
   private static class TrackedRecognition {
-    RectF location;
+    final KalmanBoxFilter filter = new KalmanBoxFilter();
+    final RectF location = new RectF();
     float detectionConfidence;
     int color;
     String title;
+    int classId;
+    int id;
+    int hits;
+    int misses;
+    boolean matched;
+    // Where the track was at recent frames, oldest first, in a ring of MOTION_HISTORY entries.
+    final long[] historyTimestamps = new long[MOTION_HISTORY];
+    final float[] historyX = new float[MOTION_HISTORY];
+    final float[] historyY = new float[MOTION_HISTORY];
+    int historyCount;
+    int historyNext;
+    // How far the track moved since the frame of the results being processed.
+    boolean motionKnown;
+    float motionX;
+    float motionY;
+
+    /** Records where the track is at the given frame, replacing an entry of the same frame. */
+    void remember(final long timestamp) {
+      final int newest = (historyNext + MOTION_HISTORY - 1) % MOTION_HISTORY;
+      final int index;
+      if (historyCount > 0 && historyTimestamps[newest] == timestamp) {
+        index = newest;
+      } else {
+        index = historyNext;
+        historyNext = (historyNext + 1) % MOTION_HISTORY;
+        historyCount = Math.min(historyCount + 1, MOTION_HISTORY);
+      }
+      historyTimestamps[index] = timestamp;
+      historyX[index] = location.centerX();
+      historyY[index] = location.centerY();
+    }
+
+    /**
+     * Computes how far the track moved since the given frame, from the latest position remembered
+     * at or before it.
+     *
+     * @return false if the frame is older than everything remembered.
+     */
+    boolean getMotionSince(final long timestamp, final float[] out) {
+      for (int i = 1; i <= historyCount; ++i) {
+        final int index = (historyNext + MOTION_HISTORY - i) % MOTION_HISTORY;
+        if (historyTimestamps[index] <= timestamp) {
+          out[0] = location.centerX() - historyX[index];
+          out[1] = location.centerY() - historyY[index];
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // New tracks are only shown once they have been seen more than once, so that one-frame
+    // false positives never flash on screen.
+    boolean isConfirmed() {
+      return hits >= MIN_HITS_TO_CONFIRM;
+    }
   }
 
   public String getLabelString() {
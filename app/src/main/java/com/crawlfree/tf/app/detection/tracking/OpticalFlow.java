@@ -0,0 +1,266 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.tracking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sparse pyramidal Lucas-Kanade optical flow on the luminance plane, in pure Java. Every frame is
+ * reduced to a half resolution pyramid, and points are followed from the previous frame's pyramid
+ * to the current one. All buffers are allocated up front and reused.
+ *
+ * <p>Point coordinates are always in full-resolution frame pixels.
+ */
+public class OpticalFlow {
+  // Half size of the square window matched around every point, at every level.
+  private static final int WINDOW_RADIUS = 4;
+  private static final int MAX_ITERATIONS = 6;
+  // Sub-pixel step below which the iteration at a level is considered converged.
+  private static final float CONVERGENCE_EPSILON = 0.03f;
+  // Smallest eigenvalue-like measure of texture under which a point cannot be tracked.
+  private static final float MIN_DETERMINANT = 1e-3f;
+  // Mean absolute difference per pixel, in gray levels, above which a match is rejected.
+  private static final float MAX_RESIDUAL = 20.0f;
+
+  private final int levels;
+  private final int[] levelWidth;
+  private final int[] levelHeight;
+  private float[][] previous;
+  private float[][] current;
+  // Frames seen so far, saturating at two.
+  private int frames = 0;
+
+  // Window of the previous image (with a one pixel border for gradients) and its gradients.
+  private static final int PATCH_SIZE = 2 * WINDOW_RADIUS + 3;
+  private final float[] patch = new float[PATCH_SIZE * PATCH_SIZE];
+  private final float[] gradX = new float[PATCH_SIZE * PATCH_SIZE];
+  private final float[] gradY = new float[PATCH_SIZE * PATCH_SIZE];
+
+  /**
+   * @param frameWidth Width of the full-resolution luminance plane.
+   * @param frameHeight Height of the full-resolution luminance plane.
+   * @param levels Number of pyramid levels below the half resolution base, each halving it again.
+   */
+  public OpticalFlow(final int frameWidth, final int frameHeight, final int levels) {
+    this.levels = levels + 1;
+    levelWidth = new int[this.levels];
+    levelHeight = new int[this.levels];
+    previous = new float[this.levels][];
+    current = new float[this.levels][];
+    int width = frameWidth / 2;
+    int height = frameHeight / 2;
+    for (int level = 0; level < this.levels; ++level) {
+      levelWidth[level] = width;
+      levelHeight[level] = height;
+      previous[level] = new float[width * height];
+      current[level] = new float[width * height];
+      width = Math.max(width / 2, 1);
+      height = Math.max(height / 2, 1);
+    }
+  }
+
+  /** Builds the pyramid of a new frame, making the last one the reference to track from. */
+  public void nextFrame(final ByteBuffer luminance, final int rowStride) {
+    final float[][] swap = previous;
+    previous = current;
+    current = swap;
+    if (frames < 2) {
+      ++frames;
+    }
+
+    // The base level averages 2x2 blocks of the full-resolution plane.
+    final float[] base = current[0];
+    final int width = levelWidth[0];
+    final int height = levelHeight[0];
+    for (int y = 0; y < height; ++y) {
+      final int row0 = 2 * y * rowStride;
+      final int row1 = row0 + rowStride;
+      for (int x = 0, i = y * width; x < width; ++x, ++i) {
+        final int c = 2 * x;
+        base[i] =
+            ((0xff & luminance.get(row0 + c))
+                    + (0xff & luminance.get(row0 + c + 1))
+                    + (0xff & luminance.get(row1 + c))
+                    + (0xff & luminance.get(row1 + c + 1)))
+                * 0.25f;
+      }
+    }
+    for (int level = 1; level < levels; ++level) {
+      downsample(current[level - 1], levelWidth[level - 1], current[level], level);
+    }
+  }
+
+  /** Forgets the previous frame, e.g. after the camera stream was interrupted. */
+  public void reset() {
+    frames = 0;
+  }
+
+  /**
+   * Follows points from the previous frame into the current one.
+   *
+   * @param points Interleaved x, y coordinates in the previous frame.
+   * @param count Number of points.
+   * @param tracked Receives the interleaved coordinates in the current frame.
+   * @param status Receives whether each point could be tracked reliably.
+   * @return The number of points tracked reliably.
+   */
+  public int track(
+      final float[] points, final int count, final float[] tracked, final boolean[] status) {
+    int found = 0;
+    for (int p = 0; p < count; ++p) {
+      status[p] = frames >= 2 && trackPoint(points, tracked, p);
+      if (status[p]) {
+        ++found;
+      } else {
+        tracked[2 * p] = points[2 * p];
+        tracked[2 * p + 1] = points[2 * p + 1];
+      }
+    }
+    return found;
+  }
+
+  private boolean trackPoint(final float[] points, final float[] tracked, final int p) {
+    // Full resolution to base level is a factor of two, then two more per level.
+    float guessX = 0;
+    float guessY = 0;
+    for (int level = levels - 1; level >= 0; --level) {
+      final float scale = 1.0f / (2 << level);
+      final float x = points[2 * p] * scale;
+      final float y = points[2 * p + 1] * scale;
+      final int width = levelWidth[level];
+      final int height = levelHeight[level];
+      if (x < WINDOW_RADIUS + 1
+          || y < WINDOW_RADIUS + 1
+          || x >= width - WINDOW_RADIUS - 2
+          || y >= height - WINDOW_RADIUS - 2) {
+        if (level == 0) {
+          return false;
+        }
+        // Too close to the border of a coarse level, let a finer level handle it.
+        guessX *= 2;
+        guessY *= 2;
+        continue;
+      }
+
+      // Spatial gradient matrix of the previous image around the point.
+      samplePatch(previous[level], width, x - WINDOW_RADIUS - 1, y - WINDOW_RADIUS - 1);
+      float gxx = 0;
+      float gxy = 0;
+      float gyy = 0;
+      for (int wy = 1; wy < PATCH_SIZE - 1; ++wy) {
+        for (int wx = 1; wx < PATCH_SIZE - 1; ++wx) {
+          final int i = wy * PATCH_SIZE + wx;
+          final float ix = (patch[i + 1] - patch[i - 1]) * 0.5f;
+          final float iy = (patch[i + PATCH_SIZE] - patch[i - PATCH_SIZE]) * 0.5f;
+          gradX[i] = ix;
+          gradY[i] = iy;
+          gxx += ix * ix;
+          gxy += ix * iy;
+          gyy += iy * iy;
+        }
+      }
+      final float det = gxx * gyy - gxy * gxy;
+      final float windowArea = (PATCH_SIZE - 2) * (PATCH_SIZE - 2);
+      if (det / (windowArea * windowArea) < MIN_DETERMINANT) {
+        return false;
+      }
+
+      float flowX = 0;
+      float flowY = 0;
+      float residual = 0;
+      final float[] image = current[level];
+      for (int iteration = 0; iteration < MAX_ITERATIONS; ++iteration) {
+        final float cx = x + guessX + flowX;
+        final float cy = y + guessY + flowY;
+        if (cx < WINDOW_RADIUS || cy < WINDOW_RADIUS
+            || cx >= width - WINDOW_RADIUS - 1 || cy >= height - WINDOW_RADIUS - 1) {
+          return false;
+        }
+        float bx = 0;
+        float by = 0;
+        residual = 0;
+        for (int wy = 1; wy < PATCH_SIZE - 1; ++wy) {
+          for (int wx = 1; wx < PATCH_SIZE - 1; ++wx) {
+            final int i = wy * PATCH_SIZE + wx;
+            final float diff =
+                patch[i]
+                    - bilinear(
+                        image, width, cx + wx - WINDOW_RADIUS - 1, cy + wy - WINDOW_RADIUS - 1);
+            bx += diff * gradX[i];
+            by += diff * gradY[i];
+            residual += Math.abs(diff);
+          }
+        }
+        final float stepX = (gyy * bx - gxy * by) / det;
+        final float stepY = (gxx * by - gxy * bx) / det;
+        flowX += stepX;
+        flowY += stepY;
+        if (stepX * stepX + stepY * stepY < CONVERGENCE_EPSILON * CONVERGENCE_EPSILON) {
+          break;
+        }
+      }
+
+      if (level == 0) {
+        if (residual / windowArea > MAX_RESIDUAL) {
+          return false;
+        }
+        tracked[2 * p] = points[2 * p] + (guessX + flowX) * 2;
+        tracked[2 * p + 1] = points[2 * p + 1] + (guessY + flowY) * 2;
+      } else {
+        guessX = 2 * (guessX + flowX);
+        guessY = 2 * (guessY + flowY);
+      }
+    }
+    return true;
+  }
+
+  private void samplePatch(
+      final float[] image, final int width, final float left, final float top) {
+    for (int wy = 0; wy < PATCH_SIZE; ++wy) {
+      for (int wx = 0; wx < PATCH_SIZE; ++wx) {
+        patch[wy * PATCH_SIZE + wx] = bilinear(image, width, left + wx, top + wy);
+      }
+    }
+  }
+
+  private static float bilinear(
+      final float[] image, final int width, final float x, final float y) {
+    final int x0 = (int) x;
+    final int y0 = (int) y;
+    final float fx = x - x0;
+    final float fy = y - y0;
+    final int i = y0 * width + x0;
+    final float top = image[i] + fx * (image[i + 1] - image[i]);
+    final float bottom = image[i + width] + fx * (image[i + width + 1] - image[i + width]);
+    return top + fy * (bottom - top);
+  }
+
+  private void downsample(
+      final float[] source, final int sourceWidth, final float[] target, final int level) {
+    final int width = levelWidth[level];
+    final int height = levelHeight[level];
+    for (int y = 0; y < height; ++y) {
+      final int row0 = 2 * y * sourceWidth;
+      final int row1 = row0 + sourceWidth;
+      for (int x = 0, i = y * width; x < width; ++x, ++i) {
+        final int c = 2 * x;
+        target[i] =
+            (source[row0 + c] + source[row0 + c + 1] + source[row1 + c] + source[row1 + c + 1])
+                * 0.25f;
+      }
+    }
+  }
+}
@@ -0,0 +1,303 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.voice;
+
+import com.crawlfree.tf.app.detection.tflite.LabelTable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the object a spoken query asks for. Every label of the label map, and a few synonyms, is
+ * indexed once in a trie of words, so that multi-word labels like "dining table" or "cell phone"
+ * match as a whole anywhere in a sentence. Words are matched exactly first, then in their singular
+ * form, then within a small edit distance to survive misrecognitions.
+ *
+ * <p>All recognizer hypotheses are considered, weighted by their rank or confidence, and the best
+ * scoring match over all of them wins. Resolving a query takes microseconds.
+ */
+public class QueryResolver {
+  // Score of a match through a synonym rather than the label itself.
+  private static final float SYNONYM_SCORE = 0.9f;
+  // Score of a word recognized through its singular form, e.g. "knives" for "knife".
+  private static final float PLURAL_SCORE = 0.98f;
+  // Score lost per edit when matching a misrecognized word.
+  private static final float EDIT_PENALTY = 0.25f;
+  // Words shorter than this only ever match exactly, since short words are too easily confused.
+  private static final int MIN_FUZZY_LENGTH = 5;
+  private static final int MIN_DOUBLE_EDIT_LENGTH = 8;
+  // Weight lost per rank for hypotheses the recognizer gave no confidence for.
+  private static final float RANK_PENALTY = 0.1f;
+  private static final float MIN_RANK_WEIGHT = 0.5f;
+  // Partial results are only acted on when they match without edits. The rest of the utterance may
+  // still turn a misrecognized word into something else.
+  private static final float MIN_PARTIAL_SCORE = SYNONYM_SCORE;
+
+  private static final String[][] SYNONYMS = {
+    {"table", "dining table"},
+    {"glass", "wine glass"},
+    {"phone", "cell phone"},
+    {"cellphone", "cell phone"},
+    {"mobile", "cell phone"},
+    {"mobile phone", "cell phone"},
+    {"smartphone", "cell phone"},
+    {"television", "tv"},
+    {"tv set", "tv"},
+    {"fridge", "refrigerator"},
+    {"bag", "handbag"},
+    {"purse", "handbag"},
+    {"computer", "laptop"},
+    {"notebook", "laptop"},
+    {"mug", "cup"},
+    {"remote control", "remote"},
+    {"controller", "remote"},
+    {"sofa", "couch"},
+    {"teddy", "teddy bear"},
+    {"plant", "potted plant"},
+    {"flower pot", "potted plant"},
+    {"bike", "bicycle"},
+    {"motorbike", "motorcycle"},
+    {"hairdryer", "hair drier"},
+    {"hair dryer", "hair drier"},
+    {"watch", "clock"},
+    {"rucksack", "backpack"},
+    {"luggage", "suitcase"},
+    {"tooth brush", "toothbrush"},
+    {"ball", "sports ball"},
+    {"racket", "tennis racket"},
+  };
+
+  /** The object a query resolved to. */
+  public static final class Match {
+    public final int classId;
+    public final float score;
+    /** Index of the hypothesis the match was found in. */
+    public final int hypothesis;
+
+    Match(final int classId, final float score, final int hypothesis) {
+      this.classId = classId;
+      this.score = score;
+      this.hypothesis = hypothesis;
+    }
+  }
+
+  private static final class Node {
+    final Map<String, Node> children = new HashMap<String, Node>();
+    int classId = -1;
+    float score;
+  }
+
+  private final Node root = new Node();
+
+  // Best match of the query being resolved.
+  private int bestClassId;
+  private float bestScore;
+  private int bestLength;
+  private float stepScore;
+
+  public QueryResolver(final LabelTable labels) {
+    for (int classId = 0; classId < labels.size(); ++classId) {
+      final String label = labels.getLabel(classId);
+      if (label.isEmpty() || label.startsWith("?")) {
+        continue;
+      }
+      insert(label, classId, 1.0f);
+    }
+    for (final String[] synonym : SYNONYMS) {
+      final int classId = labels.getClassId(synonym[1]);
+      if (classId >= 0) {
+        insert(synonym[0], classId, SYNONYM_SCORE);
+      }
+    }
+  }
+
+  /**
+   * Resolves the hypotheses of a speech recognizer.
+   *
+   * @param hypotheses Recognizer results, most likely first.
+   * @param confidences Confidence of each hypothesis, or null if the recognizer gave none.
+   * @return The best match over all hypotheses, or null if none mentions a known object.
+   */
+  public synchronized Match resolve(final List<String> hypotheses, final float[] confidences) {
+    Match best = null;
+    for (int i = 0; i < hypotheses.size(); ++i) {
+      final float weight;
+      if (confidences != null && i < confidences.length && confidences[i] > 0) {
+        weight = confidences[i];
+      } else {
+        weight = Math.max(1.0f - RANK_PENALTY * i, MIN_RANK_WEIGHT);
+      }
+      if (best != null && weight <= best.score) {
+        // Even a perfect match in this hypothesis could not win.
+        continue;
+      }
+      if (resolveUtterance(hypotheses.get(i))
+          && bestScore * weight > (best != null ? best.score : 0)) {
+        best = new Match(bestClassId, bestScore * weight, i);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Resolves the partial results of an utterance still being spoken, only returning a match that
+   * is certain enough to act on before the utterance is complete.
+   */
+  public Match resolvePartial(final List<String> hypotheses) {
+    final Match match = resolve(hypotheses, null);
+    return match != null && match.score >= MIN_PARTIAL_SCORE ? match : null;
+  }
+
+  /** Resolves a single utterance, or returns null if it does not mention a known object. */
+  public synchronized Match resolve(final String utterance) {
+    return resolveUtterance(utterance) ? new Match(bestClassId, bestScore, 0) : null;
+  }
+
+  private boolean resolveUtterance(final String utterance) {
+    bestClassId = -1;
+    bestScore = 0;
+    bestLength = 0;
+    final String[] tokens = tokenize(utterance);
+    for (int start = 0; start < tokens.length; ++start) {
+      Node node = root;
+      float score = 1.0f;
+      for (int end = start; end < tokens.length; ++end) {
+        node = step(node, tokens[end]);
+        if (node == null) {
+          break;
+        }
+        score *= stepScore;
+        if (node.classId >= 0) {
+          final float total = score * node.score;
+          final int length = end - start + 1;
+          // Longer matches win ties, so that "wine glass" beats "glass".
+          if (total > bestScore || (total == bestScore && length > bestLength)) {
+            bestClassId = node.classId;
+            bestScore = total;
+            bestLength = length;
+          }
+        }
+      }
+    }
+    return bestClassId >= 0;
+  }
+
+  /** Follows the child of the node that best matches a word, setting stepScore. */
+  private Node step(final Node node, final String token) {
+    Node child = node.children.get(token);
+    if (child != null) {
+      stepScore = 1.0f;
+      return child;
+    }
+    child = findSingular(node, token);
+    if (child != null) {
+      stepScore = PLURAL_SCORE;
+      return child;
+    }
+    if (token.length() < MIN_FUZZY_LENGTH) {
+      return null;
+    }
+    final int maxEdits = token.length() >= MIN_DOUBLE_EDIT_LENGTH ? 2 : 1;
+    int bestEdits = maxEdits + 1;
+    for (final Map.Entry<String, Node> entry : node.children.entrySet()) {
+      final int edits = editDistance(token, entry.getKey(), bestEdits - 1);
+      if (edits < bestEdits) {
+        bestEdits = edits;
+        child = entry.getValue();
+      }
+    }
+    stepScore = 1.0f - EDIT_PENALTY * bestEdits;
+    return child;
+  }
+
+  private static Node findSingular(final Node node, final String token) {
+    if (!token.endsWith("s") || token.length() < 3) {
+      return null;
+    }
+    Node child;
+    if (token.endsWith("ies")
+        && (child = node.children.get(token.substring(0, token.length() - 3) + "y")) != null) {
+      return child;
+    }
+    if (token.endsWith("ves")) {
+      final String stem = token.substring(0, token.length() - 3);
+      if ((child = node.children.get(stem + "fe")) != null
+          || (child = node.children.get(stem + "f")) != null) {
+        return child;
+      }
+    }
+    if (token.endsWith("es")
+        && (child = node.children.get(token.substring(0, token.length() - 2))) != null) {
+      return child;
+    }
+    return node.children.get(token.substring(0, token.length() - 1));
+  }
+
+  /**
+   * Returns the Levenshtein distance between two words, or maxEdits + 1 as soon as it is known to
+   * exceed maxEdits.
+   */
+  private static int editDistance(final String a, final String b, final int maxEdits) {
+    if (maxEdits < 0 || Math.abs(a.length() - b.length()) > maxEdits) {
+      return maxEdits + 1;
+    }
+    int[] previous = new int[b.length() + 1];
+    int[] current = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); ++j) {
+      previous[j] = j;
+    }
+    for (int i = 1; i <= a.length(); ++i) {
+      current[0] = i;
+      int rowMinimum = i;
+      for (int j = 1; j <= b.length(); ++j) {
+        final int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+        current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+        rowMinimum = Math.min(rowMinimum, current[j]);
+      }
+      if (rowMinimum > maxEdits) {
+        return maxEdits + 1;
+      }
+      final int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return Math.min(previous[b.length()], maxEdits + 1);
+  }
+
+  private void insert(final String phrase, final int classId, final float score) {
+    Node node = root;
+    for (final String token : tokenize(phrase)) {
+      Node child = node.children.get(token);
+      if (child == null) {
+        child = new Node();
+        node.children.put(token, child);
+      }
+      node = child;
+    }
+    // A label always wins over a synonym that happens to spell the same.
+    if (node.classId < 0 || score > node.score) {
+      node.classId = classId;
+      node.score = score;
+    }
+  }
+
+  private static String[] tokenize(final String text) {
+    final String trimmed = text.toLowerCase(Locale.US).replaceAll("[^a-z0-9]+", " ").trim();
+    return trimmed.isEmpty() ? new String[0] : trimmed.split(" ");
+  }
+}
@@ -0,0 +1,230 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.voice;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+
+import com.crawlfree.tf.app.detection.env.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Speech input embedded in the calling activity. Unlike launching the recognizer activity, this
+ * does not pause the caller, so the camera and the detector keep running while the user speaks.
+ *
+ * <p>Partial results are delivered while the user is still speaking, so that a query can be acted
+ * on before the recognizer decides the utterance is over. In continuous mode the recognizer is
+ * restarted after every utterance, and after silence, until it is cancelled.
+ *
+ * <p>Must be created and used on the main thread, where the results are delivered too.
+ */
+public class VoiceInput {
+  private static final Logger LOGGER = new Logger();
+
+  // Number of hypotheses asked from the recognizer, all of them are resolved.
+  private static final int MAX_RESULTS = 5;
+  // Delay before listening again after the recognizer reported being busy.
+  private static final long BUSY_RETRY_MS = 500;
+
+  /** Receives what the user said. */
+  public interface Listener {
+    /**
+     * Called, possibly several times, while the user is speaking.
+     *
+     * @param hypotheses What was recognized of the utterance so far, most likely first.
+     */
+    void onPartialResults(List<String> hypotheses);
+
+    /**
+     * Called with the hypotheses of a complete utterance.
+     *
+     * @param hypotheses Recognizer results, most likely first.
+     * @param confidences Confidence of each hypothesis, or null if the recognizer gave none.
+     */
+    void onResults(List<String> hypotheses, float[] confidences);
+
+    /**
+     * Called when nothing was recognized, with one of the {@link SpeechRecognizer} errors. In
+     * continuous mode only errors that stop listening are reported, silence is not.
+     */
+    void onError(int error);
+  }
+
+  private final SpeechRecognizer recognizer;
+  private final Intent recognizerIntent;
+  private final Listener listener;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private boolean listening = false;
+  private boolean continuous = false;
+
+  private final Runnable restart =
+      new Runnable() {
+        @Override
+        public void run() {
+          if (listening) {
+            recognizer.startListening(recognizerIntent);
+          }
+        }
+      };
+
+  public VoiceInput(final Context context, final Listener listener) {
+    this.listener = listener;
+    recognizer = SpeechRecognizer.createSpeechRecognizer(context);
+    recognizer.setRecognitionListener(new Callbacks());
+    recognizerIntent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+    recognizerIntent.putExtra(
+        RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+    recognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, Locale.getDefault().toString());
+    recognizerIntent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, MAX_RESULTS);
+    recognizerIntent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, true);
+    recognizerIntent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE, context.getPackageName());
+  }
+
+  public static boolean isAvailable(final Context context) {
+    return SpeechRecognizer.isRecognitionAvailable(context);
+  }
+
+  /** Sets whether listening goes on after an utterance, until {@link #cancel()} is called. */
+  public void setContinuous(final boolean continuous) {
+    this.continuous = continuous;
+  }
+
+  /**
+   * Starts listening, restarting if already listening. Whatever was heard of the current utterance
+   * is dropped.
+   */
+  public void start() {
+    handler.removeCallbacks(restart);
+    if (listening) {
+      recognizer.cancel();
+    }
+    listening = true;
+    recognizer.startListening(recognizerIntent);
+  }
+
+  /** Stops listening without delivering results. */
+  public void cancel() {
+    handler.removeCallbacks(restart);
+    if (listening) {
+      listening = false;
+      recognizer.cancel();
+    }
+  }
+
+  public boolean isListening() {
+    return listening;
+  }
+
+  /** Releases the recognizer, after which this may no longer be used. */
+  public void destroy() {
+    handler.removeCallbacks(restart);
+    listening = false;
+    recognizer.destroy();
+  }
+
+  /** Ends the utterance, listening again for the next one in continuous mode. */
+  private void onUtteranceEnd(final long restartDelayMs) {
+    if (continuous) {
+      handler.postDelayed(restart, restartDelayMs);
+    } else {
+      listening = false;
+    }
+  }
+
+  private class Callbacks implements RecognitionListener {
+    @Override
+    public void onReadyForSpeech(final Bundle params) {
+      LOGGER.d("Ready for speech");
+    }
+
+    @Override
+    public void onBeginningOfSpeech() {}
+
+    @Override
+    public void onRmsChanged(final float rmsdB) {}
+
+    @Override
+    public void onBufferReceived(final byte[] buffer) {}
+
+    @Override
+    public void onEndOfSpeech() {}
+
+    @Override
+    public void onError(final int error) {
+      if (!listening) {
+        return;
+      }
+      if (continuous) {
+        switch (error) {
+          case SpeechRecognizer.ERROR_NO_MATCH:
+          case SpeechRecognizer.ERROR_SPEECH_TIMEOUT:
+            // Silence is the normal case between queries.
+            onUtteranceEnd(0);
+            return;
+          case SpeechRecognizer.ERROR_RECOGNIZER_BUSY:
+            onUtteranceEnd(BUSY_RETRY_MS);
+            return;
+          default:
+            break;
+        }
+      }
+      listening = false;
+      LOGGER.w("Speech recognition failed with error %d", error);
+      listener.onError(error);
+    }
+
+    @Override
+    public void onResults(final Bundle results) {
+      if (!listening) {
+        return;
+      }
+      onUtteranceEnd(0);
+      final ArrayList<String> hypotheses =
+          results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+      if (hypotheses == null || hypotheses.isEmpty()) {
+        if (!continuous) {
+          listener.onError(SpeechRecognizer.ERROR_NO_MATCH);
+        }
+        return;
+      }
+      listener.onResults(hypotheses, results.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES));
+    }
+
+    @Override
+    public void onPartialResults(final Bundle partialResults) {
+      if (!listening) {
+        return;
+      }
+      final ArrayList<String> hypotheses =
+          partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+      if (hypotheses != null && !hypotheses.isEmpty() && !hypotheses.get(0).isEmpty()) {
+        listener.onPartialResults(hypotheses);
+      }
+    }
+
+    @Override
+    public void onEvent(final int eventType, final Bundle params) {}
+  }
+}
@@ -0,0 +1,108 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import java.util.Random;
+
+/**
+ * Times the interpolations of {@link ImageResampler} on the crop the detector takes, rotated like a
+ * portrait camera frame. It is not a JUnit test, so that the unit tests stay fast; {@link
+ * ImageResamplerTest} checks the results. Run it on a development machine:
+ *
+ * <pre>
+ *   cd app/src
+ *   ENV=com/crawlfree/tf/app/detection/env
+ *   javac -d /tmp/out main/java/$ENV/{ImageResampler,CropTransform,RowBandExecutor}.java \
+ *       test/java/$ENV/ImageResamplerBenchmark.java
+ *   java -cp /tmp/out com.crawlfree.tf.app.detection.env.ImageResamplerBenchmark \
+ *       [width height [frames]]
+ * </pre>
+ */
+public final class ImageResamplerBenchmark {
+  private static final int WARM_UP_FRAMES = 100;
+  // Same as DetectorActivity.TF_OD_API_INPUT_SIZE.
+  private static final int CROP_SIZE = 300;
+  // Same as TFLiteObjectDetectionAPIModel.NUM_THREADS.
+  private static final int INTERPRETER_THREADS = 4;
+
+  private ImageResamplerBenchmark() {}
+
+  public static void main(final String[] args) {
+    final int width = args.length >= 2 ? Integer.parseInt(args[0]) : 640;
+    final int height = args.length >= 2 ? Integer.parseInt(args[1]) : 480;
+    final int frames = args.length >= 3 ? Integer.parseInt(args[2]) : 300;
+
+    final int workers =
+        Math.max(1, Runtime.getRuntime().availableProcessors() - INTERPRETER_THREADS);
+    final RowBandExecutor executor = new RowBandExecutor(workers);
+    final int[] frame = randomFrame(width, height);
+    final CropTransform transform =
+        new CropTransform(width, height, CROP_SIZE, CROP_SIZE, 90, true);
+
+    System.out.printf(
+        "%dx%d to %dx%d rotated by 90, %d frames, %d parallel bands, ms per frame%n",
+        width, height, CROP_SIZE, CROP_SIZE, frames, workers + 1);
+    System.out.printf("%-10s %10s %10s %10s%n", "mode", "argb", "rgb", "parallel");
+    for (final ImageResampler.Interpolation interpolation :
+        ImageResampler.Interpolation.values()) {
+      final ImageResampler serial = new ImageResampler(transform, interpolation, null);
+      final ImageResampler parallel = new ImageResampler(transform, interpolation, executor);
+      System.out.printf(
+          "%-10s %10.3f %10.3f %10.3f%n",
+          interpolation,
+          time(serial, frame, false, frames),
+          time(serial, frame, true, frames),
+          time(parallel, frame, false, frames));
+    }
+  }
+
+  /** Returns the mean time per frame in milliseconds, after warming up. */
+  private static double time(
+      final ImageResampler resampler, final int[] frame, final boolean rgb, final int frames) {
+    final int[] argb = new int[CROP_SIZE * CROP_SIZE];
+    final byte[] bytes = new byte[argb.length * 3];
+    for (int i = 0; i < WARM_UP_FRAMES; ++i) {
+      resample(resampler, frame, rgb, argb, bytes);
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < frames; ++i) {
+      resample(resampler, frame, rgb, argb, bytes);
+    }
+    return (System.nanoTime() - start) / 1e6 / frames;
+  }
+
+  private static void resample(
+      final ImageResampler resampler,
+      final int[] frame,
+      final boolean rgb,
+      final int[] argb,
+      final byte[] bytes) {
+    if (rgb) {
+      resampler.resampleToRgb(frame, bytes);
+    } else {
+      resampler.resample(frame, argb);
+    }
+  }
+
+  private static int[] randomFrame(final int width, final int height) {
+    final Random random = new Random(42);
+    final int[] frame = new int[width * height];
+    for (int i = 0; i < frame.length; ++i) {
+      frame[i] = 0xff000000 | random.nextInt(0x1000000);
+    }
+    return frame;
+  }
+}
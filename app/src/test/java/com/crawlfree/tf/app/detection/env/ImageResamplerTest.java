@@ -0,0 +1,169 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.crawlfree.tf.app.detection.env.ImageResampler.Interpolation;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks every interpolation of {@link ImageResampler} at every rotation, on the crop the detector
+ * takes from a camera frame. {@link ImageResamplerBenchmark} times them.
+ */
+public class ImageResamplerTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  // Same as DetectorActivity.TF_OD_API_INPUT_SIZE.
+  private static final int CROP_SIZE = 300;
+  private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+  private static RowBandExecutor executor;
+
+  @BeforeClass
+  public static void startExecutor() {
+    executor = new RowBandExecutor(2);
+  }
+
+  @Test
+  public void nearestSamplesSamePixelsAsCropTransform() {
+    final int[] frame = randomFrame(WIDTH, HEIGHT);
+    for (final int rotation : ROTATIONS) {
+      final CropTransform transform = crop(WIDTH, HEIGHT, rotation);
+      final int[] srcX = new int[CROP_SIZE * CROP_SIZE];
+      final int[] srcY = new int[srcX.length];
+      transform.computeSourcePixels(srcX, srcY);
+      final int[] expected = new int[srcX.length];
+      for (int i = 0; i < expected.length; ++i) {
+        expected[i] = frame[srcY[i] * WIDTH + srcX[i]];
+      }
+      assertArrayEquals(
+          "rotated by " + rotation, expected, resample(transform, Interpolation.NEAREST, frame));
+    }
+  }
+
+  @Test
+  public void fullSizeFrameIsUnchanged() {
+    // Square, so that every rotation maps the frame onto itself.
+    final int[] frame = randomFrame(CROP_SIZE, CROP_SIZE);
+    for (final int rotation : ROTATIONS) {
+      final int[] rotated =
+          resample(crop(CROP_SIZE, CROP_SIZE, rotation), Interpolation.NEAREST, frame);
+      for (final Interpolation interpolation : Interpolation.values()) {
+        // Rotating back must restore the frame without any filtering.
+        assertArrayEquals(
+            interpolation + " rotated by " + rotation,
+            frame,
+            resample(crop(CROP_SIZE, CROP_SIZE, -rotation), interpolation, rotated));
+      }
+    }
+  }
+
+  @Test
+  public void flatFrameStaysFlat() {
+    final int[] frame = new int[WIDTH * HEIGHT];
+    Arrays.fill(frame, 0xff123456);
+    final int[] expected = new int[CROP_SIZE * CROP_SIZE];
+    Arrays.fill(expected, 0xff123456);
+    for (final int rotation : ROTATIONS) {
+      for (final Interpolation interpolation : Interpolation.values()) {
+        assertArrayEquals(
+            interpolation + " rotated by " + rotation,
+            expected,
+            resample(crop(WIDTH, HEIGHT, rotation), interpolation, frame));
+      }
+    }
+  }
+
+  @Test
+  public void areaAveragesCoveredPixels() {
+    // Halving a checkerboard of black and white covers two of each in every destination pixel.
+    final int size = 8;
+    final int[] frame = new int[size * size];
+    for (int i = 0; i < frame.length; ++i) {
+      frame[i] = ((i / size + i % size) & 1) == 0 ? 0xff000000 : 0xffffffff;
+    }
+    final int[] actual =
+        resample(
+            new CropTransform(size, size, size / 2, size / 2, 0, true), Interpolation.AREA, frame);
+    for (final int pixel : actual) {
+      assertEquals(0xff808080, pixel);
+    }
+  }
+
+  @Test
+  public void parallelMatchesSerial() {
+    final int[] frame = randomFrame(WIDTH, HEIGHT);
+    for (final int rotation : ROTATIONS) {
+      final CropTransform transform = crop(WIDTH, HEIGHT, rotation);
+      for (final Interpolation interpolation : Interpolation.values()) {
+        final int[] parallel = new int[CROP_SIZE * CROP_SIZE];
+        new ImageResampler(transform, interpolation, executor).resample(frame, parallel);
+        assertArrayEquals(
+            interpolation + " rotated by " + rotation,
+            resample(transform, interpolation, frame),
+            parallel);
+      }
+    }
+  }
+
+  @Test
+  public void rgbMatchesArgb() {
+    final int[] frame = randomFrame(WIDTH, HEIGHT);
+    final CropTransform transform = crop(WIDTH, HEIGHT, 90);
+    for (final Interpolation interpolation : Interpolation.values()) {
+      final int[] argb = resample(transform, interpolation, frame);
+      final byte[] rgb = new byte[argb.length * 3];
+      new ImageResampler(transform, interpolation, null).resampleToRgb(frame, rgb);
+      final byte[] expected = new byte[rgb.length];
+      for (int i = 0; i < argb.length; ++i) {
+        expected[i * 3] = (byte) (argb[i] >> 16);
+        expected[i * 3 + 1] = (byte) (argb[i] >> 8);
+        expected[i * 3 + 2] = (byte) argb[i];
+      }
+      assertArrayEquals(interpolation.toString(), expected, rgb);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsArbitraryRotation() {
+    new ImageResampler(crop(WIDTH, HEIGHT, 45), Interpolation.BILINEAR, null);
+  }
+
+  private static CropTransform crop(final int width, final int height, final int rotation) {
+    return new CropTransform(width, height, CROP_SIZE, CROP_SIZE, rotation, true);
+  }
+
+  private static int[] randomFrame(final int width, final int height) {
+    final Random random = new Random(42);
+    final int[] frame = new int[width * height];
+    for (int i = 0; i < frame.length; ++i) {
+      frame[i] = 0xff000000 | random.nextInt(0x1000000);
+    }
+    return frame;
+  }
+
+  private static int[] resample(
+      final CropTransform transform, final Interpolation interpolation, final int[] frame) {
+    final int[] output = new int[transform.getDstWidth() * transform.getDstHeight()];
+    new ImageResampler(transform, interpolation, null).resample(frame, output);
+    return output;
+  }
+}
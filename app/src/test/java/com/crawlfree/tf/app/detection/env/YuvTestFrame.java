@@ -0,0 +1,219 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A synthetic frame in one of the camera layouts, with the per-pixel conversion of {@link
+ * ImageUtils} as it was before {@link YuvToArgbConverter}, to check and time the converter against.
+ */
+final class YuvTestFrame {
+  // Same as ImageUtils.kMaxChannelValue.
+  private static final int MAX_CHANNEL_VALUE = 262143;
+
+  final int width;
+  final int height;
+  final byte[] yData;
+  final byte[] uData;
+  final byte[] vData;
+  // The same planes in direct buffers, like the planes of a camera Image.
+  final ByteBuffer yBuffer;
+  final ByteBuffer uBuffer;
+  final ByteBuffer vBuffer;
+  final int yRowStride;
+  final int uvRowStride;
+  final int uvPixelStride;
+
+  /** A YUV_420_888 frame, with padded rows like many camera HALs deliver. */
+  YuvTestFrame(final int width, final int height, final int uvPixelStride) {
+    this.width = width;
+    this.height = height;
+    this.uvPixelStride = uvPixelStride;
+    yRowStride = width + 32;
+    uvRowStride = (width + 1) / 2 * uvPixelStride + 32;
+    final Random random = new Random(42);
+    yData = randomPlane(random, yRowStride * height);
+    uData = randomPlane(random, uvRowStride * ((height + 1) / 2));
+    vData = randomPlane(random, uData.length);
+    yBuffer = direct(yData);
+    uBuffer = direct(uData);
+    vBuffer = direct(vData);
+  }
+
+  /** An NV21 frame. */
+  YuvTestFrame(final int width, final int height) {
+    this.width = width;
+    this.height = height;
+    yRowStride = width;
+    uvRowStride = width;
+    uvPixelStride = 2;
+    final int chromaLength = (width + 1) / 2 * ((height + 1) / 2) * 2;
+    yData = randomPlane(new Random(42), width * height + chromaLength);
+    uData = yData;
+    vData = yData;
+    yBuffer = direct(yData);
+    uBuffer = yBuffer;
+    vBuffer = yBuffer;
+  }
+
+  /** Returns the frame in each camera layout: NV21, semi-planar and planar. */
+  static YuvTestFrame[] allLayouts(final int width, final int height) {
+    return new YuvTestFrame[] {
+      new YuvTestFrame(width, height),
+      new YuvTestFrame(width, height, 2),
+      new YuvTestFrame(width, height, 1)
+    };
+  }
+
+  boolean isNv21() {
+    return uData == yData;
+  }
+
+  /**
+   * Converts the frame with {@link YuvToArgbConverter}.
+   *
+   * @param executor Converts bands of rows in parallel, or null to convert serially.
+   */
+  void convert(final int[] output, final boolean bitExact, final RowBandExecutor executor) {
+    if (isNv21() && executor == null) {
+      YuvToArgbConverter.convertYUV420SP(yBuffer, width, height, output, bitExact);
+    } else if (isNv21()) {
+      YuvToArgbConverter.convertYUV420SP(yBuffer, width, height, output, bitExact, executor);
+    } else if (executor == null) {
+      YuvToArgbConverter.convertYUV420(
+          yBuffer,
+          uBuffer,
+          vBuffer,
+          width,
+          height,
+          yRowStride,
+          uvRowStride,
+          uvPixelStride,
+          output,
+          bitExact);
+    } else {
+      YuvToArgbConverter.convertYUV420(
+          yBuffer,
+          uBuffer,
+          vBuffer,
+          width,
+          height,
+          yRowStride,
+          uvRowStride,
+          uvPixelStride,
+          output,
+          bitExact,
+          executor);
+    }
+  }
+
+  /** Converts the frame one pixel at a time, like ImageUtils did before the lookup tables. */
+  void convertReference(final int[] output) {
+    if (isNv21()) {
+      referenceYUV420SP(yData, width, height, output);
+    } else {
+      referenceYUV420(
+          yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, output);
+    }
+  }
+
+  @Override
+  public String toString() {
+    final String name = isNv21() ? "NV21" : (uvPixelStride == 2 ? "semi-planar" : "planar");
+    return name + " " + width + "x" + height;
+  }
+
+  private static ByteBuffer direct(final byte[] plane) {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(plane.length);
+    buffer.put(plane);
+    buffer.rewind();
+    return buffer;
+  }
+
+  private static byte[] randomPlane(final Random random, final int length) {
+    final byte[] plane = new byte[length];
+    random.nextBytes(plane);
+    return plane;
+  }
+
+  // The per-pixel conversions of ImageUtils.convertYUV420SPToARGB8888 and convertYUV420ToARGB8888
+  // as they were before the lookup tables, copied here so that the tests and the benchmark do not
+  // depend on the Android framework through ImageUtils.
+
+  private static void referenceYUV420SP(
+      final byte[] input, final int width, final int height, final int[] output) {
+    final int frameSize = width * height;
+    for (int j = 0, yp = 0; j < height; j++) {
+      int uvp = frameSize + (j >> 1) * width;
+      int u = 0;
+      int v = 0;
+
+      for (int i = 0; i < width; i++, yp++) {
+        int y = 0xff & input[yp];
+        if ((i & 1) == 0) {
+          v = 0xff & input[uvp++];
+          u = 0xff & input[uvp++];
+        }
+
+        output[yp] = referenceYUV2RGB(y, u, v);
+      }
+    }
+  }
+
+  private static void referenceYUV420(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    int yp = 0;
+    for (int j = 0; j < height; j++) {
+      int pY = yRowStride * j;
+      int pUV = uvRowStride * (j >> 1);
+
+      for (int i = 0; i < width; i++) {
+        int uv_offset = pUV + (i >> 1) * uvPixelStride;
+
+        out[yp++] =
+            referenceYUV2RGB(
+                0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+      }
+    }
+  }
+
+  static int referenceYUV2RGB(int y, int u, int v) {
+    y = (y - 16) < 0 ? 0 : (y - 16);
+    u -= 128;
+    v -= 128;
+
+    int y1192 = 1192 * y;
+    int r = (y1192 + 1634 * v);
+    int g = (y1192 - 833 * v - 400 * u);
+    int b = (y1192 + 2066 * u);
+
+    r = r > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (r < 0 ? 0 : r);
+    g = g > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (g < 0 ? 0 : g);
+    b = b > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (b < 0 ? 0 : b);
+
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+}
@@ -0,0 +1,111 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import java.util.Arrays;
+
+/**
+ * Times the 2x2 lookup-table conversions of {@link YuvToArgbConverter} against the per-pixel
+ * conversion ImageUtils.convertYUV420ToARGB8888 used before them. It is not a JUnit test, so that
+ * the unit tests stay fast. Run it on a development machine:
+ *
+ * <pre>
+ *   cd app/src
+ *   ENV=com/crawlfree/tf/app/detection/env
+ *   javac -d /tmp/out main/java/$ENV/{YuvToArgbConverter,RowBandExecutor}.java \
+ *       test/java/$ENV/{YuvTestFrame,YuvToArgbBenchmark}.java
+ *   java -cp /tmp/out com.crawlfree.tf.app.detection.env.YuvToArgbBenchmark [width height [frames]]
+ * </pre>
+ *
+ * <p>Every layout is checked to convert bit-exactly before it is timed; {@link
+ * YuvToArgbConverterTest} covers correctness in more detail.
+ */
+public final class YuvToArgbBenchmark {
+  private static final int WARM_UP_FRAMES = 100;
+  // Same as TFLiteObjectDetectionAPIModel.NUM_THREADS.
+  private static final int INTERPRETER_THREADS = 4;
+
+  /** One way of converting a frame. */
+  private interface Conversion {
+    void convert(YuvTestFrame frame, int[] output);
+  }
+
+  private YuvToArgbBenchmark() {}
+
+  public static void main(final String[] args) {
+    final int width = args.length >= 2 ? Integer.parseInt(args[0]) : 640;
+    final int height = args.length >= 2 ? Integer.parseInt(args[1]) : 480;
+    final int frames = args.length >= 3 ? Integer.parseInt(args[2]) : 300;
+
+    final int workers =
+        Math.max(1, Runtime.getRuntime().availableProcessors() - INTERPRETER_THREADS);
+    final RowBandExecutor executor = new RowBandExecutor(workers);
+    final Conversion reference = (frame, output) -> frame.convertReference(output);
+    final Conversion exact = (frame, output) -> frame.convert(output, true, null);
+    final Conversion rounded = (frame, output) -> frame.convert(output, false, null);
+    final Conversion parallel = (frame, output) -> frame.convert(output, true, executor);
+
+    final YuvTestFrame[] layouts = YuvTestFrame.allLayouts(width, height);
+    for (final YuvTestFrame frame : layouts) {
+      if (!matches(frame, reference, exact) || !matches(frame, reference, parallel)) {
+        System.out.printf("%s differs from the reference conversion%n", frame);
+        System.exit(1);
+      }
+    }
+
+    System.out.printf(
+        "%dx%d, %d frames, %d parallel bands, ms per frame%n",
+        width, height, frames, workers + 1);
+    System.out.printf(
+        "%-12s %10s %10s %10s %10s %8s%n",
+        "layout", "per-pixel", "tables", "rounded", "parallel", "speedup");
+    for (final YuvTestFrame frame : layouts) {
+      final double referenceMs = time(reference, frame, frames);
+      final double exactMs = time(exact, frame, frames);
+      System.out.printf(
+          "%-12s %10.3f %10.3f %10.3f %10.3f %7.2fx%n",
+          frame.toString().split(" ")[0],
+          referenceMs,
+          exactMs,
+          time(rounded, frame, frames),
+          time(parallel, frame, frames),
+          referenceMs / exactMs);
+    }
+  }
+
+  private static boolean matches(
+      final YuvTestFrame frame, final Conversion expected, final Conversion actual) {
+    final int[] expectedPixels = new int[frame.width * frame.height];
+    final int[] actualPixels = new int[expectedPixels.length];
+    expected.convert(frame, expectedPixels);
+    actual.convert(frame, actualPixels);
+    return Arrays.equals(expectedPixels, actualPixels);
+  }
+
+  /** Returns the mean time per frame in milliseconds, after warming up. */
+  private static double time(
+      final Conversion conversion, final YuvTestFrame frame, final int frames) {
+    final int[] output = new int[frame.width * frame.height];
+    for (int i = 0; i < WARM_UP_FRAMES; ++i) {
+      conversion.convert(frame, output);
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < frames; ++i) {
+      conversion.convert(frame, output);
+    }
+    return (System.nanoTime() - start) / 1e6 / frames;
+  }
+}
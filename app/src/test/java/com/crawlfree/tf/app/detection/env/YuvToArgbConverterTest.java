@@ -0,0 +1,101 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.crawlfree.tf.app.detection.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the conversions of {@link YuvToArgbConverter} against the per-pixel arithmetic they
+ * replace, in every camera layout, at even and odd sizes, serially and in row bands. {@link
+ * YuvToArgbBenchmark} times them.
+ */
+public class YuvToArgbConverterTest {
+  // Large enough to be split into bands, and odd so that bands end mid-block.
+  private static final int[][] SIZES = {{640, 480}, {641, 481}, {33, 17}};
+
+  private static RowBandExecutor executor;
+
+  @BeforeClass
+  public static void startExecutor() {
+    executor = new RowBandExecutor(2);
+  }
+
+  @Test
+  public void convertPixelMatchesReference() {
+    for (int y = 0; y < 256; ++y) {
+      for (int u = 0; u < 256; ++u) {
+        for (int v = 0; v < 256; ++v) {
+          if (YuvToArgbConverter.convertPixel(y, u, v, true)
+              != YuvTestFrame.referenceYUV2RGB(y, u, v)) {
+            fail("y=" + y + " u=" + u + " v=" + v);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void nv21IsBitExact() {
+    for (final int[] size : SIZES) {
+      checkFrame(new YuvTestFrame(size[0], size[1]));
+    }
+  }
+
+  @Test
+  public void semiPlanarIsBitExact() {
+    for (final int[] size : SIZES) {
+      checkFrame(new YuvTestFrame(size[0], size[1], 2));
+    }
+  }
+
+  @Test
+  public void planarIsBitExact() {
+    for (final int[] size : SIZES) {
+      checkFrame(new YuvTestFrame(size[0], size[1], 1));
+    }
+  }
+
+  /**
+   * Checks that exact conversion, serial and parallel, matches the reference, and that rounding
+   * moves channels by at most one.
+   */
+  private static void checkFrame(final YuvTestFrame frame) {
+    final int[] expected = new int[frame.width * frame.height];
+    frame.convertReference(expected);
+
+    final int[] serial = new int[expected.length];
+    frame.convert(serial, true, null);
+    assertArrayEquals(frame + " serial", expected, serial);
+
+    final int[] parallel = new int[expected.length];
+    frame.convert(parallel, true, executor);
+    assertArrayEquals(frame + " parallel", expected, parallel);
+
+    final int[] rounded = new int[expected.length];
+    frame.convert(rounded, false, executor);
+    for (int i = 0; i < expected.length; ++i) {
+      for (int shift = 0; shift < 24; shift += 8) {
+        final int difference = ((rounded[i] >> shift) & 0xff) - ((expected[i] >> shift) & 0xff);
+        assertTrue(frame + " rounded at " + i, Math.abs(difference) <= 1);
+      }
+    }
+  }
+}